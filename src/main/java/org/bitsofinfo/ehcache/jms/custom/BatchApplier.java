@@ -0,0 +1,222 @@
+package org.bitsofinfo.ehcache.jms.custom;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.Ehcache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchEventHandler;
+
+/**
+ * Applies the events of one inbound batch directly to the target
+ * caches as they are decoded, in place of feeding every key back through
+ * JMSCachePeer.onMessage() (one JMSEventMessage, Element, cache lookup
+ * and single key remove per key)
+ *
+ * 	- caches are resolved through the shared CacheLookupTable, the
+ * 	  events of a cache that does not exist are skipped and counted
+ *
+ * 	- consecutive key removals (and expanded ranges) for the same cache
+ * 	  are buffered and applied w/ a single Ehcache.removeAll(keys) per
+ * 	  APPLY_CHUNK_SIZE keys
+ *
+ * 	- events are applied in batch order, a REMOVE_ALL or a change of
+ * 	  cache flushes the keys buffered before it
+ *
+ * Like JMSCachePeer, nothing applied here is replicated back out.
+ * finish() must be called once the batch is decoded (also after a
+ * decoding failure, to apply what was decoded up to it). One instance
+ * per batch, fed by a single (decoding) thread
+ *
+ * @see ParallelBatchApplier
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BatchApplier implements BatchEventHandler {
+
+	private final Log LOG = LogFactory.getLog(getClass());
+
+	/**
+	 * Max keys handed to a single Ehcache.removeAll()
+	 */
+	public static final int APPLY_CHUNK_SIZE = 1000;
+
+	private final CacheLookupTable caches;
+
+	// cache the buffered keys belong to, null if none are buffered
+	private String pendingCacheName = null;
+	private List<Serializable> pendingKeys = new ArrayList<Serializable>();
+
+	private final AtomicInteger applied = new AtomicInteger(0);
+	private final AtomicInteger failed = new AtomicInteger(0);
+	private int skipped = 0;
+
+	// if set, also counts what is applied, as it completes
+	private AtomicLong appliedCounter = null;
+
+	/**
+	 * @param caches the caches the batch is applied to
+	 */
+	public BatchApplier(CacheLookupTable caches) {
+		this.caches = caches;
+	}
+
+	/**
+	 * Also count the events applied into the given counter, as each
+	 * unit completes (which may be after finish() if dispatch() hands
+	 * them off). Set before the first event
+	 *
+	 * @param appliedCounter
+	 */
+	public void setAppliedCounter(AtomicLong appliedCounter) {
+		this.appliedCounter = appliedCounter;
+	}
+
+	public void onBatch(long createdAt) {
+		// nothing to apply
+	}
+
+	public void onRemoveAll(String cacheName) {
+		flush();
+
+		Ehcache cache = resolve(cacheName, 1);
+		if (cache == null) {
+			return;
+		}
+		dispatch(cacheName, cache, null);
+	}
+
+	public void onRemove(String cacheName, Serializable key) {
+		if (!cacheName.equals(pendingCacheName)) {
+			flush();
+			pendingCacheName = cacheName;
+		}
+
+		pendingKeys.add(key);
+		if (pendingKeys.size() >= APPLY_CHUNK_SIZE) {
+			flush();
+		}
+	}
+
+	public void onRemoveRange(String cacheName, long first, long last, boolean integerKeys) {
+		for (long key = first; ; key++) {
+			onRemove(cacheName, (integerKeys ? (Serializable)Integer.valueOf((int)key) : Long.valueOf(key)));
+			if (key == last) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Apply whatever is still buffered, call once the batch has been decoded
+	 *
+	 * @return number of events applied
+	 */
+	public int finish() {
+		flush();
+		return getApplied();
+	}
+
+	/**
+	 * Hand the buffered keys off to be removed from their cache in one call
+	 */
+	private void flush() {
+		if (pendingKeys.isEmpty()) {
+			pendingCacheName = null;
+			return;
+		}
+
+		String cacheName = pendingCacheName;
+		pendingCacheName = null;
+
+		Ehcache cache = resolve(cacheName, pendingKeys.size());
+		if (cache == null) {
+			pendingKeys.clear();
+			return;
+		}
+
+		// dispatch() owns the list from here on
+		List<Serializable> keys = pendingKeys;
+		pendingKeys = new ArrayList<Serializable>();
+		dispatch(cacheName, cache, keys);
+	}
+
+	/**
+	 * Apply one unit of work of the batch, in batch order. Applied right
+	 * away on the decoding thread, subclasses may hand it off instead
+	 * as long as the units of a cache are applied in the order given
+	 *
+	 * @param cacheName
+	 * @param cache
+	 * @param keys at most APPLY_CHUNK_SIZE keys to remove, null to remove all
+	 */
+	protected void dispatch(String cacheName, Ehcache cache, List<Serializable> keys) {
+		apply(cacheName, cache, keys);
+	}
+
+	/**
+	 * @see dispatch()
+	 */
+	protected final void apply(String cacheName, Ehcache cache, List<Serializable> keys) {
+		try {
+			if (keys == null) {
+				cache.removeAll(true);
+			} else {
+				cache.removeAll(keys, true);
+			}
+			int events = (keys == null ? 1 : keys.size());
+			applied.addAndGet(events);
+			if (appliedCounter != null) {
+				appliedCounter.addAndGet(events);
+			}
+
+		} catch(Exception e) {
+			// don't let one failed chunk blow up the rest of the batch
+			failed.addAndGet(keys == null ? 1 : keys.size());
+			LOG.error("Error applying inbound " + (keys == null ? "REMOVE_ALL" : keys.size() + " key removals") 
+					+ " for cache " + cacheName + ": " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param cacheName
+	 * @param events number of events for the cache, counted as skipped if it does not exist
+	 * @return the cache, null if there is no such cache
+	 */
+	private Ehcache resolve(String cacheName, int events) {
+		Ehcache cache = caches.get(cacheName);
+		if (cache == null) {
+			skipped += events;
+			caches.skipped(events);
+		}
+		return cache;
+	}
+
+	/**
+	 * @return number of events applied so far (a range counts one per key)
+	 */
+	public int getApplied() {
+		return applied.get();
+	}
+
+	/**
+	 * @return number of events skipped for caches that do not exist
+	 */
+	public int getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * @return number of events whose removal failed
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+}
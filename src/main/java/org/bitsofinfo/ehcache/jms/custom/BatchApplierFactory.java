@@ -0,0 +1,19 @@
+package org.bitsofinfo.ehcache.jms.custom;
+
+/**
+ * Source of the BatchApplier each inbound batch (or coalesced flush)
+ * is applied through, i.e. the InboundPipeline's apply stage
+ * 
+ * @see InboundCoalescer
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public interface BatchApplierFactory {
+	
+	/**
+	 * @return a new applier, for a single batch
+	 */
+	public BatchApplier newApplier();
+
+}
@@ -0,0 +1,114 @@
+package org.bitsofinfo.ehcache.jms.custom;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Single, JVM wide, scheduler used by every BatchingJMSCachePeer
+ * to flush its pending batch exactly when its queuing window
+ * expires (rather than each peer running its own polling thread)
+ *
+ * Reference counted: each peer acquire()s it on creation and
+ * release()s it on dispose, the underlying thread is shut down
+ * when the last peer releases it and transparently re-created
+ * if a peer acquires it again later (i.e. CacheManager restart)
+ *
+ * NOTE: tasks run on a single shared thread, they should only
+ * seal batches and hand them off w/ BatchPublisher.handOff(), which
+ * never waits. Never block here (i.e. BatchPublisher.publish() under
+ * BLOCK) or do slow work like encoding or sending
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BatchFlushScheduler {
+
+	private static final Log LOG = LogFactory.getLog(BatchFlushScheduler.class);
+
+	private static final Object lock = new Object();
+	private static ScheduledExecutorService executor = null;
+	private static int references = 0;
+
+	private BatchFlushScheduler() {
+	}
+
+	/**
+	 * Register interest in the shared scheduler, starting it if needed
+	 */
+	public static void acquire() {
+		synchronized(lock) {
+			if (executor == null) {
+				LOG.debug("acquire() starting shared BatchFlushScheduler");
+				executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger(0);
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "BatchJMSEventMessage FlushScheduler-" + count.incrementAndGet());
+						t.setDaemon(true);
+						t.setPriority(Thread.NORM_PRIORITY);
+						return t;
+					}
+				});
+			}
+			references++;
+		}
+	}
+
+	/**
+	 * Release interest in the shared scheduler, the last one
+	 * to release it shuts it down
+	 */
+	public static void release() {
+		synchronized(lock) {
+			if (references == 0) {
+				return;
+			}
+			references--;
+			if (references == 0 && executor != null) {
+				LOG.debug("release() last reference released, shutting down shared BatchFlushScheduler");
+				executor.shutdownNow();
+				executor = null;
+			}
+		}
+	}
+
+	/**
+	 * Schedule a task on the shared scheduler, silently ignored if it has been shut down
+	 *
+	 * @param task
+	 * @param delayMS
+	 * @return the ScheduledFuture, or null if the scheduler is not running
+	 */
+	public static ScheduledFuture<?> schedule(Runnable task, long delayMS) {
+		synchronized(lock) {
+			if (executor == null) {
+				return null;
+			}
+			return executor.schedule(task, Math.max(0, delayMS), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Schedule a recurring task on the shared scheduler, silently ignored if it has been shut down.
+	 * Callers must cancel() the returned future when they are disposed
+	 *
+	 * @param task
+	 * @param periodMS
+	 * @return the ScheduledFuture, or null if the scheduler is not running
+	 */
+	public static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long periodMS) {
+		synchronized(lock) {
+			if (executor == null) {
+				return null;
+			}
+			return executor.scheduleWithFixedDelay(task, periodMS, periodMS, TimeUnit.MILLISECONDS);
+		}
+	}
+
+}
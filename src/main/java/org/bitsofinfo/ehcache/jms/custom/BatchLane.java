@@ -0,0 +1,295 @@
+package org.bitsofinfo.ehcache.jms.custom;
+
+import java.io.Serializable;
+
+import net.sf.ehcache.distribution.jms.JMSEventMessage;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bitsofinfo.ehcache.jms.custom.batch.AdaptiveBatchWindow;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchEventAccumulator;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchEventAccumulator.BatchStartedListener;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
+import org.bitsofinfo.ehcache.jms.custom.batch.RecentInvalidationFilter;
+
+/**
+ * A single named batching lane of a BatchingJMSCachePeer
+ *
+ * Qualifying events are queued in the lane's own lock-free
+ * BatchEventAccumulator until either the lane's maxBatchQueuingTimeMS
+ * is reached OR maxEventsPerBatch is met OR the estimated encoded size
+ * of the pending events reaches maxBatchBytes. These criteria are
+ * evaluated on every add() in addition to a timer on the shared
+ * BatchFlushScheduler, armed when the first event enters an empty
+ * batch, which flushes it exactly when its queuing window expires
+ * should there be no further activity on the lane
+ *
+ * Optionally (adaptiveBatchQueuingTime) the window a new batch gets
+ * adapts to the lane's observed event rate between minBatchQueuingTimeMS
+ * and maxBatchQueuingTimeMS @see AdaptiveBatchWindow
+ *
+ * All lanes of a peer share its BatchPublisher (and hence JMS producer)
+ *
+ * @see BatchLaneConfig
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BatchLane {
+
+	private final Log LOG = LogFactory.getLog(getClass());
+
+	private final BatchLaneConfig config;
+
+	/**
+	 * Lock-free accumulator of the events that will make up the
+	 * next BatchJMSEventMessage of this lane. Producers never
+	 * block each other, only one thread at a time seals a batch
+	 */
+	private final BatchEventAccumulator accumulator;
+
+	/**
+	 * Non null only when adaptiveBatchQueuingTime is enabled
+	 */
+	private final AdaptiveBatchWindow adaptiveWindow;
+
+	/**
+	 * Shared by all lanes of the peer, null when duplicate suppression is disabled
+	 */
+	private final RecentInvalidationFilter recentInvalidations;
+
+	private final BatchPublisher publisher;
+
+	private volatile boolean disposed = false;
+
+	// held by a timer flush, dispose() waits for one in progress
+	private final Object flushLock = new Object();
+
+	/**
+	 * Constructor
+	 *
+	 * @param config
+	 * @param publisher
+	 * @param recentInvalidations null if duplicate suppression is disabled
+	 */
+	public BatchLane(BatchLaneConfig config,
+					 BatchPublisher publisher,
+					 RecentInvalidationFilter recentInvalidations) {
+
+		this.config = config;
+		this.publisher = publisher;
+		this.recentInvalidations = recentInvalidations;
+
+		if (config.isAdaptiveBatchQueuingTime()) {
+			this.adaptiveWindow = new AdaptiveBatchWindow(config.getMinBatchQueuingTimeMS(),
+														  config.getMaxBatchQueuingTimeMS(),
+														  config.getEffectiveAdaptiveSaturationEventsPerSec());
+		} else {
+			this.adaptiveWindow = null;
+		}
+
+		// arm a flush timer as soon as the first event lands in an empty batch
+		this.accumulator = new BatchEventAccumulator(new BatchStartedListener() {
+			public void batchStarted(long firstEventAt) {
+				armFlushTimer(firstEventAt);
+			}
+		}, publisher.isRangeEncoding());
+	}
+
+	/**
+	 * Queue a batchable event (REMOVE_ALL or a compatible REMOVE)
+	 * and seal the lane's batch if it is now due
+	 *
+	 * @param jem
+	 * @return the sealed batch to publish, or null if the event just remains queued
+	 */
+	public BatchJMSEventMessage add(JMSEventMessage jem) {
+
+		if (adaptiveWindow != null) {
+			adaptiveWindow.recordEvent();
+		}
+
+		// pending entries, a run of contiguous Integer/Long keys counts once if our codec encodes ranges
+		int pendingEvents = 0;
+		if (jem.getEvent() == JMSEventMessage.REMOVE_ALL) {
+			pendingEvents = accumulator.addRemoveAll(jem.getCacheName());
+
+			// deal w/ just REMOVE
+		} else {
+			pendingEvents = accumulator.addRemove(jem.getCacheName(), jem.getSerializableKey());
+		}
+
+		/**
+		 * OK, if the max events has been reached
+		 * OR we are past the max queueing time
+		 * 	- a) try to seal the pending events into a BatchJMSEventMessage
+		 *  - b) return the sealed batch, which will be null
+		 *  	 if another thread is already sealing
+		 */
+
+		long totalQueuedTimeMS = accumulator.getQueuedTimeMS();
+		long queuingTimeMS = getBatchQueuingTimeMS();
+
+		// past MAX events?
+		if (pendingEvents >= config.getMaxEventsPerBatch()) {
+			LOG.debug("add() lane[" + config.getName() + "] sealing BatchJMSEventMessage w/ "
+					+ pendingEvents + " pending events, which is >= max:" + config.getMaxEventsPerBatch());
+			return seal();
+
+			// past the byte budget?
+		} else if (config.getMaxBatchBytes() > 0 && accumulator.getEstimatedEncodedBytes() >= config.getMaxBatchBytes()) {
+			LOG.debug("add() lane[" + config.getName() + "] sealing BatchJMSEventMessage w/ "
+					+ pendingEvents + " pending events, estimated encoded size "
+					+ accumulator.getEstimatedEncodedBytes() + " is >= max:" + config.getMaxBatchBytes());
+			return seal();
+
+			// have we been queueing the Batch message past its queuing window?
+		} else if (totalQueuedTimeMS > queuingTimeMS) {
+			LOG.debug("add() lane[" + config.getName() + "] sealing BatchJMSEventMessage w/ "
+					+ pendingEvents + " pending events, who's queued" +
+					" time ["+totalQueuedTimeMS+"MS] is > queueing window of " + queuingTimeMS+"MS");
+			return seal();
+		}
+
+		LOG.debug("add() lane[" + config.getName() + "] BatchJMSEventMessage will remain in queue... " +
+				"neither max events or max queue time has been reached");
+		return null;
+	}
+
+	/**
+	 * Queue a trailing invalidation (@see RecentInvalidationFilter),
+	 * these bypass the adaptive window's rate tracking
+	 *
+	 * @param cacheName
+	 * @param key
+	 * @return the sealed batch to publish if the lane is now full, otherwise null
+	 */
+	public BatchJMSEventMessage addTrailingInvalidation(String cacheName, Serializable key) {
+		if (accumulator.addRemove(cacheName, key) >= config.getMaxEventsPerBatch()) {
+			return seal();
+		}
+		return null;
+	}
+
+	/**
+	 * Seal pending events into a batch, recording its keys as
+	 * published for duplicate suppression if enabled
+	 *
+	 * @return the sealed batch, null if nothing sealed
+	 */
+	public BatchJMSEventMessage seal() {
+		long sealedAt = System.currentTimeMillis();
+		BatchJMSEventMessage batch = accumulator.seal(config.getMaxEventsPerBatch(), config.getMaxBatchBytes());
+		if (batch != null && recentInvalidations != null) {
+			recentInvalidations.recordPublished(batch, sealedAt);
+		}
+		return batch;
+	}
+
+	/**
+	 * @return number of events queued in this lane but not yet sealed
+	 */
+	public int getPendingEvents() {
+		return accumulator.getPendingEvents();
+	}
+
+	public BatchLaneConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Stop arming/handling flush timers, waits for a timer flush in
+	 * progress, so once this returns only the caller seals our batches
+	 * (and add()/addTrailingInvalidation() callers)
+	 */
+	public void dispose() {
+		synchronized(flushLock) {
+			this.disposed = true;
+		}
+	}
+
+	/**
+	 * Schedule a flush of the batch started at firstEventAt for the
+	 * exact moment its queuing window expires. Invoked by the accumulator
+	 * when the first event enters an empty batch (including leftovers of
+	 * a batch that was sealed at max capacity, which keep their original
+	 * age and hence may be flushed right away)
+	 *
+	 * @param firstEventAt
+	 */
+	private void armFlushTimer(long firstEventAt) {
+		if (disposed) {
+			return;
+		}
+		long delayMS = (firstEventAt + getBatchQueuingTimeMS()) - System.currentTimeMillis();
+		BatchFlushScheduler.schedule(new FlushTask(firstEventAt), delayMS);
+	}
+
+	/**
+	 * @return how long a batch may queue, either the fixed
+	 * 	maxBatchQueuingTimeMS or the current adaptive window
+	 */
+	private long getBatchQueuingTimeMS() {
+		if (adaptiveWindow != null) {
+			return adaptiveWindow.getWindowMS();
+		}
+		return config.getMaxBatchQueuingTimeMS();
+	}
+
+	/**
+	 * Invoked by a FlushTask on the shared BatchFlushScheduler when
+	 * the batch it was armed for has reached its max queuing time, only
+	 * seals it, the publisher takes it w/o this ever waiting on it
+	 *
+	 * @param armedForFirstEventAt
+	 */
+	private void flushExpiredBatch(long armedForFirstEventAt) {
+		synchronized(flushLock) {
+			if (!disposed) {
+				flushExpiredBatchLocked(armedForFirstEventAt);
+			}
+		}
+	}
+
+	private void flushExpiredBatchLocked(long armedForFirstEventAt) {
+		try {
+			// the batch we were armed for was already sealed (i.e. hit max events),
+			// if a new one has started since, it armed its own timer
+			if (accumulator.getFirstEventAt() != armedForFirstEventAt) {
+				return;
+			}
+
+			LOG.debug("flushExpiredBatch() lane[" + config.getName() + "] sealing BatchJMSEventMessage w/ "
+					+ accumulator.getPendingEvents() + " pending events, who's queued" +
+					" time ["+accumulator.getQueuedTimeMS()+"MS] has reached its queueing window");
+
+			BatchJMSEventMessage toSend = seal();
+
+			// send it! never waiting on the publisher, we're on the shared scheduler
+			if (toSend != null) {
+				publisher.handOff(toSend);
+			}
+
+		} catch(Throwable e) {
+			LOG.error("flushExpiredBatch() lane[" + config.getName() + "] error: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Fires once, when the batch started at firstEventAt
+	 * reaches its max queuing time
+	 */
+	private final class FlushTask implements Runnable {
+
+		private final long firstEventAt;
+
+		public FlushTask(long firstEventAt) {
+			this.firstEventAt = firstEventAt;
+		}
+
+		public void run() {
+			flushExpiredBatch(firstEventAt);
+		}
+	}
+
+}
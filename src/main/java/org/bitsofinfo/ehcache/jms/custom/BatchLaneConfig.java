@@ -0,0 +1,198 @@
+package org.bitsofinfo.ehcache.jms.custom;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Batching parameters of a single named lane. Every lane has its
+ * own BatchEventAccumulator and flush policy so that latency critical
+ * caches (i.e. permissions) never wait behind bulk ones (i.e. a catalog)
+ *
+ * The "default" lane takes every cache not explicitly mapped to
+ * another lane and is configured by the top level properties
+ * (maxBatchQueuingTimeMS, maxEventsPerBatch etc). Additional lanes
+ * are configured via lanes.[name].[property] and inherit anything
+ * they don't set from the default lane
+ *
+ * @see BatchingConfig
+ * @see BatchLane
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BatchLaneConfig {
+
+	public static final String DEFAULT_LANE = "default";
+
+	private final String name;
+
+	/*
+	 * Names of the caches routed to this lane (unused for the default lane)
+	 */
+	private final Set<String> cacheNames = new LinkedHashSet<String>();
+
+	/*
+	 * The maximum time that a pending BatchJMSEventMessage can
+	 * sit waiting to be sent
+	 */
+	private long maxBatchQueuingTimeMS = 1000 * 30; // default 30s
+
+	/*
+	 * The maximum number of batched entries
+	 * that can exist in a BatchJMEEventMessage
+	 *
+	 * Some tests:
+	 * 	- Loaded up BatchJMSEventMessage with:
+	 * 		- 500 cacheNames to REMOVE_ALL
+	 * 		- 500 cacheName -> key ACTIONS
+	 * 		- both cacheNames and key names were ~144bytes each
+	 *
+	 *  - total message size ~168k (json, compressed and b64 encoded)
+	 *  - AWS SNS/SQS size limit 256k, so 500 is safe default
+	 *  - Nevado JMS has about a 25% overhead @see http://nevado.skyscreamer.org/performance.html
+	 *
+	 * When the codec encodes ranges (@see BinaryBatchCodec) a run
+	 * of contiguous Integer/Long keys of a cache counts as one event
+	 */
+	private int maxEventsPerBatch = 500;
+
+	/*
+	 * Byte budget for an encoded (json, compressed and b64 encoded)
+	 * BatchJMSEventMessage. When > 0 a batch is sealed as soon as the
+	 * running estimate of its encoded size reaches this, regardless of
+	 * how many events it holds, so short keys get packed densely and long
+	 * keys don't blow the transport's limit (i.e. AWS SNS/SQS 256k less
+	 * Nevado's overhead). <= 0 disables, leaving only maxEventsPerBatch
+	 */
+	private long maxBatchBytes = 0;
+
+	/*
+	 * When true the time a batch may queue adapts to the observed
+	 * event rate, from minBatchQueuingTimeMS when events are rare up
+	 * to maxBatchQueuingTimeMS when they arrive at (or above)
+	 * adaptiveSaturationEventsPerSec. @see AdaptiveBatchWindow
+	 */
+	private boolean adaptiveBatchQueuingTime = false;
+
+	private long minBatchQueuingTimeMS = 100;
+
+	/*
+	 * Event rate at which the adaptive window reaches maxBatchQueuingTimeMS.
+	 * <= 0 means derive it, as the rate at which a full window produces
+	 * a full batch (maxEventsPerBatch / maxBatchQueuingTimeMS)
+	 */
+	private double adaptiveSaturationEventsPerSec = 0;
+
+	/**
+	 * @param name
+	 */
+	public BatchLaneConfig(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param name
+	 * @param defaults lane to copy all the batching parameters from
+	 */
+	public BatchLaneConfig(String name, BatchLaneConfig defaults) {
+		this.name = name;
+		this.maxBatchQueuingTimeMS = defaults.maxBatchQueuingTimeMS;
+		this.maxEventsPerBatch = defaults.maxEventsPerBatch;
+		this.maxBatchBytes = defaults.maxBatchBytes;
+		this.adaptiveBatchQueuingTime = defaults.adaptiveBatchQueuingTime;
+		this.minBatchQueuingTimeMS = defaults.minBatchQueuingTimeMS;
+		this.adaptiveSaturationEventsPerSec = defaults.adaptiveSaturationEventsPerSec;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public boolean isDefaultLane() {
+		return DEFAULT_LANE.equals(name);
+	}
+
+	public Set<String> getCacheNames() {
+		return Collections.unmodifiableSet(cacheNames);
+	}
+
+	public void addCacheName(String cacheName) {
+		this.cacheNames.add(cacheName);
+	}
+
+	public long getMaxBatchQueuingTimeMS() {
+		return maxBatchQueuingTimeMS;
+	}
+
+	public void setMaxBatchQueuingTimeMS(long maxBatchQueuingTimeMS) {
+		this.maxBatchQueuingTimeMS = maxBatchQueuingTimeMS;
+	}
+
+	public int getMaxEventsPerBatch() {
+		return maxEventsPerBatch;
+	}
+
+	public void setMaxEventsPerBatch(int maxEventsPerBatch) {
+		this.maxEventsPerBatch = maxEventsPerBatch;
+	}
+
+	public long getMaxBatchBytes() {
+		return maxBatchBytes;
+	}
+
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	public boolean isAdaptiveBatchQueuingTime() {
+		return adaptiveBatchQueuingTime;
+	}
+
+	public void setAdaptiveBatchQueuingTime(boolean adaptiveBatchQueuingTime) {
+		this.adaptiveBatchQueuingTime = adaptiveBatchQueuingTime;
+	}
+
+	public long getMinBatchQueuingTimeMS() {
+		return minBatchQueuingTimeMS;
+	}
+
+	public void setMinBatchQueuingTimeMS(long minBatchQueuingTimeMS) {
+		this.minBatchQueuingTimeMS = minBatchQueuingTimeMS;
+	}
+
+	public double getAdaptiveSaturationEventsPerSec() {
+		return adaptiveSaturationEventsPerSec;
+	}
+
+	public void setAdaptiveSaturationEventsPerSec(double adaptiveSaturationEventsPerSec) {
+		this.adaptiveSaturationEventsPerSec = adaptiveSaturationEventsPerSec;
+	}
+
+	/**
+	 * @return adaptiveSaturationEventsPerSec, or if not set the rate at which
+	 * 	a full maxBatchQueuingTimeMS window would produce a full batch
+	 */
+	public double getEffectiveAdaptiveSaturationEventsPerSec() {
+		if (adaptiveSaturationEventsPerSec > 0) {
+			return adaptiveSaturationEventsPerSec;
+		}
+		// only a byte budget? assume a modest 100/sec
+		if (maxEventsPerBatch == Integer.MAX_VALUE || maxBatchQueuingTimeMS <= 0) {
+			return 100;
+		}
+		return (maxEventsPerBatch * 1000d) / maxBatchQueuingTimeMS;
+	}
+
+	public String toString() {
+		return "lane[" + name + "] " +
+				(isDefaultLane() ? "" : "caches=" + cacheNames + ", ") +
+				"maxBatchQueuingTimeMS=" + maxBatchQueuingTimeMS +
+				", maxEventsPerBatch=" + maxEventsPerBatch +
+				", maxBatchBytes=" + maxBatchBytes +
+				", adaptiveBatchQueuingTime=" + adaptiveBatchQueuingTime +
+				", minBatchQueuingTimeMS=" + minBatchQueuingTimeMS +
+				", adaptiveSaturationEventsPerSec=" + getEffectiveAdaptiveSaturationEventsPerSec();
+	}
+
+}
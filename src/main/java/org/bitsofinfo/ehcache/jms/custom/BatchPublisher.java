@@ -0,0 +1,662 @@
+package org.bitsofinfo.ehcache.jms.custom;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.ObjectMessage;
+import javax.jms.Session;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageUtil;
+import org.bitsofinfo.ehcache.jms.custom.batch.CompressionDictionary;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodec;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BinaryBatchCodec;
+
+/**
+ * Publisher stage for sealed BatchJMSEventMessages
+ *
+ * Sealing a batch only hands it off to a bounded queue, one or more
+ * publisher threads then do the expensive part (BatchCodec, Deflate, Base64
+ * and the blocking send over the WAN) so a slow round trip to the
+ * JMS provider (i.e. AWS SNS) never stalls local cache replication.
+ *
+ * Encoding happens in parallel across the publisher threads, but the
+ * actual send is serialized on the producer as JMS Sessions and their
+ * MessageProducers are single threaded objects per the JMS spec.
+ *
+ * When the queue is full the configured OverflowPolicy applies, except
+ * that tasks on the shared BatchFlushScheduler never wait for room
+ * @see handOff()
+ *
+ * A batch whose payload exceeds maxMessageBytes (i.e. a bulk invalidation
+ * bigger than the transport allows) is split into as few parts as fit,
+ * each a complete batch of its own sent w/ the same batch id and its part
+ * number/count as JMS properties @see BatchJMSEventMessageUtil.split()
+ *
+ * Every batch message sent is stamped w/ our origin id and a sequence
+ * number so receivers can drop redeliveries @see InboundDuplicateFilter
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BatchPublisher {
+
+	private final Log LOG = LogFactory.getLog(getClass());
+
+	/**
+	 * How often a handOff() that found the queue full (BLOCK) is retried
+	 */
+	public static final long HANDOFF_RETRY_MS = 10;
+
+	/**
+	 * What to do with a sealed batch when the publisher queue is full
+	 */
+	public enum OverflowPolicy {
+
+		// caller waits for room in the queue
+		BLOCK,
+
+		// oldest queued batch is discarded (its invalidations are LOST)
+		DROP_OLDEST,
+
+		// oldest queued batch + the new one are merged into a single
+		// small batch of REMOVE_ALLs for every cache either touched,
+		// (over invalidates, but nothing is lost)
+		COLLAPSE_TO_REMOVE_ALL
+	}
+
+	/**
+	 * How sealed batches are carried over JMS
+	 */
+	public enum BatchTransport {
+
+		// Base64 in a TextMessage prefixed w/ the envelope, works w/ any
+		// provider (i.e. Nevado/SNS) and understood by every receiver version
+		TEXT,
+
+		// raw compressed bytes in a BytesMessage, the envelope in the
+		// BATCH_ENVELOPE_PROPERTY, ~25% smaller and no Base64 work. For
+		// brokers that carry binary natively (i.e. ActiveMQ, Artemis)
+		BYTES
+	}
+
+	private final BlockingQueue<BatchJMSEventMessage> queue;
+	private final OverflowPolicy overflowPolicy;
+	private final List<PublisherThread> publisherThreads = new ArrayList<PublisherThread>();
+
+	private final BatchCodec codec;
+	private final CompressionDictionary dictionary;
+	private final BatchTransport transport;
+
+	// payload size above which a batch is sent in parts, 0 for never
+	private final long maxMessageBytes;
+
+	// "batch@[codec versionTag](/[dictionary id]):"
+	private final String envelopePrefix;
+
+	private final Session producerSession;
+	private final MessageProducer messageProducer;
+
+	// JMS Sessions/MessageProducers are single threaded
+	private final Object producerLock = new Object();
+
+	// stamped on every batch message, random so a restart never reuses a stamp
+	private final String originId = UUID.randomUUID().toString();
+	private final AtomicLong sequence = new AtomicLong(0);
+
+	private final AtomicLong batchesPublished = new AtomicLong(0);
+	private final AtomicLong batchesFailed = new AtomicLong(0);
+	private final AtomicLong batchesDropped = new AtomicLong(0);
+	private final AtomicLong batchesCollapsed = new AtomicLong(0);
+	private final AtomicLong batchesSplit = new AtomicLong(0);
+	private final AtomicLong partsPublished = new AtomicLong(0);
+
+	// batches handOff() could not queue w/o blocking, oldest first
+	private final ConcurrentLinkedQueue<BatchJMSEventMessage> handOffBacklog = new ConcurrentLinkedQueue<BatchJMSEventMessage>();
+	private final AtomicBoolean handOffRetryArmed = new AtomicBoolean(false);
+
+	// batches taken off the queue but not yet sent
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+
+	// held while taking a batch off the queue and counting it inFlight,
+	// so shutdown() always sees a batch either queued or inFlight
+	private final Object takeLock = new Object();
+
+	// false once shutdown has begun, no new batches are accepted
+	private volatile boolean accepting = true;
+
+	// until when publish() may still wait for room once not accepting
+	private volatile long shutdownDeadline = 0;
+
+	// false once the publisher threads should exit
+	private volatile boolean running = true;
+
+	/**
+	 * Constructor
+	 *
+	 * @param publisherThreads number of encoding/publishing threads
+	 * @param queueSize max number of sealed batches awaiting publication
+	 * @param overflowPolicy
+	 * @param codec format batches are published in
+	 * @param dictionary preset dictionary batches are compressed w/, null for none
+	 * @param transport
+	 * @param maxMessageBytes payload size (Base64 chars for TEXT) above which a batch is sent in parts, 0 for never
+	 * @param producerSession
+	 * @param messageProducer
+	 */
+	public BatchPublisher(int publisherThreads,
+						  int queueSize,
+						  OverflowPolicy overflowPolicy,
+						  BatchCodec codec,
+						  CompressionDictionary dictionary,
+						  BatchTransport transport,
+						  long maxMessageBytes,
+						  Session producerSession,
+						  MessageProducer messageProducer) {
+
+		this.queue = new ArrayBlockingQueue<BatchJMSEventMessage>(Math.max(1, queueSize));
+		this.overflowPolicy = overflowPolicy;
+		this.codec = codec;
+		this.dictionary = dictionary;
+		this.transport = transport;
+		this.maxMessageBytes = maxMessageBytes;
+		this.envelopePrefix = BatchJMSEventMessageUtil.getEnvelopePrefix(codec, dictionary);
+		this.producerSession = producerSession;
+		this.messageProducer = messageProducer;
+
+		for (int i=0; i<Math.max(1, publisherThreads); i++) {
+			PublisherThread thread = new PublisherThread(i);
+			this.publisherThreads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Hand off a sealed batch for asynchronous publication, applying
+	 * the OverflowPolicy if the queue is full. Once stopAccepting() a
+	 * straggler (i.e. sealed by a send() already under way) is offered
+	 * as the shutdown drain is, until the shutdown deadline
+	 *
+	 * @param batch
+	 * @throws InterruptedException
+	 */
+	public void publish(BatchJMSEventMessage batch) throws InterruptedException {
+
+		if (!accepting) {
+			if (!offerForShutdown(batch, shutdownDeadline - System.currentTimeMillis())) {
+				LOG.warn("publish() publisher is shut down, dropping BatchJMSEventMessage w/ " + batch.getTotalEvents() + " events");
+				batchesDropped.incrementAndGet();
+			}
+			return;
+		}
+
+		enqueue(batch, true);
+	}
+
+	/**
+	 * Hand off a sealed batch w/o ever blocking the calling thread, for
+	 * tasks on the shared BatchFlushScheduler. Same as publish() except
+	 * that under BLOCK a full queue is not waited on: the batch is kept
+	 * aside and its hand off retried on the scheduler every
+	 * HANDOFF_RETRY_MS until there is room
+	 *
+	 * @param batch
+	 */
+	public void handOff(BatchJMSEventMessage batch) {
+
+		if (!accepting) {
+			if (!running || !queue.offer(batch)) {
+				LOG.warn("handOff() publisher is shut down, dropping BatchJMSEventMessage w/ " + batch.getTotalEvents() + " events");
+				batchesDropped.incrementAndGet();
+			}
+			return;
+		}
+
+		try {
+			// behind those already waiting
+			if (handOffBacklog.isEmpty() && enqueue(batch, false)) {
+				return;
+			}
+		} catch(InterruptedException e) {
+			// can't happen, nothing waits
+			Thread.currentThread().interrupt();
+		}
+
+		LOG.debug("handOff() publisher queue full, retrying in " + HANDOFF_RETRY_MS + "ms");
+		handOffBacklog.add(batch);
+		armHandOffRetry();
+	}
+
+	private void armHandOffRetry() {
+		if (!handOffRetryArmed.compareAndSet(false, true)) {
+			return;
+		}
+		ScheduledFuture<?> retry = BatchFlushScheduler.schedule(new Runnable() {
+			public void run() {
+				retryHandOffs();
+			}
+		}, HANDOFF_RETRY_MS);
+
+		// scheduler is gone, shutdown() picks up the backlog
+		if (retry == null) {
+			handOffRetryArmed.set(false);
+		}
+	}
+
+	private void retryHandOffs() {
+		BatchJMSEventMessage batch;
+		while (running && (batch = handOffBacklog.peek()) != null && queue.offer(batch)) {
+			handOffBacklog.poll();
+		}
+		handOffRetryArmed.set(false);
+
+		// also covers a handOff() that found the retry still armed
+		if (running && !handOffBacklog.isEmpty()) {
+			armHandOffRetry();
+		}
+	}
+
+	/**
+	 * Queue the batch, applying the OverflowPolicy if the queue is full
+	 *
+	 * @param batch
+	 * @param block false to return rather than wait for room (BLOCK)
+	 * @return true if queued
+	 * @throws InterruptedException
+	 */
+	private boolean enqueue(BatchJMSEventMessage batch, boolean block) throws InterruptedException {
+
+		if (queue.offer(batch)) {
+			return true;
+		}
+
+		switch(overflowPolicy) {
+
+		case BLOCK:
+			if (!block) {
+				return false;
+			}
+			LOG.debug("publish() publisher queue full, blocking until there is room");
+			queue.put(batch);
+			break;
+
+		case DROP_OLDEST:
+			while (!queue.offer(batch)) {
+				BatchJMSEventMessage dropped = queue.poll();
+				if (dropped != null) {
+					batchesDropped.incrementAndGet();
+					LOG.warn("publish() publisher queue full, DROPPING oldest BatchJMSEventMessage w/ "
+							+ dropped.getTotalEvents() + " events");
+				}
+			}
+			break;
+
+		case COLLAPSE_TO_REMOVE_ALL:
+			BatchJMSEventMessage toQueue = batch;
+			while (!queue.offer(toQueue)) {
+				BatchJMSEventMessage oldest = queue.poll();
+				if (oldest != null) {
+					batchesCollapsed.incrementAndGet();
+					toQueue = BatchJMSEventMessageUtil.collapseToRemoveAll(oldest, toQueue);
+					LOG.warn("publish() publisher queue full, collapsed oldest BatchJMSEventMessage w/ "
+							+ oldest.getTotalEvents() + " events into REMOVE_ALL for "
+							+ toQueue.getTotalEvents() + " caches");
+				}
+			}
+			break;
+		}
+		return true;
+	}
+
+	/**
+	 * Send a (non batched) JMSEventMessage as an ObjectMessage right now
+	 * on the calling thread
+	 *
+	 * @param eventMessage
+	 * @throws JMSException
+	 */
+	public void sendObjectMessage(Serializable eventMessage) throws JMSException {
+		synchronized(producerLock) {
+			ObjectMessage message = producerSession.createObjectMessage(eventMessage);
+			messageProducer.send(message);
+		}
+	}
+
+	private void encodeAndSend(BatchJMSEventMessage batch) throws Exception {
+
+		// encode/compress (in parallel w/ other publishers)
+		Object payload = encode(batch);
+		int size = sizeOf(payload);
+
+		// teach the accumulator that sealed it what batches really cost on the wire
+		if (batch.getSealedBy() != null) {
+			batch.getSealedBy().recordEncodedSize(batch, size);
+		}
+
+		if (maxMessageBytes <= 0 || size <= maxMessageBytes) {
+			send(payload, null, 0, 0);
+			return;
+		}
+
+		if (weightOf(batch) <= 1) {
+			LOG.warn("encodeAndSend() BatchJMSEventMessage of " + size + " bytes exceeds maxMessageBytes:" 
+					+ maxMessageBytes + " but cannot be split, sending as is");
+			send(payload, null, 0, 0);
+			return;
+		}
+
+		List<Object> parts = new ArrayList<Object>();
+		encodeParts(batch, size, parts);
+
+		String batchId = UUID.randomUUID().toString();
+		for (int i=0; i<parts.size(); i++) {
+			send(parts.get(i), batchId, i, parts.size());
+		}
+
+		batchesSplit.incrementAndGet();
+		partsPublished.addAndGet(parts.size());
+		LOG.debug("encodeAndSend() BatchJMSEventMessage of " + size + " bytes sent as " 
+				+ parts.size() + " parts, batchId:" + batchId);
+	}
+
+	/**
+	 * Split the batch into parts that fit maxMessageBytes (compression makes
+	 * size not quite linear in events, any part still too big is split again)
+	 *
+	 * @param batch
+	 * @param size its encoded size
+	 * @param parts the encoded parts are added to
+	 * @throws Exception
+	 */
+	private void encodeParts(BatchJMSEventMessage batch, int size, List<Object> parts) throws Exception {
+
+		// aim a little under the limit
+		int count = (int)Math.min(weightOf(batch), (size / (maxMessageBytes * 0.9)) + 1);
+
+		for (BatchJMSEventMessage part : BatchJMSEventMessageUtil.split(batch, Math.max(2, count), isRangeEncoding())) {
+			Object payload = encode(part);
+			int partSize = sizeOf(payload);
+			if (partSize > maxMessageBytes && weightOf(part) > 1) {
+				encodeParts(part, partSize, parts);
+			} else {
+				parts.add(payload);
+			}
+		}
+	}
+
+	/**
+	 * @return what the batch is split by, @see BatchJMSEventMessageUtil.split()
+	 */
+	private long weightOf(BatchJMSEventMessage batch) {
+		return (isRangeEncoding() ? batch.getEncodedEntries() : batch.getTotalEvents());
+	}
+
+	/**
+	 * @return the compressed bytes (BYTES) or the Base64 String w/ its envelope prefix (TEXT)
+	 */
+	private Object encode(BatchJMSEventMessage batch) throws Exception {
+		if (transport == BatchTransport.BYTES) {
+			return BatchJMSEventMessageUtil.toCompressedBytes(batch, codec, dictionary);
+		}
+		return BatchJMSEventMessageUtil.toString(batch, codec, dictionary);
+	}
+
+	private static int sizeOf(Object payload) {
+		return (payload instanceof byte[] ? ((byte[])payload).length : ((String)payload).length());
+	}
+
+	/**
+	 * @param payload @see encode()
+	 * @param batchId null unless a part of a multipart batch
+	 * @param part
+	 * @param parts
+	 * @throws JMSException
+	 */
+	private void send(Object payload, String batchId, int part, int parts) throws JMSException {
+		synchronized(producerLock) {
+			Message message = null;
+
+			if (payload instanceof byte[]) {
+				BytesMessage bytesMessage = producerSession.createBytesMessage();
+				bytesMessage.setStringProperty(BatchJMSEventMessageUtil.BATCH_ENVELOPE_PROPERTY, envelopePrefix);
+				bytesMessage.writeBytes((byte[])payload);
+				message = bytesMessage;
+			} else {
+				message = producerSession.createTextMessage((String)payload);
+			}
+
+			message.setStringProperty(BatchJMSEventMessageUtil.BATCH_ORIGIN_PROPERTY, originId);
+			message.setLongProperty(BatchJMSEventMessageUtil.BATCH_SEQUENCE_PROPERTY, sequence.incrementAndGet());
+
+			if (batchId != null) {
+				message.setStringProperty(BatchJMSEventMessageUtil.BATCH_ID_PROPERTY, batchId);
+				message.setIntProperty(BatchJMSEventMessageUtil.BATCH_PART_PROPERTY, part);
+				message.setIntProperty(BatchJMSEventMessageUtil.BATCH_PARTS_PROPERTY, parts);
+			}
+
+			messageProducer.send(message);
+		}
+	}
+
+	/**
+	 * Hand off a batch during shutdown, waiting at most timeoutMS for
+	 * room in the queue regardless of the OverflowPolicy. This bypasses
+	 * the accepting check as it is used to drain the last batches
+	 * after shutdown has begun
+	 *
+	 * @param batch
+	 * @param timeoutMS
+	 * @return true if queued
+	 * @throws InterruptedException
+	 */
+	public boolean offerForShutdown(BatchJMSEventMessage batch, long timeoutMS) throws InterruptedException {
+		if (!running) {
+			return false;
+		}
+		return queue.offer(batch, Math.max(0, timeoutMS), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop accepting new batches via publish(), but keep publishing
+	 * whatever is already queued
+	 *
+	 * @param timeoutMS how long publish() may still wait for room for a straggler
+	 */
+	public void stopAccepting(long timeoutMS) {
+		this.shutdownDeadline = System.currentTimeMillis() + timeoutMS;
+		this.accepting = false;
+	}
+
+	/**
+	 * Stop accepting new batches, give the publisher threads up to
+	 * timeoutMS to send everything already queued, then stop them.
+	 *
+	 * @param timeoutMS
+	 * @return number of batches that could not be published in time (discarded)
+	 */
+	public int shutdown(long timeoutMS) {
+		long deadline = System.currentTimeMillis() + timeoutMS;
+		if (accepting) {
+			stopAccepting(timeoutMS);
+		}
+
+		drainHandOffBacklog(deadline);
+		awaitPublished(deadline);
+
+		// no batch can be taken off the queue from here on, those
+		// already taken are inFlight and get the rest of timeoutMS
+		synchronized(takeLock) {
+			this.running = false;
+		}
+		awaitPublished(deadline);
+
+		for (PublisherThread thread : publisherThreads) {
+			thread.interrupt();
+		}
+
+		int abandoned = queue.size() + inFlight.get() + handOffBacklog.size();
+		queue.clear();
+		handOffBacklog.clear();
+		return abandoned;
+	}
+
+	/**
+	 * Queue what handOff() kept aside, waiting until deadline for room
+	 */
+	private void drainHandOffBacklog(long deadline) {
+		try {
+			BatchJMSEventMessage batch;
+			while ((batch = handOffBacklog.peek()) != null && 
+					queue.offer(batch, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				handOffBacklog.poll();
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Wait until deadline for everything queued and inFlight to be published
+	 */
+	private void awaitPublished(long deadline) {
+		try {
+			while ((queue.size() > 0 || inFlight.get() > 0) && System.currentTimeMillis() < deadline) {
+				if (!running && inFlight.get() == 0) {
+					// nothing left that will ever be taken
+					return;
+				}
+				Thread.sleep(10);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Stop the publisher threads right away, anything still queued is discarded
+	 */
+	public void shutdown() {
+		shutdown(0);
+	}
+
+	/**
+	 * @return true if our codec encodes runs of contiguous Integer/Long
+	 * 	keys as ranges, i.e. such a run costs about as much as one key
+	 */
+	public boolean isRangeEncoding() {
+		return (codec instanceof BinaryBatchCodec);
+	}
+
+	/**
+	 * @return the origin id stamped on every batch message we send
+	 */
+	public String getOriginId() {
+		return originId;
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return batches handed off by the scheduler awaiting room in the queue
+	 */
+	public int getHandOffBacklog() {
+		return handOffBacklog.size();
+	}
+
+	public long getBatchesPublished() {
+		return batchesPublished.get();
+	}
+
+	public long getBatchesFailed() {
+		return batchesFailed.get();
+	}
+
+	public long getBatchesDropped() {
+		return batchesDropped.get();
+	}
+
+	public long getBatchesCollapsed() {
+		return batchesCollapsed.get();
+	}
+
+	/**
+	 * @return batches that exceeded maxMessageBytes and went out in parts
+	 */
+	public long getBatchesSplit() {
+		return batchesSplit.get();
+	}
+
+	public long getPartsPublished() {
+		return partsPublished.get();
+	}
+
+	private void publishLoop() {
+		while (running) {
+			BatchJMSEventMessage batch = null;
+			try {
+				// one thread waits on the queue at a time, the others on takeLock
+				synchronized(takeLock) {
+					if (!running) {
+						return;
+					}
+					batch = queue.poll(250, TimeUnit.MILLISECONDS);
+					if (batch == null) {
+						continue;
+					}
+					inFlight.incrementAndGet();
+				}
+
+				try {
+					encodeAndSend(batch);
+					batchesPublished.incrementAndGet();
+				} finally {
+					inFlight.decrementAndGet();
+				}
+
+			} catch(InterruptedException e) {
+				LOG.debug("publishLoop() interrupted, exiting");
+				return;
+
+			} catch(Throwable e) {
+				batchesFailed.incrementAndGet();
+				LOG.error("publishLoop() ERROR marshalling/sending BatchJMSEventMessage! " + e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * Takes sealed batches off the queue and publishes them
+	 */
+	private final class PublisherThread extends Thread {
+
+		public PublisherThread(int id) {
+			super("BatchJMSEventMessage PublisherThread-" + id);
+			setDaemon(true);
+			setPriority(Thread.NORM_PRIORITY);
+		}
+
+		@Override
+		public void run() {
+			publishLoop();
+		}
+	}
+
+}
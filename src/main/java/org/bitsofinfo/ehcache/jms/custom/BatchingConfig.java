@@ -0,0 +1,427 @@
+package org.bitsofinfo.ehcache.jms.custom;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bitsofinfo.ehcache.jms.custom.BatchPublisher.BatchTransport;
+import org.bitsofinfo.ehcache.jms.custom.BatchPublisher.OverflowPolicy;
+import org.bitsofinfo.ehcache.jms.custom.batch.CompressionDictionary;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodec;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodecRegistry;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BinaryBatchCodec;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.JsonBatchCodec;
+
+/**
+ * Holder for all the settings that control how BatchingJMSCachePeer
+ * batches up and publishes events. Populated by
+ * CustomizableJMSCacheManagerPeerProviderFactory from the
+ * cacheManagerPeerProviderFactory properties
+ *
+ * @see BatchLaneConfig
+ * @see CustomizableJMSCacheManagerPeerProviderFactory
+ * @see BatchingJMSCachePeer
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BatchingConfig {
+
+	/*
+	 * maxBatchQueuingTimeMS, maxEventsPerBatch, maxBatchBytes and the
+	 * adaptive window settings of the lane taking every cache that is not
+	 * mapped to one of the named lanes
+	 */
+	private final BatchLaneConfig defaultLane = new BatchLaneConfig(BatchLaneConfig.DEFAULT_LANE);
+
+	/*
+	 * Additional named lanes, each with their own caches and batching parameters
+	 */
+	private final Map<String,BatchLaneConfig> lanes = new LinkedHashMap<String,BatchLaneConfig>();
+
+	/*
+	 * When > 0, a key REMOVE published within this window is not sent
+	 * again, a single trailing invalidation follows once the window closes.
+	 * At most duplicateSuppressionMaxKeys keys are tracked
+	 * @see RecentInvalidationFilter
+	 */
+	private long duplicateSuppressionWindowMS = 0;
+
+	private int duplicateSuppressionMaxKeys = 100000;
+
+	/*
+	 * Format batches are published in, the default (json) is the only one
+	 * understood by older receivers, so only switch once all DCs are upgraded
+	 * @see BatchCodecRegistry
+	 */
+	private BatchCodec batchCodec = BatchCodecRegistry.JSON;
+
+	/*
+	 * Also batch keys w/ a KeyCodec when batchCodec is json (binary always
+	 * does). Receivers older than KeyCodecs silently drop such keys from a
+	 * json batch, so only enable once all DCs are upgraded
+	 * @see KeyCodecRegistry
+	 */
+	private boolean jsonKeyCodecs = false;
+
+	/*
+	 * Preset dictionary batches are compressed w/, null for none. Like
+	 * batchCodec, only receivers that have the same dictionary registered
+	 * can read them @see CompressionDictionary
+	 */
+	private CompressionDictionary compressionDictionary = null;
+
+	/*
+	 * TEXT (Base64 TextMessage, default, works everywhere) or BYTES (BytesMessage, 
+	 * for brokers that carry binary natively, needs receivers of this version or later)
+	 */
+	private BatchTransport batchTransport = BatchTransport.TEXT;
+
+	/*
+	 * When > 0, a batch whose payload is bigger (Base64 chars for TEXT, bytes
+	 * for BYTES) is sent in parts that fit, each a batch of its own. Receivers
+	 * track the parts of each batch for at most multipartTimeoutMS, at most
+	 * multipartMaxTracked batches at once @see MultipartBatchTracker
+	 */
+	private long maxMessageBytes = 0;
+
+	private long multipartTimeoutMS = 60000;
+
+	private int multipartMaxTracked = 1000;
+
+	/*
+	 * When > 0, the stamps (origin id + sequence) of inbound batches applied
+	 * within this window are remembered and a redelivered batch is dropped
+	 * unread. At most inboundDuplicateMaxTracked stamps are remembered
+	 * @see InboundDuplicateFilter
+	 */
+	private long inboundDuplicateWindowMS = 600000;
+
+	private int inboundDuplicateMaxTracked = 50000;
+
+	/*
+	 * When > 0, the caches of an inbound batch are applied in parallel
+	 * on this many threads, 0 applies them on the JMS listener thread
+	 * @see ParallelBatchApplier. w/ inboundDecodeThreads > 0 the number
+	 * of apply threads of the InboundPipeline instead
+	 */
+	private int inboundApplyThreads = 0;
+
+	/*
+	 * When > 0, the JMS listener thread only queues inbound batches (up to
+	 * inboundQueueSize) for this many decode threads, which queue the decoded
+	 * work (up to inboundApplyQueueSize per thread) for max(1, inboundApplyThreads)
+	 * apply threads @see InboundPipeline
+	 */
+	private int inboundDecodeThreads = 0;
+
+	private int inboundQueueSize = 100;
+
+	private int inboundApplyQueueSize = 1000;
+
+	/*
+	 * When > 0, inbound batches received within this window are merged
+	 * into one deduplicated set of removals per cache (a REMOVE_ALL
+	 * subsuming its keys) and applied together, or as soon as
+	 * inboundCoalesceMaxKeys keys are pending @see InboundCoalescer
+	 */
+	private long inboundCoalesceWindowMS = 0;
+
+	private int inboundCoalesceMaxKeys = 100000;
+
+	/*
+	 * Number of threads encoding + publishing sealed batches
+	 */
+	private int publisherThreads = 1;
+
+	/*
+	 * Max number of sealed batches waiting to be published
+	 */
+	private int publisherQueueSize = 100;
+
+	/*
+	 * What to do when the publisher queue is full
+	 */
+	private OverflowPolicy publisherOverflowPolicy = OverflowPolicy.BLOCK;
+
+	/*
+	 * Upper bound on how long a shutdown/dispose will wait for
+	 * pending batches to be sealed and published
+	 */
+	private long shutdownFlushTimeoutMS = 10000;
+
+	public long getMaxBatchQueuingTimeMS() {
+		return defaultLane.getMaxBatchQueuingTimeMS();
+	}
+
+	public void setMaxBatchQueuingTimeMS(long maxBatchQueuingTimeMS) {
+		defaultLane.setMaxBatchQueuingTimeMS(maxBatchQueuingTimeMS);
+	}
+
+	public int getMaxEventsPerBatch() {
+		return defaultLane.getMaxEventsPerBatch();
+	}
+
+	public void setMaxEventsPerBatch(int maxEventsPerBatch) {
+		defaultLane.setMaxEventsPerBatch(maxEventsPerBatch);
+	}
+
+	public long getMaxBatchBytes() {
+		return defaultLane.getMaxBatchBytes();
+	}
+
+	public void setMaxBatchBytes(long maxBatchBytes) {
+		defaultLane.setMaxBatchBytes(maxBatchBytes);
+	}
+
+	public boolean isAdaptiveBatchQueuingTime() {
+		return defaultLane.isAdaptiveBatchQueuingTime();
+	}
+
+	public void setAdaptiveBatchQueuingTime(boolean adaptiveBatchQueuingTime) {
+		defaultLane.setAdaptiveBatchQueuingTime(adaptiveBatchQueuingTime);
+	}
+
+	public long getMinBatchQueuingTimeMS() {
+		return defaultLane.getMinBatchQueuingTimeMS();
+	}
+
+	public void setMinBatchQueuingTimeMS(long minBatchQueuingTimeMS) {
+		defaultLane.setMinBatchQueuingTimeMS(minBatchQueuingTimeMS);
+	}
+
+	public double getAdaptiveSaturationEventsPerSec() {
+		return defaultLane.getAdaptiveSaturationEventsPerSec();
+	}
+
+	public void setAdaptiveSaturationEventsPerSec(double adaptiveSaturationEventsPerSec) {
+		defaultLane.setAdaptiveSaturationEventsPerSec(adaptiveSaturationEventsPerSec);
+	}
+
+	/**
+	 * @return the lane taking every cache not mapped to a named lane
+	 */
+	public BatchLaneConfig getDefaultLane() {
+		return defaultLane;
+	}
+
+	/**
+	 * @return the named lanes, excluding the default lane
+	 */
+	public Collection<BatchLaneConfig> getLanes() {
+		return Collections.unmodifiableCollection(lanes.values());
+	}
+
+	/**
+	 * Add (or replace) a named lane
+	 *
+	 * @param lane
+	 */
+	public void addLane(BatchLaneConfig lane) {
+		lanes.put(lane.getName(), lane);
+	}
+
+	public long getDuplicateSuppressionWindowMS() {
+		return duplicateSuppressionWindowMS;
+	}
+
+	public void setDuplicateSuppressionWindowMS(long duplicateSuppressionWindowMS) {
+		this.duplicateSuppressionWindowMS = duplicateSuppressionWindowMS;
+	}
+
+	public int getDuplicateSuppressionMaxKeys() {
+		return duplicateSuppressionMaxKeys;
+	}
+
+	public void setDuplicateSuppressionMaxKeys(int duplicateSuppressionMaxKeys) {
+		this.duplicateSuppressionMaxKeys = duplicateSuppressionMaxKeys;
+	}
+
+	public BatchCodec getBatchCodec() {
+		return batchCodec;
+	}
+
+	public void setBatchCodec(BatchCodec batchCodec) {
+		this.batchCodec = batchCodec;
+	}
+
+	public boolean isJsonKeyCodecs() {
+		return jsonKeyCodecs;
+	}
+
+	public void setJsonKeyCodecs(boolean jsonKeyCodecs) {
+		this.jsonKeyCodecs = jsonKeyCodecs;
+	}
+
+	/**
+	 * @return true if keys w/ a registered KeyCodec can be batched, i.e.
+	 * 	batchCodec is binary, or json and jsonKeyCodecs is enabled
+	 */
+	public boolean isKeyCodecBatching() {
+		return (batchCodec instanceof BinaryBatchCodec || (jsonKeyCodecs && batchCodec instanceof JsonBatchCodec));
+	}
+
+	public CompressionDictionary getCompressionDictionary() {
+		return compressionDictionary;
+	}
+
+	public void setCompressionDictionary(CompressionDictionary compressionDictionary) {
+		this.compressionDictionary = compressionDictionary;
+	}
+
+	public BatchTransport getBatchTransport() {
+		return batchTransport;
+	}
+
+	public void setBatchTransport(BatchTransport batchTransport) {
+		this.batchTransport = batchTransport;
+	}
+
+	public long getMaxMessageBytes() {
+		return maxMessageBytes;
+	}
+
+	public void setMaxMessageBytes(long maxMessageBytes) {
+		this.maxMessageBytes = maxMessageBytes;
+	}
+
+	public long getMultipartTimeoutMS() {
+		return multipartTimeoutMS;
+	}
+
+	public void setMultipartTimeoutMS(long multipartTimeoutMS) {
+		this.multipartTimeoutMS = multipartTimeoutMS;
+	}
+
+	public int getMultipartMaxTracked() {
+		return multipartMaxTracked;
+	}
+
+	public void setMultipartMaxTracked(int multipartMaxTracked) {
+		this.multipartMaxTracked = multipartMaxTracked;
+	}
+
+	public long getInboundDuplicateWindowMS() {
+		return inboundDuplicateWindowMS;
+	}
+
+	public void setInboundDuplicateWindowMS(long inboundDuplicateWindowMS) {
+		this.inboundDuplicateWindowMS = inboundDuplicateWindowMS;
+	}
+
+	public int getInboundDuplicateMaxTracked() {
+		return inboundDuplicateMaxTracked;
+	}
+
+	public void setInboundDuplicateMaxTracked(int inboundDuplicateMaxTracked) {
+		this.inboundDuplicateMaxTracked = inboundDuplicateMaxTracked;
+	}
+
+	public int getInboundApplyThreads() {
+		return inboundApplyThreads;
+	}
+
+	public void setInboundApplyThreads(int inboundApplyThreads) {
+		this.inboundApplyThreads = inboundApplyThreads;
+	}
+
+	public int getInboundDecodeThreads() {
+		return inboundDecodeThreads;
+	}
+
+	public void setInboundDecodeThreads(int inboundDecodeThreads) {
+		this.inboundDecodeThreads = inboundDecodeThreads;
+	}
+
+	public int getInboundQueueSize() {
+		return inboundQueueSize;
+	}
+
+	public void setInboundQueueSize(int inboundQueueSize) {
+		this.inboundQueueSize = inboundQueueSize;
+	}
+
+	public int getInboundApplyQueueSize() {
+		return inboundApplyQueueSize;
+	}
+
+	public void setInboundApplyQueueSize(int inboundApplyQueueSize) {
+		this.inboundApplyQueueSize = inboundApplyQueueSize;
+	}
+
+	public long getInboundCoalesceWindowMS() {
+		return inboundCoalesceWindowMS;
+	}
+
+	public void setInboundCoalesceWindowMS(long inboundCoalesceWindowMS) {
+		this.inboundCoalesceWindowMS = inboundCoalesceWindowMS;
+	}
+
+	public int getInboundCoalesceMaxKeys() {
+		return inboundCoalesceMaxKeys;
+	}
+
+	public void setInboundCoalesceMaxKeys(int inboundCoalesceMaxKeys) {
+		this.inboundCoalesceMaxKeys = inboundCoalesceMaxKeys;
+	}
+
+	public int getPublisherThreads() {
+		return publisherThreads;
+	}
+
+	public void setPublisherThreads(int publisherThreads) {
+		this.publisherThreads = publisherThreads;
+	}
+
+	public int getPublisherQueueSize() {
+		return publisherQueueSize;
+	}
+
+	public void setPublisherQueueSize(int publisherQueueSize) {
+		this.publisherQueueSize = publisherQueueSize;
+	}
+
+	public OverflowPolicy getPublisherOverflowPolicy() {
+		return publisherOverflowPolicy;
+	}
+
+	public void setPublisherOverflowPolicy(OverflowPolicy publisherOverflowPolicy) {
+		this.publisherOverflowPolicy = publisherOverflowPolicy;
+	}
+
+	public long getShutdownFlushTimeoutMS() {
+		return shutdownFlushTimeoutMS;
+	}
+
+	public void setShutdownFlushTimeoutMS(long shutdownFlushTimeoutMS) {
+		this.shutdownFlushTimeoutMS = shutdownFlushTimeoutMS;
+	}
+
+	public String toString() {
+		return defaultLane + 
+				", lanes=" + lanes.values() +
+				", duplicateSuppressionWindowMS=" + duplicateSuppressionWindowMS +
+				", duplicateSuppressionMaxKeys=" + duplicateSuppressionMaxKeys +
+				", batchCodec=" + batchCodec.getName() +
+				", jsonKeyCodecs=" + jsonKeyCodecs +
+				", compressionDictionary=" + compressionDictionary +
+				", batchTransport=" + batchTransport +
+				", maxMessageBytes=" + maxMessageBytes +
+				", multipartTimeoutMS=" + multipartTimeoutMS +
+				", multipartMaxTracked=" + multipartMaxTracked +
+				", inboundDuplicateWindowMS=" + inboundDuplicateWindowMS +
+				", inboundDuplicateMaxTracked=" + inboundDuplicateMaxTracked +
+				", inboundApplyThreads=" + inboundApplyThreads +
+				", inboundDecodeThreads=" + inboundDecodeThreads +
+				", inboundQueueSize=" + inboundQueueSize +
+				", inboundApplyQueueSize=" + inboundApplyQueueSize +
+				", inboundCoalesceWindowMS=" + inboundCoalesceWindowMS +
+				", inboundCoalesceMaxKeys=" + inboundCoalesceMaxKeys +
+				", publisherThreads=" + publisherThreads +
+				", publisherQueueSize=" + publisherQueueSize +
+				", publisherOverflowPolicy=" + publisherOverflowPolicy +
+				", shutdownFlushTimeoutMS=" + shutdownFlushTimeoutMS;
+	}
+
+}
@@ -32,14 +32,12 @@ public class BatchingJMSCacheManagerPeerProvider extends JMSCacheManagerPeerProv
 
 	private final Log LOG = LogFactory.getLog(getClass());
 	 
-	private long maxBatchQueuingTimeMS;
-	private int maxEventsPerBatch;
+	private BatchingConfig batchingConfig;
 	
 	/**
 	 * Constructor
 	 * 
-	 * @param maxBatchQueuingTimeMS
-	 * @param maxEventsPerBatch
+	 * @param batchingConfig
 	 * @param cacheManager
 	 * @param replicationTopicConnection
 	 * @param replicationTopic
@@ -48,8 +46,7 @@ public class BatchingJMSCacheManagerPeerProvider extends JMSCacheManagerPeerProv
 	 * @param acknowledgementMode
 	 * @param listenToTopic
 	 */
-	public BatchingJMSCacheManagerPeerProvider(long maxBatchQueuingTimeMS,
-												int maxEventsPerBatch,				
+	public BatchingJMSCacheManagerPeerProvider(BatchingConfig batchingConfig,
 												CacheManager cacheManager,
 												TopicConnection replicationTopicConnection, 
 												Topic replicationTopic,
@@ -61,8 +58,22 @@ public class BatchingJMSCacheManagerPeerProvider extends JMSCacheManagerPeerProv
 		super(cacheManager, replicationTopicConnection, replicationTopic,
 				getQueueConnection, getQueue, acknowledgementMode, listenToTopic);
 		
-		this.maxBatchQueuingTimeMS = maxBatchQueuingTimeMS;
-		this.maxEventsPerBatch = maxEventsPerBatch;
+		this.batchingConfig = batchingConfig;
+	}
+
+	
+	/**
+	 * Seal and publish whatever the BatchingJMSCachePeer has pending,
+	 * waiting at most the configured shutdownFlushTimeoutMS. Safe to call
+	 * more than once (i.e. from a shutdown hook and again from dispose())
+	 * 
+	 * @return number of events drained
+	 */
+	public int flushPendingBatches() {
+		if (cachePeer instanceof BatchingJMSCachePeer) {
+			return ((BatchingJMSCachePeer)cachePeer).flushPendingBatches(batchingConfig.getShutdownFlushTimeoutMS());
+		}
+		return 0;
 	}
 
 	
@@ -121,7 +132,7 @@ public class BatchingJMSCacheManagerPeerProvider extends JMSCacheManagerPeerProv
          * THIS LINE IS ALL THAT IS DIFFERENT
          * From Ehcache JMS Replication/distribution projects JMSCachePeer.java
          */
-        cachePeer = new BatchingJMSCachePeer(maxBatchQueuingTimeMS, maxEventsPerBatch, 
+        cachePeer = new BatchingJMSCachePeer(batchingConfig,
         		cacheManager, topicPublisher, topicPublisherSession, getQueueSession);
         /**
          * END DIFFERENCE
@@ -1,14 +1,27 @@
 package org.bitsofinfo.ehcache.jms.custom;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
-
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.jms.BytesMessage;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MessageProducer;
-import javax.jms.ObjectMessage;
 import javax.jms.QueueSession;
 import javax.jms.Session;
 import javax.jms.TextMessage;
@@ -19,8 +32,15 @@ import net.sf.ehcache.distribution.jms.JMSEventMessage;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchEventHandler;
 import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
 import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageUtil;
+import org.bitsofinfo.ehcache.jms.custom.batch.CacheKey;
+import org.bitsofinfo.ehcache.jms.custom.batch.InboundDuplicateFilter;
+import org.bitsofinfo.ehcache.jms.custom.batch.MultipartBatchTracker;
+import org.bitsofinfo.ehcache.jms.custom.batch.RecentInvalidationFilter;
+import org.bitsofinfo.ehcache.jms.custom.batch.ZlibPool;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BinaryReader;
 
 /**
  * Extension of JMSCachePeer that supports
@@ -28,12 +48,39 @@ import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageUtil;
  * extracting out the cacheName, key, action and 
  * storing them in a BatchedJMSEventMessage 
  * 
- * BatchedJMSEventMessages will queue qualifying events
- * until either the maxBatchQueuingTimeMS is reached OR
- * maxEventsPerBatch is met. These criteria are evaluate
- * in every invocation of send() in addition to a simple
- * background thread (BatchProcessingThread) which does
- * it asynchronously should there be no send() activity
+ * Qualifying events are routed, by cache name, to one of several
+ * BatchLanes each with their own accumulator and flush policy
+ * (maxBatchQueuingTimeMS, maxEventsPerBatch, maxBatchBytes, adaptive
+ * window) so latency critical caches don't wait behind bulk ones.
+ * Caches not mapped to a named lane go to the "default" lane 
+ * @see BatchLane
+ * 
+ * Optionally (duplicateSuppressionWindowMS) key removals that were 
+ * already published within the window are suppressed, followed by a
+ * single trailing invalidation once it closes @see RecentInvalidationFilter
+ * 
+ * Sealed batches are handed off to a BatchPublisher which 
+ * encodes/sends them on its own threads.
+ * 
+ * Inbound batches are stream decoded, each event is applied as soon
+ * as it is read @see BatchJMSEventMessageUtil.decode(), straight to the
+ * target caches w/ bulk removes @see BatchApplier, optionally
+ * one cache per thread (inboundApplyThreads) @see ParallelBatchApplier.
+ * Events for caches not created (yet) are skipped and counted w/o
+ * an exception per event @see CacheLookupTable
+ * 
+ * Optionally (inboundDecodeThreads) the listener thread only queues
+ * inbound batches, decoding/applying happen on stages of their own 
+ * @see InboundPipeline
+ * 
+ * Optionally (inboundCoalesceWindowMS) the batches received within a
+ * short window are merged per cache before being applied @see InboundCoalescer
+ * 
+ * Batches bigger than maxMessageBytes go out as multipart batches, 
+ * each part is applied on its own as it arrives @see MultipartBatchTracker
+ * 
+ * Redelivered inbound batches (same origin id + sequence) are dropped
+ * unread @see InboundDuplicateFilter
  * 
  * 
  * @author bitsofinfo.g[at]g mail com
@@ -43,50 +90,99 @@ public class BatchingJMSCachePeer extends JMSCachePeer {
 
 	private final Log LOG = LogFactory.getLog(getClass());
 
+	/*
+	 * maxBatchQueuingTimeMS, maxEventsPerBatch, maxBatchBytes etc
+	 * @see BatchingConfig
+	 */
+	private final BatchingConfig config;
+	
 	/**
-	 * The current BatchJMSEventMessage that is queued
-	 * IMPORTANT all access to this much be synchronized
-	 * using the batchLock
-	 * 
+	 * Encodes and sends sealed batches (of every lane) off of the caller's thread
 	 */
-	private BatchJMSEventMessage currentBatchJMSEventMessage = null;
-	private Object batchLock = new Object();
-
-	/*
-	 * The maximum time that a pending BatchJMSEventMessage can
-	 * sit waiting to be sent 
+	private final BatchPublisher publisher;
+	
+	/**
+	 * The lane taking every cache not explicitly mapped to another
 	 */
-	private long maxBatchQueuingTimeMS = 1000 * 30; // default 30s
-
-	/*
-	 * The maximum number of batched entries
-	 * that can exist in a BatchJMEEventMessage
-	 * 
-	 * Some tests: 
-	 * 	- Loaded up BatchJMSEventMessage with:
-	 * 		- 500 cacheNames to REMOVE_ALL
-	 * 		- 500 cacheName -> key ACTIONS
-	 * 		- both cacheNames and key names were ~144bytes each
-	 * 
-	 *  - total message size ~168k (json, compressed and b64 encoded)
-	 *  - AWS SNS/SQS size limit 256k, so 500 is safe default
-	 *  - Nevado JMS has about a 25% overhead @see http://nevado.skyscreamer.org/performance.html
+	private final BatchLane defaultLane;
+	
+	/**
+	 * All lanes, including the default one
 	 */
-	private int maxEventsPerBatch = 500; 
-
+	private final List<BatchLane> lanes = new ArrayList<BatchLane>();
+	
+	/**
+	 * cacheName -> lane for all caches mapped to a named lane
+	 */
+	private final Map<String,BatchLane> lanesByCacheName = new HashMap<String,BatchLane>();
+	
+	/**
+	 * Non null only when duplicateSuppressionWindowMS > 0
+	 */
+	private final RecentInvalidationFilter recentInvalidations;
+	private ScheduledFuture<?> recentInvalidationsSweeper = null;
+	
+	// held by a sweep, flushPendingBatches() waits for one in progress
+	private final Object sweepLock = new Object();
+	
+	/**
+	 * True if keys w/ a registered KeyCodec can be batched by our BatchCodec
+	 */
+	private final boolean keyCodecsSupported;
+	
+	/**
+	 * Inbound batches are applied directly to the caches looked up in here @see BatchApplier
+	 */
+	private final CacheLookupTable caches;
+	
+	/**
+	 * Non null only when inboundApplyThreads > 0 (and no inboundPipeline) @see ParallelBatchApplier
+	 */
+	private final ExecutorService inboundApplyPool;
+	
+	/**
+	 * Non null only when inboundDecodeThreads > 0 @see InboundPipeline
+	 */
+	private final InboundPipeline inboundPipeline;
+	
+	/**
+	 * Non null only when inboundCoalesceWindowMS > 0 @see InboundCoalescer
+	 */
+	private final InboundCoalescer inboundCoalescer;
+	
+	/**
+	 * Non null only when inboundDuplicateWindowMS > 0
+	 */
+	private final InboundDuplicateFilter inboundDuplicates;
+	
+	/**
+	 * Parts seen of inbound multipart batches
+	 */
+	private final MultipartBatchTracker multipartTracker;
+	
+	/**
+	 * Longest key/cache name an inbound batch may declare, maxMessageBytes
+	 * when set as a payload that size never carries a sane bigger one
+	 */
+	private final int inboundMaxValueBytes;
+	
+	// set once flushPendingBatches() has begun, events are no longer batched
+	private final AtomicBoolean batchingStopped = new AtomicBoolean(false);
+	
+	// held shared while send() batches an event, flushPendingBatches() 
+	// takes it exclusively to wait out those that missed batchingStopped
+	private final ReadWriteLock batchingLock = new ReentrantReadWriteLock();
 
 	/**
 	 * Constructor 
 	 * 
-	 * @param maxBatchQueuingTimeMS
-	 * @param maxEventsPerBatch
+	 * @param config
 	 * @param cacheManager
 	 * @param messageProducer
 	 * @param producerSession
 	 * @param getQueueSession
 	 */
-	public BatchingJMSCachePeer(long maxBatchQueuingTimeMS,
-								int maxEventsPerBatch,
+	public BatchingJMSCachePeer(BatchingConfig config,
 								CacheManager cacheManager,
 								MessageProducer messageProducer, 
 								Session producerSession,
@@ -94,18 +190,139 @@ public class BatchingJMSCachePeer extends JMSCachePeer {
 
 		super(cacheManager, messageProducer, producerSession, getQueueSession);
 		
-		// fire up the batch thread
-		BatchProcessingThread thread = new BatchProcessingThread();
-		thread.start();
+		this.config = config;
+		this.caches = new CacheLookupTable(cacheManager);
+		this.caches.register();
+		
+		this.publisher = new BatchPublisher(config.getPublisherThreads(), 
+											config.getPublisherQueueSize(), 
+											config.getPublisherOverflowPolicy(), 
+											config.getBatchCodec(), 
+											config.getCompressionDictionary(), 
+											config.getBatchTransport(), 
+											config.getMaxMessageBytes(), 
+											producerSession, 
+											messageProducer);
+		
+		this.keyCodecsSupported = config.isKeyCodecBatching();
+		this.inboundDuplicates = (config.getInboundDuplicateWindowMS() > 0 ? 
+				new InboundDuplicateFilter(config.getInboundDuplicateWindowMS(), config.getInboundDuplicateMaxTracked()) : null);
+		this.multipartTracker = new MultipartBatchTracker(config.getMultipartTimeoutMS(), config.getMultipartMaxTracked());
+		this.inboundMaxValueBytes = (config.getMaxMessageBytes() > 0 ? 
+				(int)Math.min(config.getMaxMessageBytes(), Integer.MAX_VALUE) : BinaryReader.DEFAULT_MAX_LENGTH);
+		
+		if (config.getInboundDecodeThreads() > 0) {
+			this.inboundPipeline = new InboundPipeline(caches, 
+														inboundMaxValueBytes, 
+														config.getInboundDecodeThreads(), 
+														config.getInboundApplyThreads(), 
+														config.getInboundQueueSize(), 
+														config.getInboundApplyQueueSize());
+			this.inboundApplyPool = null;
+			
+		} else if (config.getInboundApplyThreads() > 0) {
+			this.inboundPipeline = null;
+			this.inboundApplyPool = Executors.newFixedThreadPool(config.getInboundApplyThreads(), new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger(0);
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "BatchJMSEventMessage InboundApplyThread-" + count.incrementAndGet());
+					t.setDaemon(true);
+					t.setPriority(Thread.NORM_PRIORITY);
+					return t;
+				}
+			});
+		} else {
+			this.inboundPipeline = null;
+			this.inboundApplyPool = null;
+		}
+		
+		// built once whatever it applies through exists
+		if (config.getInboundCoalesceWindowMS() > 0) {
+			BatchApplierFactory appliers = inboundPipeline;
+			if (appliers == null) {
+				appliers = new BatchApplierFactory() {
+					public BatchApplier newApplier() {
+						return newBatchApplier();
+					}
+				};
+			}
+			this.inboundCoalescer = new InboundCoalescer(config.getInboundCoalesceWindowMS(), 
+														 config.getInboundCoalesceMaxKeys(), 
+														 appliers);
+			if (inboundPipeline != null) {
+				inboundPipeline.setCoalescer(inboundCoalescer);
+			}
+			inboundCoalescer.start();
+		} else {
+			this.inboundCoalescer = null;
+		}
+		
+		BatchFlushScheduler.acquire();
+		
+		if (config.getDuplicateSuppressionWindowMS() > 0) {
+			this.recentInvalidations = new RecentInvalidationFilter(config.getDuplicateSuppressionWindowMS(), 
+																	config.getDuplicateSuppressionMaxKeys());
+			this.recentInvalidationsSweeper = BatchFlushScheduler.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					synchronized(sweepLock) {
+						if (!batchingStopped.get()) {
+							enqueueTrailingInvalidations(false);
+						}
+					}
+				}
+			}, Math.max(10, config.getDuplicateSuppressionWindowMS() / 2));
+		} else {
+			this.recentInvalidations = null;
+		}
+		
+		this.defaultLane = new BatchLane(config.getDefaultLane(), publisher, recentInvalidations);
+		this.lanes.add(defaultLane);
+		
+		for (BatchLaneConfig laneConfig : config.getLanes()) {
+			BatchLane lane = new BatchLane(laneConfig, publisher, recentInvalidations);
+			this.lanes.add(lane);
+			for (String cacheName : laneConfig.getCacheNames()) {
+				this.lanesByCacheName.put(cacheName, lane);
+			}
+		}
 	}
-
-	private BatchJMSEventMessage getBatchJMSEventMessage() {
-		synchronized(batchLock) {
-			if (this.currentBatchJMSEventMessage == null) {
-				LOG.debug("getBatchJMSEventMessage() creating new BatchJMSEventMessage for queueing");
-				this.currentBatchJMSEventMessage = new BatchJMSEventMessage();
+	
+	/**
+	 * @param cacheName
+	 * @return the lane events for cacheName are batched in
+	 */
+	private BatchLane getLane(String cacheName) {
+		BatchLane lane = lanesByCacheName.get(cacheName);
+		return (lane != null ? lane : defaultLane);
+	}
+	
+	/**
+	 * Re-queue the trailing invalidation of every key that was suppressed
+	 * during a now closed suppression window
+	 * 
+	 * @param force true to do so for all suppressed keys, even if their window is still open
+	 */
+	private void enqueueTrailingInvalidations(boolean force) {
+		try {
+			List<CacheKey> trailing = recentInvalidations.sweep(force);
+			
+			for (CacheKey cacheKey : trailing) {
+				BatchJMSEventMessage batch = getLane(cacheKey.getCacheName())
+						.addTrailingInvalidation(cacheKey.getCacheName(), cacheKey.getKey());
+				
+				// lots of them? don't wait for the timer, but don't wait on the
+				// publisher either, the sweeper runs on the shared scheduler
+				if (batch != null && !force) {
+					publisher.handOff(batch);
+				}
+			}
+			
+			if (trailing.size() > 0) {
+				LOG.debug("enqueueTrailingInvalidations() queued " + trailing.size() + " trailing invalidations");
 			}
-			return this.currentBatchJMSEventMessage;
+			
+		} catch(Throwable e) {
+			LOG.error("enqueueTrailingInvalidations() error: " + e.getMessage(), e);
 		}
 	}
 
@@ -128,72 +345,45 @@ public class BatchingJMSCachePeer extends JMSCachePeer {
 			// if the event is a JMSEventMessage we need
 			// to evaluate it for batching eligibility
 			if (eventMessage instanceof JMSEventMessage) {
+				batchingLock.readLock().lock();
 				try {
 
 					JMSEventMessage jem = (JMSEventMessage)eventMessage;
 
+					// once we are shutting down, nothing new is batched, it goes
+					// out individually for as long as the producer remains open
+					if (batchingStopped.get()) {
+						LOG.debug("send() batching stopped, sending JMSEventMessage["+jem.getEvent()+"] unbatched");
+						
+					// a key-remove for a hot key that already went out within the suppression window,
+					// skip it, a trailing invalidation will go out once the window closes
+					} else if (recentInvalidations != null && 
+							jem.getEvent() == JMSEventMessage.REMOVE &&
+							BatchJMSEventMessage.keyIsCompatible(jem, keyCodecsSupported) &&
+							recentInvalidations.suppress(jem.getCacheName(), jem.getSerializableKey())) {
+						
+						LOG.debug("send() JMSEventMessage["+jem.getEvent()+"] published within the last " 
+								+ recentInvalidations.getWindowMS() + "MS, suppressing");
+						eventMessage = null;
+						
 					// if REMOVE_ALL (for entire cache name) OR a key-remove (and key is Batch message compatible)
 					// only then can we proceed 
-					if (jem.getEvent() == JMSEventMessage.REMOVE_ALL ||
+					} else if (jem.getEvent() == JMSEventMessage.REMOVE_ALL ||
 							(jem.getEvent() == JMSEventMessage.REMOVE && 
-							BatchJMSEventMessage.keyIsCompatible(jem))) {
+							BatchJMSEventMessage.keyIsCompatible(jem, keyCodecsSupported))) {
 
 						LOG.debug("send() JMSEventMessage["+jem.getEvent()+"] is batchable... evaluating...:");
 
-						// synchronize on batch lock
-						synchronized(batchLock) {
-
-							BatchJMSEventMessage batchJMSEventMessage = getBatchJMSEventMessage();
-
-							if (jem.getEvent() == JMSEventMessage.REMOVE_ALL) {
-								batchJMSEventMessage.addRemovalAllCacheName(jem.getCacheName());
-
-								// deal w/ just REMOVE
-							} else {
-								batchJMSEventMessage.addCacheEvent(jem.getCacheName(), jem.getSerializableKey(),  jem.getEvent());
-							}
-
-							/**
-							 * OK, if the max events has been reached
-							 * OR we are past the max queueing time
-							 * 	- a) set the current "eventMessage" = the batch one
-							 *  - b) nullify the currentBatchJMSEventMessage so next invocation
-							 *  	 will create a new one
-							 */
-
-							long totalQueuedTimeMS = (System.currentTimeMillis() - batchJMSEventMessage.getCreatedAt().getTime());
-
-							// past MAX events?
-							if (batchJMSEventMessage.getTotalEvents() >= this.maxEventsPerBatch) {
-								LOG.debug("send() sending BatchJMSEventMessage w/ "
-										+ batchJMSEventMessage.getTotalEvents() + " events, which is >= max:" + this.maxEventsPerBatch);
-								eventMessage = batchJMSEventMessage;
-								this.currentBatchJMSEventMessage = null;
-
-
-								// have we been queueing the Batch message past the max time?
-							} else if (totalQueuedTimeMS > this.maxBatchQueuingTimeMS) {
-								LOG.debug("send() sending BatchJMSEventMessage w/ "
-										+ batchJMSEventMessage.getTotalEvents() + " events, who's queued" +
-										" time ["+totalQueuedTimeMS+"MS] is > max queueing time of " + maxBatchQueuingTimeMS+"MS");
-										eventMessage = batchJMSEventMessage;
-										this.currentBatchJMSEventMessage = null;
-
-							} else {
-
-								LOG.debug("send() BatchJMSEventMessage will remain in queue... neither max events or max queue time has been reached");
-
-								// nullify the eventMessage which will prevent anything
-								// from being sent right now.....
-								eventMessage = null;
-							}
-
-						}
+						// the lane returns a sealed batch if this event made it due, otherwise 
+						// null which will prevent anything from being sent right now.....
+						eventMessage = getLane(jem.getCacheName()).add(jem);
 					}
 
 				} catch(Throwable e) {
 					LOG.error("send() unexpected error in" +
 							" BatchJMSEventMessage processing..." + e.getMessage(),e);
+				} finally {
+					batchingLock.readLock().unlock();
 				}
 			}
 
@@ -203,25 +393,22 @@ public class BatchingJMSCachePeer extends JMSCachePeer {
 			// if JMSEventMessage send it as an ObjectMessage
 			if (eventMessage instanceof JMSEventMessage) {	
 				try {
-					ObjectMessage message = producerSession.createObjectMessage((JMSEventMessage) eventMessage);
-					messageProducer.send(message);
+					publisher.sendObjectMessage((JMSEventMessage) eventMessage);
 				} catch (JMSException e) {
 					LOG.error(e.getMessage(), e);
 					throw new RemoteException(e.getMessage());
 				}
 
-				// if a BatchJMSEventMessage.... send that (as a simpler TextMessage)
+				// if a BatchJMSEventMessage.... hand it off to the publisher 
+				// which will send it (as a simpler Text/BytesMessage) asynchronously
 			} else if (eventMessage instanceof BatchJMSEventMessage) {
 
 				try {
-					// convert to our string format for the payload
-					String batchPayload = BatchJMSEventMessageUtil.toString((BatchJMSEventMessage)eventMessage);
-
-					TextMessage message = producerSession.createTextMessage(batchPayload);
-					messageProducer.send(message);
+					publisher.publish((BatchJMSEventMessage)eventMessage);
 
-				} catch (Exception e) {
-					LOG.error("send() ERROR marshalling BatchJMSEventMessage! " + e.getMessage(), e);
+				} catch (InterruptedException e) {
+					LOG.error("send() interrupted handing off BatchJMSEventMessage to publisher! " + e.getMessage(), e);
+					Thread.currentThread().interrupt();
 					throw new RemoteException(e.getMessage());
 				}
 
@@ -242,149 +429,350 @@ public class BatchingJMSCachePeer extends JMSCachePeer {
 	@Override
 	public void onMessage(Message message) {
 
-		// we need to evaluate the body to see if it
-		// is actually a BatchJMSEventMessage
-		if (message instanceof TextMessage) {
-
-			try {
+		// decoded events are either coalesced or applied right away
+		BatchApplier applier = (inboundCoalescer == null ? newBatchApplier() : null);
+		BatchEventHandler handler = (applier != null ? applier : inboundCoalescer);
+		
+		try {
+			// a redelivered batch, drop it before its payload is even read
+			if (isDuplicate(message)) {
+				return;
+			}
+			
+			// we need to evaluate the body to see if it
+			// is actually a BatchJMSEventMessage
+			if (message instanceof TextMessage) {
+				
 				TextMessage textMessage = (TextMessage)message;
 				String payloadText = textMessage.getText();
 
 				// inspect the TextMessage, is it a BatchJMSEventMessage inside?
+				// if so each event is applied as soon as it is decoded
 				if (BatchJMSEventMessageUtil.isBatchJMSEventMessage(payloadText)) {
-
-					// lets unmarshal it, then extract expand individual JMSEventMessages from it
-					BatchJMSEventMessage batchMessage = BatchJMSEventMessageUtil.fromString(payloadText);
-					Set<JMSEventMessage> convertedMsgs = BatchJMSEventMessageUtil.toJMSEventMessages(batchMessage);
-
-					// for each expanded message, super onMessage()
-					// using a dummy ObjectMessage carrier
-					// we do this because certain methods in JMSCachePeer are private
-					// and we can't override them/call them....
-					for (JMSEventMessage msg : convertedMsgs) {
-						try {
-							super.onMessage(new JMSEventMessageCarrier(msg));
-							
-						} catch(Exception e) {
-							
-							// these might be common depending where the current app
-							// is with regards to what caches are created yet in the app state
-							/**
-							 * Warn only on these:
-							 * net.sf.ehcache.distribution.jms.InvalidJMSMessageException: No cache named 
-							 * XXXXX in the target CacheManager.
-							 **/
-							if (e.getMessage().indexOf("No cache named") != -1) {
-								
-								// no exception log
-								LOG.warn("Error attempting to evaluate inbound " +
-									"TextMessage converting payload to BatchJMSEventMessage?: " + e.getMessage());
-								
-								
-							} else {
-								// with exception log
-								LOG.error("Error attempting to evaluate inbound " +
-									"TextMessage converting payload to BatchJMSEventMessage?: " + e.getMessage(), e);
-							}
-							
-							// continue forward we don't want ONE JMSEventMessage that fails 
-							// blowing up the entire list we need to process
-							continue;
-						}
+					if (isNewPart(message) && !handOff(null, payloadText)) {
+						BatchJMSEventMessageUtil.decode(payloadText, inboundMaxValueBytes, handler);
 					}
-
-
-					// not a batch msg
-				} else {
-					super.onMessage(message);
+					return;
 				}
-
-			} catch(Throwable e) {
-				// these might be common depending where the current app
-				// is with regards to what caches are created yet in the app state
-				if (e.getMessage().indexOf("No cache named") != -1) {
-					
-					// no exception log
-					LOG.warn("Error attempting to evaluate inbound " +
-						"TextMessage converting payload to BatchJMSEventMessage?: " + e.getMessage());
-					
-				} else {
-					// with exception log
-					LOG.error("Error attempting to evaluate inbound " +
-						"TextMessage converting payload to BatchJMSEventMessage?: " + e.getMessage(), e);
+				
+			// a BytesMessage batch (BatchTransport.BYTES), its envelope is in a property
+			} else if (message instanceof BytesMessage && 
+					message.propertyExists(BatchJMSEventMessageUtil.BATCH_ENVELOPE_PROPERTY)) {
+				
+				BytesMessage bytesMessage = (BytesMessage)message;
+				if (!isNewPart(message)) {
+					return;
+				}
+				
+				String envelope = bytesMessage.getStringProperty(BatchJMSEventMessageUtil.BATCH_ENVELOPE_PROPERTY);
+				if (inboundPipeline != null) {
+					// the message is not ours to read once onMessage() returns
+					byte[] body = new byte[(int)bytesMessage.getBodyLength()];
+					bytesMessage.readBytes(body);
+					if (!handOff(envelope, body)) {
+						BatchJMSEventMessageUtil.decode(envelope, new ByteArrayInputStream(body), inboundMaxValueBytes, handler);
+					}
+					return;
 				}
+				BatchJMSEventMessageUtil.decode(envelope, new BytesMessageInputStream(bytesMessage), inboundMaxValueBytes, handler);
+				return;
+			}
+			
+			// not a batch msg, but if it names a cache we know doesn't exist, don't 
+			// have JMSCachePeer build/log an InvalidJMSMessageException for it
+			if (message.propertyExists(JMSEventMessage.CACHE_NAME_PROPERTY) &&
+					caches.get(message.getStringProperty(JMSEventMessage.CACHE_NAME_PROPERTY)) == null) {
+				caches.skipped(1);
+				return;
+			}
+			
+		} catch(Throwable e) {
+			LOG.error("Error attempting to evaluate inbound " +
+					"Message decoding BatchJMSEventMessage" + (applier != null ? " (after decoding " + 
+					(applier.getApplied() + applier.getSkipped() + applier.getFailed()) + " events)" : "") + "?: " + e.getMessage(), e);
+			return;
+			
+		} finally {
+			// apply whatever was decoded (up to a failure)
+			if (applier != null) {
+				applier.finish();
 			}
-
-
-		} else {
-			super.onMessage(message);
 		}
-
+		
+		// not a batch msg
+		super.onMessage(message);
+	}
+	
+	/**
+	 * @return an applier for one batch, applying it on the calling thread 
+	 * 	or, w/ inboundApplyThreads, in parallel on the inboundApplyPool
+	 */
+	private BatchApplier newBatchApplier() {
+		return (inboundApplyPool != null ? 
+				new ParallelBatchApplier(caches, inboundApplyPool) : new BatchApplier(caches));
+	}
+	
+	/**
+	 * Queue a batch payload to the inboundPipeline, if there is one
+	 * 
+	 * @param envelope the batchEnvelope of a BytesMessage batch, null for a TextMessage one
+	 * @param payload the text of a TextMessage batch or the body of a BytesMessage one
+	 * @return false if the caller must decode/apply the batch itself
+	 */
+	private boolean handOff(String envelope, Object payload) {
+		if (inboundPipeline == null) {
+			return false;
+		}
+		try {
+			return inboundPipeline.receive(envelope, payload);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+	
+	/**
+	 * @param message
+	 * @return true if the message is a batch whose stamp (origin id + sequence) was already seen
+	 * @throws JMSException
+	 */
+	private boolean isDuplicate(Message message) throws JMSException {
+		if (inboundDuplicates == null || !message.propertyExists(BatchJMSEventMessageUtil.BATCH_ORIGIN_PROPERTY)) {
+			return false;
+		}
+		
+		String origin = message.getStringProperty(BatchJMSEventMessageUtil.BATCH_ORIGIN_PROPERTY);
+		long sequence = message.getLongProperty(BatchJMSEventMessageUtil.BATCH_SEQUENCE_PROPERTY);
+		
+		if (!inboundDuplicates.firstDelivery(origin, sequence)) {
+			LOG.debug("onMessage() batch " + origin + "#" + sequence + " already applied within the last " 
+					+ inboundDuplicates.getWindowMS() + "MS, dropping duplicate");
+			return true;
+		}
+		return false;
 	}
 	
 	/**
-	 * Invoked by the BatchProcessingThread
+	 * Every part of a multipart batch is a complete batch, applied as it arrives
 	 * 
+	 * @param message
+	 * @return false if the message is a part of a multipart batch that was already applied
+	 * @throws JMSException
 	 */
-	private void batchedMessageSender() {
-		while(true) {
+	private boolean isNewPart(Message message) throws JMSException {
+		if (!message.propertyExists(BatchJMSEventMessageUtil.BATCH_ID_PROPERTY)) {
+			return true;
+		}
+		
+		String batchId = message.getStringProperty(BatchJMSEventMessageUtil.BATCH_ID_PROPERTY);
+		int part = message.getIntProperty(BatchJMSEventMessageUtil.BATCH_PART_PROPERTY);
+		int parts = message.getIntProperty(BatchJMSEventMessageUtil.BATCH_PARTS_PROPERTY);
+		
+		if (!multipartTracker.onPart(batchId, part, parts)) {
+			LOG.debug("onMessage() part " + part + " of multipart batch " + batchId + " already applied, skipping");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads the body of a BytesMessage as a stream
+	 */
+	private static final class BytesMessageInputStream extends InputStream {
+		
+		private final BytesMessage message;
+		
+		private BytesMessageInputStream(BytesMessage message) {
+			this.message = message;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return (read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF);
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
 			try {
-				// sleep 
-				Thread.currentThread().sleep(this.maxBatchQueuingTimeMS);
-				
-				BatchJMSEventMessage toSend = null;
+				if (off == 0) {
+					return message.readBytes(b, len);
+				}
+				byte[] chunk = new byte[len];
+				int count = message.readBytes(chunk, len);
+				if (count > 0) {
+					System.arraycopy(chunk, 0, b, off, count);
+				}
+				return count;
 				
-				synchronized(batchLock) {
-					BatchJMSEventMessage toEval = getBatchJMSEventMessage();
+			} catch(JMSException e) {
+				throw new IOException("Error reading BytesMessage body: " + e.getMessage(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Ordered shutdown of batching, invoked before any JMS resources
+	 * are closed so nothing pending is silently lost (i.e. rolling deploys)
+	 * 
+	 * 	1) stop accepting events into batches
+	 * 	2) disarm the lanes' flush timers and the suppression sweeper, and
+	 * 	   wait for the send()s still batching, so only we seal from here on
+	 * 	3) seal everything pending and hand it to the publisher
+	 * 	4) give the publisher until the timeout to send all of it
+	 * 
+	 * Only the first invocation does anything
+	 * 
+	 * @param timeoutMS upper bound on the whole operation
+	 * @return number of events drained (sealed) from the lanes
+	 */
+	public int flushPendingBatches(long timeoutMS) {
+		
+		if (!batchingStopped.compareAndSet(false, true)) {
+			return 0;
+		}
+		
+		long start = System.currentTimeMillis();
+		long deadline = start + timeoutMS;
+		
+		int eventsDrained = 0;
+		int batchesDrained = 0;
+		int batchesAbandoned = 0;
+		
+		for (BatchLane lane : lanes) {
+			lane.dispose();
+		}
+		
+		// we can't wait for suppression windows to close
+		if (recentInvalidations != null) {
+			if (recentInvalidationsSweeper != null) {
+				recentInvalidationsSweeper.cancel(false);
+			}
+			synchronized(sweepLock) {
+				enqueueTrailingInvalidations(true);
+			}
+		}
+		
+		try {
+			if (batchingLock.writeLock().tryLock(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+				batchingLock.writeLock().unlock();
+			}
+			
+			publisher.stopAccepting(deadline - System.currentTimeMillis());
+			
+			for (BatchLane lane : lanes) {
+				while (lane.getPendingEvents() > 0 && System.currentTimeMillis() < deadline) {
 					
-					long totalQueuedTimeMS = (System.currentTimeMillis() - toEval.getCreatedAt().getTime());
-
-					if (toEval.getTotalEvents() > 0 && totalQueuedTimeMS > this.maxBatchQueuingTimeMS) {
-						
-						LOG.debug("batchedMessageSender() sending BatchJMSEventMessage w/ "
-								+ toEval.getTotalEvents() + " events, who's queued" +
-								" time ["+totalQueuedTimeMS+"MS] is > max queueing time of " + maxBatchQueuingTimeMS+"MS");
-								
-						toSend = toEval;
-						this.currentBatchJMSEventMessage = null;
+					BatchJMSEventMessage batch = lane.seal();
+					
+					// a send() we gave up waiting on is mid-seal, its batch
+					// goes through publish(), which offers it as we do
+					if (batch == null) {
+						Thread.sleep(1);
+						continue;
+					}
+					
+					if (publisher.offerForShutdown(batch, deadline - System.currentTimeMillis())) {
+						eventsDrained += batch.getTotalEvents();
+						batchesDrained++;
+					} else {
+						batchesAbandoned++;
 					}
 				}
-				
-				// send it!
-				if (toSend != null) {
-					List msgs = new ArrayList<BatchJMSEventMessage>();
-					msgs.add(toSend);
-					this.send(msgs);
-				}
-				
-				
-			} catch(Throwable e) {
-				LOG.error("batchedMessageSender() error: " + e.getMessage(), e);
 			}
+			
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		int eventsAbandoned = 0;
+		for (BatchLane lane : lanes) {
+			eventsAbandoned += lane.getPendingEvents();
 		}
+		batchesAbandoned += publisher.shutdown(deadline - System.currentTimeMillis());
+		
+		String report = "flushPendingBatches() drained " + eventsDrained + " events in " + batchesDrained 
+				+ " batches in " + (System.currentTimeMillis() - start) + "ms";
+		
+		if (batchesAbandoned > 0 || eventsAbandoned > 0) {
+			LOG.warn(report + ", timeout of " + timeoutMS + "ms reached, ABANDONED " 
+				+ batchesAbandoned + " batches and " + eventsAbandoned + " unsealed events");
+		} else {
+			LOG.info(report);
+		}
+		
+		return eventsDrained;
 	}
-
+	
 	/**
-	 * Dumb/simple internal thread that will force send() 
-	 * the currentBatchJMSEventMessage if its been sitting
-	 * here longer than its max queuing time
-	 *
+	 * Flushes any pending batches then stops the flush timers and publisher 
+	 * before the JMS session/producer they use are closed by JMSCachePeer
 	 */
-	private final class BatchProcessingThread extends Thread {
-
-		/**
-		 * Contructs a new replication daemon thread with normal priority.
-		 */
-		public BatchProcessingThread() {
-			super("BatchJMSEventMessage ProcessingThread");
-			setDaemon(true);
-			setPriority(Thread.NORM_PRIORITY);
+	@Override
+	public void dispose() throws JMSException {
+		// also disarms the lanes and the suppression sweeper
+		flushPendingBatches(config.getShutdownFlushTimeoutMS());
+		BatchFlushScheduler.release();
+		
+		// the pipeline flushes the coalescer once its decoders are done
+		if (inboundPipeline != null) {
+			inboundPipeline.shutdown(config.getShutdownFlushTimeoutMS());
+		} else if (inboundCoalescer != null) {
+			inboundCoalescer.shutdown(config.getShutdownFlushTimeoutMS());
 		}
-
-		@Override
-		public void run() {
-			batchedMessageSender();
+		if (inboundApplyPool != null) {
+			inboundApplyPool.shutdown();
 		}
+		caches.unregister();
+		
+		// release the native memory of idle (de)compressors
+		ZlibPool.clear();
+		super.dispose();
+	}
+	
+	/**
+	 * @return the stage publishing sealed batches, exposed for its counters
+	 */
+	public BatchPublisher getPublisher() {
+		return publisher;
+	}
+	
+	/**
+	 * @return the inbound pipeline, exposed for its queue depths and timings, null if disabled
+	 */
+	public InboundPipeline getInboundPipeline() {
+		return inboundPipeline;
+	}
+	
+	/**
+	 * @return the inbound coalescer, exposed for its counters, null if disabled
+	 */
+	public InboundCoalescer getInboundCoalescer() {
+		return inboundCoalescer;
+	}
+	
+	/**
+	 * @return the inbound cache lookup table, exposed for its counters
+	 */
+	public CacheLookupTable getCacheLookupTable() {
+		return caches;
+	}
+	
+	/**
+	 * @return the filter of redelivered inbound batches, exposed for its counters, null if disabled
+	 */
+	public InboundDuplicateFilter getInboundDuplicateFilter() {
+		return inboundDuplicates;
+	}
+	
+	/**
+	 * @return the tracker of inbound multipart batches, exposed for its counters
+	 */
+	public MultipartBatchTracker getMultipartTracker() {
+		return multipartTracker;
 	}
 
 }
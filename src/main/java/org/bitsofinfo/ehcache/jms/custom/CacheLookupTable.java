@@ -0,0 +1,144 @@
+package org.bitsofinfo.ehcache.jms.custom;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Status;
+import net.sf.ehcache.event.CacheManagerEventListener;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Name -> Ehcache lookup for inbound events, w/ negative entries
+ * for names the CacheManager has no cache for (yet)
+ *
+ * Inbound events commonly reference caches the local app has not created
+ * yet (i.e. during warm-up), looking those up every time and reporting
+ * them per event is pointless. An unknown name is warned about once and
+ * from then on its events are skipped (and counted) w/ a single map lookup.
+ *
+ * Existing caches are never held on to, every lookup goes to the
+ * CacheManager: CacheManager.replaceCacheWithDecoratedCache() swaps
+ * the Ehcache behind a name without firing any event, a cached
+ * positive entry would keep applying removals to the replaced one.
+ *
+ * Negative entries are dropped as the CacheManager adds/removes caches,
+ * so the next lookup resolves them again. Thread safe
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class CacheLookupTable implements CacheManagerEventListener {
+
+	private final Log LOG = LogFactory.getLog(getClass());
+
+	// the value of a negative entry, ConcurrentHashMap takes no nulls
+	private static final Object NO_CACHE = new Object();
+
+	private final CacheManager cacheManager;
+
+	// cacheName -> NO_CACHE, names known to have no cache
+	private final ConcurrentHashMap<String,Object> unknownCaches = new ConcurrentHashMap<String,Object>();
+
+	// bumped on every cache added/removed, so a lookup racing w/ one never leaves a stale entry
+	private final AtomicLong generation = new AtomicLong(0);
+
+	private final AtomicLong eventsSkipped = new AtomicLong(0);
+
+	/**
+	 * @param cacheManager
+	 */
+	public CacheLookupTable(CacheManager cacheManager) {
+		this.cacheManager = cacheManager;
+	}
+
+	/**
+	 * Start following the caches the CacheManager adds/removes
+	 */
+	public void register() {
+		cacheManager.getCacheManagerEventListenerRegistry().registerListener(this);
+	}
+
+	public void unregister() {
+		cacheManager.getCacheManagerEventListenerRegistry().unregisterListener(this);
+		unknownCaches.clear();
+	}
+
+	/**
+	 * @param cacheName
+	 * @return the cache, null if the CacheManager has no such cache
+	 */
+	public Ehcache get(String cacheName) {
+		if (unknownCaches.containsKey(cacheName)) {
+			return null;
+		}
+
+		long resolvedAt = generation.get();
+		Ehcache cache = cacheManager.getEhcache(cacheName);
+		if (cache != null) {
+			return cache;
+		}
+
+		if (unknownCaches.putIfAbsent(cacheName, NO_CACHE) == null) {
+			// these might be common depending where the current app
+			// is with regards to what caches are created yet in the app state
+			LOG.warn("No cache named " + cacheName + " in the target CacheManager, skipping its inbound events until it is created");
+		}
+
+		// a cache was added/removed meanwhile, don't trust what we just stored
+		if (generation.get() != resolvedAt) {
+			unknownCaches.remove(cacheName);
+		}
+		return null;
+	}
+
+	/**
+	 * Count events skipped because their cache does not exist
+	 *
+	 * @param events
+	 */
+	public void skipped(int events) {
+		eventsSkipped.addAndGet(events);
+	}
+
+	public void notifyCacheAdded(String cacheName) {
+		generation.incrementAndGet();
+		unknownCaches.remove(cacheName);
+	}
+
+	public void notifyCacheRemoved(String cacheName) {
+		generation.incrementAndGet();
+		unknownCaches.remove(cacheName);
+	}
+
+	public void init() throws CacheException {
+		// nothing to do
+	}
+
+	public Status getStatus() {
+		return Status.STATUS_ALIVE;
+	}
+
+	public void dispose() throws CacheException {
+		unknownCaches.clear();
+	}
+
+	/**
+	 * @return number of inbound events skipped because their cache does not exist
+	 */
+	public long getEventsSkipped() {
+		return eventsSkipped.get();
+	}
+
+	/**
+	 * @return number of names currently known to have no cache
+	 */
+	public int getUnknownCacheNames() {
+		return unknownCaches.size();
+	}
+
+}
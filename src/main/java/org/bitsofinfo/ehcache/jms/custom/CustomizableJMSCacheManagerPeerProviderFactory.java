@@ -18,6 +18,14 @@ import net.sf.ehcache.distribution.jms.AcknowledgementMode;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.bitsofinfo.ehcache.jms.custom.BatchPublisher.BatchTransport;
+import org.bitsofinfo.ehcache.jms.custom.BatchPublisher.OverflowPolicy;
+import org.bitsofinfo.ehcache.jms.custom.batch.CompressionDictionaryRegistry;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodec;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodecRegistry;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.EnumKeyCodec;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.KeyCodec;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.KeyCodecRegistry;
 
 
 /**
@@ -81,8 +89,8 @@ public class CustomizableJMSCacheManagerPeerProviderFactory extends CacheManager
 				LOG.error("createCachePeerProvider() 'maxBatchQueuingTimeMS' is REQUIRED");
 			}
 			
-			if (isBlank(props.getProperty("maxEventsPerBatch"))) {
-				LOG.error("createCachePeerProvider() 'maxEventsPerBatch' is REQUIRED");
+			if (isBlank(props.getProperty("maxEventsPerBatch")) && isBlank(props.getProperty("maxBatchBytes"))) {
+				LOG.error("createCachePeerProvider() 'maxEventsPerBatch' and/or 'maxBatchBytes' is REQUIRED");
 			}
 
 
@@ -111,8 +119,154 @@ public class CustomizableJMSCacheManagerPeerProviderFactory extends CacheManager
 			String messageSelector = props.getProperty("messageSelector");
 			String ignoreMessagePropName = props.getProperty("ignoreMessagePropName");
 			String ignoreMessagePropVal = props.getProperty("ignoreMessagePropVal");
-			Long maxBatchQueuingTimeMS = Long.valueOf(props.getProperty("maxBatchQueuingTimeMS"));
-			Integer maxEventsPerBatch = Integer.valueOf(props.getProperty("maxEventsPerBatch"));
+			
+			BatchingConfig batchingConfig = new BatchingConfig();
+			batchingConfig.setMaxBatchQueuingTimeMS(Long.valueOf(props.getProperty("maxBatchQueuingTimeMS").trim()));
+			
+			// when only a byte budget is given, let it alone decide when a batch is full
+			batchingConfig.setMaxEventsPerBatch(Integer.MAX_VALUE);
+			if (!isBlank(props.getProperty("maxEventsPerBatch"))) {
+				batchingConfig.setMaxEventsPerBatch(Integer.valueOf(props.getProperty("maxEventsPerBatch").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("maxBatchBytes"))) {
+				batchingConfig.setMaxBatchBytes(Long.valueOf(props.getProperty("maxBatchBytes").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("adaptiveBatchQueuingTime"))) {
+				batchingConfig.setAdaptiveBatchQueuingTime(Boolean.valueOf(props.getProperty("adaptiveBatchQueuingTime").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("minBatchQueuingTimeMS"))) {
+				batchingConfig.setMinBatchQueuingTimeMS(Long.valueOf(props.getProperty("minBatchQueuingTimeMS").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("adaptiveSaturationEventsPerSec"))) {
+				batchingConfig.setAdaptiveSaturationEventsPerSec(Double.valueOf(props.getProperty("adaptiveSaturationEventsPerSec").trim()));
+			}
+			
+			// named lanes, anything they don't set is inherited from the default lane above
+			Map<String,Map<String,String>> laneProps = expandLaneProperties(props, "lanes");
+			for (String laneName : laneProps.keySet()) {
+				BatchLaneConfig lane = createLaneConfig(laneName, laneProps.get(laneName), batchingConfig.getDefaultLane());
+				if (lane != null) {
+					batchingConfig.addLane(lane);
+				}
+			}
+			
+			if (!isBlank(props.getProperty("duplicateSuppressionWindowMS"))) {
+				batchingConfig.setDuplicateSuppressionWindowMS(Long.valueOf(props.getProperty("duplicateSuppressionWindowMS").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("duplicateSuppressionMaxKeys"))) {
+				batchingConfig.setDuplicateSuppressionMaxKeys(Integer.valueOf(props.getProperty("duplicateSuppressionMaxKeys").trim()));
+			}
+			
+			// custom KeyCodecs, registered before anything is sent or received
+			Map<String,String> keyCodecs = expandDotNotationProperty(props, "keyCodecs");
+			for (String typeTag : keyCodecs.keySet()) {
+				registerKeyCodec(typeTag, keyCodecs.get(typeTag).trim());
+			}
+			
+			if (!isBlank(props.getProperty("batchCodec"))) {
+				BatchCodec batchCodec = createBatchCodec(props.getProperty("batchCodec").trim());
+				if (batchCodec != null) {
+					batchingConfig.setBatchCodec(batchCodec);
+				}
+			}
+			
+			if (!isBlank(props.getProperty("jsonKeyCodecs"))) {
+				batchingConfig.setJsonKeyCodecs(Boolean.valueOf(props.getProperty("jsonKeyCodecs").trim()));
+			}
+			
+			// every dictionary inbound batches may reference, regardless of which (if any) we send w/
+			Map<String,String> compressionDictionaries = expandDotNotationProperty(props, "compressionDictionaries");
+			for (String dictionaryId : compressionDictionaries.keySet()) {
+				try {
+					LOG.info("createCachePeerProvider() loaded CompressionDictionary " + 
+						CompressionDictionaryRegistry.load(dictionaryId, compressionDictionaries.get(dictionaryId).trim()));
+				} catch(Exception e) {
+					LOG.error("createCachePeerProvider() error loading CompressionDictionary " + dictionaryId, e);
+				}
+			}
+			
+			if (!isBlank(props.getProperty("compressionDictionary"))) {
+				String dictionaryId = props.getProperty("compressionDictionary").trim();
+				if (CompressionDictionaryRegistry.get(dictionaryId) != null) {
+					batchingConfig.setCompressionDictionary(CompressionDictionaryRegistry.get(dictionaryId));
+				} else {
+					LOG.error("createCachePeerProvider() 'compressionDictionary' " + dictionaryId + 
+						" is not defined via compressionDictionaries." + dictionaryId + ", compressing without one");
+				}
+			}
+			
+			if (!isBlank(props.getProperty("batchTransport"))) {
+				batchingConfig.setBatchTransport(
+						BatchTransport.valueOf(props.getProperty("batchTransport").trim().toUpperCase()));
+			}
+			
+			if (!isBlank(props.getProperty("maxMessageBytes"))) {
+				batchingConfig.setMaxMessageBytes(Long.valueOf(props.getProperty("maxMessageBytes").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("multipartTimeoutMS"))) {
+				batchingConfig.setMultipartTimeoutMS(Long.valueOf(props.getProperty("multipartTimeoutMS").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("multipartMaxTracked"))) {
+				batchingConfig.setMultipartMaxTracked(Integer.valueOf(props.getProperty("multipartMaxTracked").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("inboundDuplicateWindowMS"))) {
+				batchingConfig.setInboundDuplicateWindowMS(Long.valueOf(props.getProperty("inboundDuplicateWindowMS").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("inboundDuplicateMaxTracked"))) {
+				batchingConfig.setInboundDuplicateMaxTracked(Integer.valueOf(props.getProperty("inboundDuplicateMaxTracked").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("inboundApplyThreads"))) {
+				batchingConfig.setInboundApplyThreads(Integer.valueOf(props.getProperty("inboundApplyThreads").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("inboundDecodeThreads"))) {
+				batchingConfig.setInboundDecodeThreads(Integer.valueOf(props.getProperty("inboundDecodeThreads").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("inboundQueueSize"))) {
+				batchingConfig.setInboundQueueSize(Integer.valueOf(props.getProperty("inboundQueueSize").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("inboundApplyQueueSize"))) {
+				batchingConfig.setInboundApplyQueueSize(Integer.valueOf(props.getProperty("inboundApplyQueueSize").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("inboundCoalesceWindowMS"))) {
+				batchingConfig.setInboundCoalesceWindowMS(Long.valueOf(props.getProperty("inboundCoalesceWindowMS").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("inboundCoalesceMaxKeys"))) {
+				batchingConfig.setInboundCoalesceMaxKeys(Integer.valueOf(props.getProperty("inboundCoalesceMaxKeys").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("publisherThreads"))) {
+				batchingConfig.setPublisherThreads(Integer.valueOf(props.getProperty("publisherThreads").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("publisherQueueSize"))) {
+				batchingConfig.setPublisherQueueSize(Integer.valueOf(props.getProperty("publisherQueueSize").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("shutdownFlushTimeoutMS"))) {
+				batchingConfig.setShutdownFlushTimeoutMS(Long.valueOf(props.getProperty("shutdownFlushTimeoutMS").trim()));
+			}
+			
+			if (!isBlank(props.getProperty("publisherOverflowPolicy"))) {
+				batchingConfig.setPublisherOverflowPolicy(
+						OverflowPolicy.valueOf(props.getProperty("publisherOverflowPolicy").trim().toUpperCase()));
+			}
+			
+			LOG.info("createCachePeerProvider() batching config: " + batchingConfig);
 
 			
 			
@@ -138,11 +292,8 @@ public class CustomizableJMSCacheManagerPeerProviderFactory extends CacheManager
 			}
 			
 			
-			// register shutdown thread for cleanup
-			Runtime.getRuntime().addShutdownHook(new JMSCleanupShutdownHook(topicConnection,getReplyQueueConnection));
-			
-			return new BatchingJMSCacheManagerPeerProvider(maxBatchQueuingTimeMS,
-														   maxEventsPerBatch,
+			BatchingJMSCacheManagerPeerProvider provider = 
+					new BatchingJMSCacheManagerPeerProvider(batchingConfig,
 														   cacheManager, 
 														   topicConnectionProxy, 
 														   topic, 
@@ -151,6 +302,11 @@ public class CustomizableJMSCacheManagerPeerProviderFactory extends CacheManager
 														   AcknowledgementMode.AUTO_ACKNOWLEDGE, 
 														   true);
 			
+			// register shutdown thread for cleanup
+			Runtime.getRuntime().addShutdownHook(new JMSCleanupShutdownHook(provider,topicConnection,getReplyQueueConnection));
+			
+			return provider;
+			
 		} catch(Exception e) {
 			LOG.error("createCachePeerProvider() unexpected error: " + e.getMessage(), e);
 			return null;
@@ -178,6 +334,139 @@ public class CustomizableJMSCacheManagerPeerProviderFactory extends CacheManager
 			return map;
 		}
 	
+	/**
+	 * @param nameOrClass name of a registered BatchCodec, or the class 
+	 * 	name of a custom one which is then registered
+	 * @return the codec, null if it could not be found/created
+	 */
+	private BatchCodec createBatchCodec(String nameOrClass) {
+		
+		BatchCodec codec = BatchCodecRegistry.getByName(nameOrClass);
+		if (codec != null) {
+			return codec;
+		}
+		
+		try {
+			codec = (BatchCodec)ClassLoading.loadClass(nameOrClass).newInstance();
+			BatchCodecRegistry.register(codec);
+			return codec;
+			
+		} catch(Exception e) {
+			LOG.error("createCachePeerProvider() 'batchCodec' " + nameOrClass + 
+					" is not a registered BatchCodec name or class, using the default", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * @param typeTag
+	 * @param className a KeyCodec w/ a no-arg constructor, or an enum
+	 * 	(bound to its own EnumKeyCodec under typeTag)
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	private void registerKeyCodec(String typeTag, String className) {
+		try {
+			Class clazz = ClassLoading.loadClass(className);
+			
+			KeyCodec codec = null;
+			if (clazz.isEnum()) {
+				codec = new EnumKeyCodec(typeTag, clazz);
+			} else {
+				codec = (KeyCodec)clazz.newInstance();
+				if (!typeTag.equals(codec.getTypeTag())) {
+					LOG.error("createCachePeerProvider() 'keyCodecs." + typeTag + "' " + className + 
+							" has typeTag '" + codec.getTypeTag() + "', not registering it");
+					return;
+				}
+			}
+			
+			KeyCodecRegistry.register(codec);
+			LOG.info("createCachePeerProvider() registered KeyCodec " + typeTag + "=" + className);
+			
+		} catch(Exception e) {
+			LOG.error("createCachePeerProvider() 'keyCodecs." + typeTag + "' " + className + 
+					" is not a KeyCodec or enum class", e);
+		}
+	}
+	
+	/**
+	 * Collects propName.[name].[property]=value properties
+	 * 
+	 * @param props
+	 * @param propName
+	 * @return name -> (property -> value)
+	 */
+	private Map<String,Map<String,String>> expandLaneProperties(Properties props, String propName) {
+		
+		Map<String,Map<String,String>> map = new TreeMap<String,Map<String,String>>();
+		for (Map.Entry<Object,Object> val : props.entrySet()) {
+			String[] parts = val.getKey().toString().split("\\.");
+			if (parts.length == 3 && parts[0].equals(propName)) {
+				Map<String,String> laneProps = map.get(parts[1]);
+				if (laneProps == null) {
+					laneProps = new TreeMap<String,String>(String.CASE_INSENSITIVE_ORDER);
+					map.put(parts[1], laneProps);
+				}
+				laneProps.put(parts[2], val.getValue().toString().trim());
+			}
+		}
+		return map;
+	}
+	
+	/**
+	 * @param laneName
+	 * @param laneProps property -> value for lanes.[laneName].[property]
+	 * @param defaultLane lane to inherit unset properties from
+	 * @return the lane, null if it is invalid
+	 */
+	private BatchLaneConfig createLaneConfig(String laneName, Map<String,String> laneProps, BatchLaneConfig defaultLane) {
+		
+		if (BatchLaneConfig.DEFAULT_LANE.equals(laneName)) {
+			LOG.error("createCachePeerProvider() lane name '" + laneName + "' is reserved, use the top level properties");
+			return null;
+		}
+		
+		if (isBlank(laneProps.get("caches"))) {
+			LOG.error("createCachePeerProvider() lanes." + laneName + ".caches is REQUIRED, ignoring lane");
+			return null;
+		}
+		
+		BatchLaneConfig lane = new BatchLaneConfig(laneName, defaultLane);
+		
+		// pipe delimited, as commas separate the properties themselves
+		for (String cacheName : laneProps.get("caches").split("\\|")) {
+			if (!isBlank(cacheName)) {
+				lane.addCacheName(cacheName.trim());
+			}
+		}
+		
+		if (!isBlank(laneProps.get("maxBatchQueuingTimeMS"))) {
+			lane.setMaxBatchQueuingTimeMS(Long.valueOf(laneProps.get("maxBatchQueuingTimeMS")));
+		}
+		
+		if (!isBlank(laneProps.get("maxEventsPerBatch"))) {
+			lane.setMaxEventsPerBatch(Integer.valueOf(laneProps.get("maxEventsPerBatch")));
+		}
+		
+		if (!isBlank(laneProps.get("maxBatchBytes"))) {
+			lane.setMaxBatchBytes(Long.valueOf(laneProps.get("maxBatchBytes")));
+		}
+		
+		if (!isBlank(laneProps.get("adaptiveBatchQueuingTime"))) {
+			lane.setAdaptiveBatchQueuingTime(Boolean.valueOf(laneProps.get("adaptiveBatchQueuingTime")));
+		}
+		
+		if (!isBlank(laneProps.get("minBatchQueuingTimeMS"))) {
+			lane.setMinBatchQueuingTimeMS(Long.valueOf(laneProps.get("minBatchQueuingTimeMS")));
+		}
+		
+		if (!isBlank(laneProps.get("adaptiveSaturationEventsPerSec"))) {
+			lane.setAdaptiveSaturationEventsPerSec(Double.valueOf(laneProps.get("adaptiveSaturationEventsPerSec")));
+		}
+		
+		return lane;
+	}
+	
 	private boolean isBlank(String str) {
 		return str == null || str.trim().length() == 0;
 	}
@@ -186,17 +475,28 @@ public class CustomizableJMSCacheManagerPeerProviderFactory extends CacheManager
 		
 		private final Log LOG = LogFactory.getLog(getClass());
 		
+		private BatchingJMSCacheManagerPeerProvider provider = null;
 		private TopicConnection topicConn = null;
 		private QueueConnection queueConn = null;
 
-		public JMSCleanupShutdownHook(TopicConnection topicConn, QueueConnection queueConn) {
+		public JMSCleanupShutdownHook(BatchingJMSCacheManagerPeerProvider provider, 
+									  TopicConnection topicConn, QueueConnection queueConn) {
 			super();
+			this.provider = provider;
 			this.topicConn = topicConn;
 			this.queueConn = queueConn;
 		}
 		
 	    public void run() {
 	      LOG.info("JMSCleanupShutdownHook: Thread initiated.");
+	      
+	      // publish anything still batched BEFORE the connections go away
+	      try {
+	    	  provider.flushPendingBatches();
+	      } catch(Throwable e) {
+	    	  LOG.warn("JMSCleanupShutdownHook provider.flushPendingBatches() : " + e.getMessage());
+	      }
+	      
 	      try {
 	    	  topicConn.close();
 	      } catch(Throwable e) {
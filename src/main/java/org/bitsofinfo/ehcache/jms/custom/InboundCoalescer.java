@@ -0,0 +1,333 @@
+package org.bitsofinfo.ehcache.jms.custom;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchEventHandler;
+import org.bitsofinfo.ehcache.jms.custom.batch.LongRangeSet;
+
+/**
+ * Merges the inbound batches received within a short window into a
+ * single deduplicated set of removals per cache before applying them
+ * (i.e. a hub receiving overlapping batches for the same hot keys from
+ * several DCs)
+ *
+ * 	- a key pending for a cache is applied once no matter how many
+ * 	  batches carried it
+ *
+ * 	- a REMOVE_ALL subsumes every key pending for its cache (and any
+ * 	  arriving after it within the window), repeated REMOVE_ALLs are
+ * 	  applied once
+ *
+ * 	- Integer/Long keys (ranges of them in particular) are held as a
+ * 	  LongRangeSet per cache and handed to the applier as ranges, a run
+ * 	  of sequential ids counts as a single key towards maxKeys
+ *
+ * Deferring and reordering within the window is safe as every batch
+ * event is a removal: applying it later, or merged, removes no less.
+ *
+ * flush() applies everything pending through a new BatchApplier (from
+ * the BatchApplierFactory given, i.e. the InboundPipeline), every
+ * windowMS on a thread of its own once start()ed, or right away on the
+ * thread that makes the pending keys reach maxKeys. Thread safe
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class InboundCoalescer implements BatchEventHandler {
+
+	private final Log LOG = LogFactory.getLog(getClass());
+
+	private final long windowMS;
+	private final int maxKeys;
+	private final BatchApplierFactory appliers;
+
+	// cacheName -> what is pending for it, guarded by this
+	private Map<String,PendingCache> pending = new LinkedHashMap<String,PendingCache>();
+	private int pendingKeys = 0;
+
+	private final AtomicLong batchesCoalesced = new AtomicLong(0);
+	private final AtomicLong eventsReceived = new AtomicLong(0);
+	private final AtomicLong eventsMerged = new AtomicLong(0);
+	private final AtomicLong eventsApplied = new AtomicLong(0);
+	private final AtomicLong flushes = new AtomicLong(0);
+
+	private ScheduledExecutorService flusher = null;
+
+	/**
+	 * @param windowMS how often flush() is invoked
+	 * @param maxKeys max keys (or runs of int/long keys) pending before they are flushed early
+	 * @param appliers source of the applier each flush applies the coalesced events through
+	 */
+	public InboundCoalescer(long windowMS, int maxKeys, BatchApplierFactory appliers) {
+		this.windowMS = windowMS;
+		this.maxKeys = Math.max(1, maxKeys);
+		this.appliers = appliers;
+	}
+
+	/**
+	 * Start flushing every windowMS
+	 */
+	public synchronized void start() {
+		if (flusher != null) {
+			return;
+		}
+		flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BatchJMSEventMessage InboundCoalescer");
+				t.setDaemon(true);
+				t.setPriority(Thread.NORM_PRIORITY);
+				return t;
+			}
+		});
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					flush();
+				} catch(Throwable e) {
+					LOG.error("flush() unexpected error: " + e.getMessage(), e);
+				}
+			}
+		}, windowMS, windowMS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the periodic flushes, wait for one in progress to complete
+	 * and flush what is still pending
+	 *
+	 * @param timeoutMS max time to wait for a periodic flush in progress
+	 * @return number of events handed off by the final flush
+	 */
+	public int shutdown(long timeoutMS) {
+		ScheduledExecutorService flusher;
+		synchronized(this) {
+			flusher = this.flusher;
+			this.flusher = null;
+		}
+		if (flusher != null) {
+			flusher.shutdown();
+			try {
+				if (!flusher.awaitTermination(Math.max(1, timeoutMS), TimeUnit.MILLISECONDS)) {
+					LOG.warn("shutdown() periodic flush still running after " + timeoutMS + "ms, flushing what is pending regardless");
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return flush();
+	}
+
+	public void onBatch(long createdAt) {
+		batchesCoalesced.incrementAndGet();
+	}
+
+	public void onRemoveAll(String cacheName) {
+		eventsReceived.incrementAndGet();
+		synchronized(this) {
+			PendingCache cache = getPending(cacheName);
+			if (cache.removeAll) {
+				eventsMerged.incrementAndGet();
+				return;
+			}
+			cache.removeAll = true;
+			eventsMerged.addAndGet(cache.getKeyCount());
+			pendingKeys -= cache.getPendingKeys();
+			cache.keys.clear();
+			cache.ints = null;
+			cache.longs = null;
+		}
+	}
+
+	public void onRemove(String cacheName, Serializable key) {
+		if (key instanceof Integer || key instanceof Long) {
+			long value = ((Number)key).longValue();
+			onRemoveRange(cacheName, value, value, key instanceof Integer);
+			return;
+		}
+
+		eventsReceived.incrementAndGet();
+		synchronized(this) {
+			PendingCache cache = getPending(cacheName);
+			if (cache.removeAll || !cache.keys.add(key)) {
+				eventsMerged.incrementAndGet();
+				return;
+			}
+			if (++pendingKeys < maxKeys) {
+				return;
+			}
+		}
+		LOG.debug("onRemove() " + maxKeys + " coalesced keys pending, flushing early");
+		flush();
+	}
+
+	public void onRemoveRange(String cacheName, long first, long last, boolean integerKeys) {
+		long events = last - first + 1;
+		eventsReceived.addAndGet(events);
+		synchronized(this) {
+			PendingCache cache = getPending(cacheName);
+			if (cache.removeAll) {
+				eventsMerged.addAndGet(events);
+				return;
+			}
+			LongRangeSet ranges = cache.getRanges(integerKeys);
+			int rangeCount = ranges.getRangeCount();
+			eventsMerged.addAndGet(events - ranges.addRange(first, last));
+			// joining runs may lower it
+			pendingKeys += ranges.getRangeCount() - rangeCount;
+			if (pendingKeys < maxKeys) {
+				return;
+			}
+		}
+		LOG.debug("onRemoveRange() " + maxKeys + " coalesced keys pending, flushing early");
+		flush();
+	}
+
+	private PendingCache getPending(String cacheName) {
+		PendingCache cache = pending.get(cacheName);
+		if (cache == null) {
+			cache = new PendingCache();
+			pending.put(cacheName, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Apply everything pending, one REMOVE_ALL or one bulk removal
+	 * of its keys (and int/long ranges) per cache. Depending on the applier they may still be
+	 * being applied when this returns, getEventsApplied() counts them
+	 * as they complete
+	 *
+	 * @return number of events handed off to the applier
+	 */
+	public int flush() {
+		Map<String,PendingCache> flushing;
+		synchronized(this) {
+			if (pending.isEmpty()) {
+				return 0;
+			}
+			flushing = pending;
+			pending = new LinkedHashMap<String,PendingCache>();
+			pendingKeys = 0;
+		}
+
+		BatchApplier applier = appliers.newApplier();
+		applier.setAppliedCounter(eventsApplied);
+		int events = 0;
+		try {
+			for (Map.Entry<String,PendingCache> entry : flushing.entrySet()) {
+				if (entry.getValue().removeAll) {
+					applier.onRemoveAll(entry.getKey());
+					events++;
+					continue;
+				}
+				for (Serializable key : entry.getValue().keys) {
+					applier.onRemove(entry.getKey(), key);
+					events++;
+				}
+				events += applyRanges(applier, entry.getKey(), entry.getValue().ints, true);
+				events += applyRanges(applier, entry.getKey(), entry.getValue().longs, false);
+			}
+
+		} catch(Throwable e) {
+			LOG.error("flush() error applying coalesced inbound events: " + e.getMessage(), e);
+
+		} finally {
+			applier.finish();
+		}
+
+		flushes.incrementAndGet();
+		return events;
+	}
+
+	/**
+	 * @return number of keys in the ranges
+	 */
+	private int applyRanges(BatchApplier applier, String cacheName, LongRangeSet ranges, boolean integerKeys) {
+		if (ranges == null) {
+			return 0;
+		}
+		for (int i = 0; i < ranges.getRangeCount(); i++) {
+			applier.onRemoveRange(cacheName, ranges.getFirst(i), ranges.getLast(i), integerKeys);
+		}
+		return (int)ranges.size();
+	}
+
+	public long getWindowMS() {
+		return windowMS;
+	}
+
+	public synchronized int getPendingKeys() {
+		return pendingKeys;
+	}
+
+	public long getBatchesCoalesced() {
+		return batchesCoalesced.get();
+	}
+
+	public long getEventsReceived() {
+		return eventsReceived.get();
+	}
+
+	/**
+	 * @return number of events dropped as already pending or subsumed by a REMOVE_ALL
+	 */
+	public long getEventsMerged() {
+		return eventsMerged.get();
+	}
+
+	/**
+	 * @return number of events whose removal has completed
+	 */
+	public long getEventsApplied() {
+		return eventsApplied.get();
+	}
+
+	public long getFlushes() {
+		return flushes.get();
+	}
+
+	/**
+	 * What is pending for one cache
+	 */
+	private static final class PendingCache {
+
+		private boolean removeAll = false;
+		private final Set<Serializable> keys = new LinkedHashSet<Serializable>();
+
+		// Integer and Long keys, null until there is one
+		private LongRangeSet ints = null;
+		private LongRangeSet longs = null;
+
+		private LongRangeSet getRanges(boolean integerKeys) {
+			if (integerKeys) {
+				return (ints != null ? ints : (ints = new LongRangeSet()));
+			}
+			return (longs != null ? longs : (longs = new LongRangeSet()));
+		}
+
+		/**
+		 * @return what counts towards maxKeys, a key or a run of int/long keys each
+		 */
+		private int getPendingKeys() {
+			return keys.size() + (ints != null ? ints.getRangeCount() : 0) + (longs != null ? longs.getRangeCount() : 0);
+		}
+
+		/**
+		 * @return number of keys pending
+		 */
+		private long getKeyCount() {
+			return keys.size() + (ints != null ? ints.size() : 0) + (longs != null ? longs.size() : 0);
+		}
+	}
+
+}
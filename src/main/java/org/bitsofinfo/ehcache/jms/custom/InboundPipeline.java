@@ -0,0 +1,459 @@
+package org.bitsofinfo.ehcache.jms.custom;
+
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.sf.ehcache.Ehcache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchEventHandler;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageUtil;
+
+/**
+ * Takes the decoding and applying of inbound batches off of the JMS
+ * listener thread (i.e. Nevado's SQS receive loop) in three stages:
+ *
+ * 	1) receive: the listener thread only queues the raw payload, blocking
+ * 	   only while the decode queue (queueSize) is full
+ *
+ * 	2) decode: decodeThreads decompress/decode batches into units of work
+ * 	   (a REMOVE_ALL or a chunk of up to APPLY_CHUNK_SIZE keys of a cache)
+ * 	   @see BatchApplier
+ *
+ * 	3) apply: applyThreads each own a share of the caches (by name) and
+ * 	   apply their units in order, each w/ its own bounded queue
+ * 	   (applyQueueSize), a full one blocks the decoder feeding it
+ *
+ * So the listener keeps receiving at its own pace until the stages
+ * behind it are saturated, and then slows down to their pace rather
+ * than buffering without bound. w/ more than one decode thread batches
+ * may apply out of order, harmless as every batch event is a removal.
+ *
+ * Optionally decoded batches are fed to an InboundCoalescer instead
+ * (@see setCoalescer()), whose flushes then go through the apply stage
+ * as it is the coalescer's BatchApplierFactory @see newApplier()
+ *
+ * Queued batches are already acknowledged, whatever is queued when the
+ * process dies is lost, shutdown() drains the queues.
+ *
+ * Queue depths and cumulative stage timings are exposed for monitoring.
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class InboundPipeline implements BatchApplierFactory {
+
+	private final Log LOG = LogFactory.getLog(getClass());
+
+	/**
+	 * How often a receive() waiting for room in the decode queue
+	 * checks whether the pipeline is being shut down
+	 */
+	public static final long RECEIVE_RECHECK_MS = 100;
+
+	private final CacheLookupTable caches;
+
+	// non null if decoded batches are coalesced rather than applied right away
+	private volatile InboundCoalescer coalescer = null;
+
+	// longest value (key, cache name) a batch may declare
+	private final int maxValueBytes;
+
+	private final BlockingQueue<InboundBatch> decodeQueue;
+	private final List<Thread> decodeThreads = new ArrayList<Thread>();
+	private final List<ApplyThread> applyThreads = new ArrayList<ApplyThread>();
+
+	// cleared by shutdown(), receive() refuses batches from then on
+	private volatile boolean receiving = true;
+
+	// held shared by receive() from its check of receiving until it has queued
+	// the batch, shutdown() takes it exclusively to wait those out
+	private final ReadWriteLock receiveLock = new ReentrantReadWriteLock();
+
+	// cleared by shutdown(), the threads of each stage exit once their queues are empty
+	private volatile boolean decodeRunning = true;
+	private volatile boolean applyRunning = true;
+
+	private final AtomicLong batchesReceived = new AtomicLong(0);
+	private final AtomicLong batchesDecoded = new AtomicLong(0);
+	private final AtomicLong unitsApplied = new AtomicLong(0);
+	private final AtomicLong receiveBlockedNanos = new AtomicLong(0);
+	private final AtomicLong decodeQueuedNanos = new AtomicLong(0);
+	private final AtomicLong decodeNanos = new AtomicLong(0);
+	private final AtomicLong applyBlockedNanos = new AtomicLong(0);
+	private final AtomicLong applyNanos = new AtomicLong(0);
+
+	/**
+	 * @param caches the caches batches are applied to
+	 * @param maxValueBytes longest value (key, cache name) a batch may declare
+	 * @param decodeThreads
+	 * @param applyThreads
+	 * @param queueSize max batches waiting to be decoded
+	 * @param applyQueueSize max units waiting per apply thread
+	 */
+	public InboundPipeline(CacheLookupTable caches, int maxValueBytes, 
+							int decodeThreads, int applyThreads, int queueSize, int applyQueueSize) {
+		this.caches = caches;
+		this.maxValueBytes = maxValueBytes;
+		this.decodeQueue = new ArrayBlockingQueue<InboundBatch>(Math.max(1, queueSize));
+
+		for (int i=0; i<Math.max(1, applyThreads); i++) {
+			ApplyThread thread = new ApplyThread(i, Math.max(1, applyQueueSize));
+			this.applyThreads.add(thread);
+			thread.start();
+		}
+
+		for (int i=0; i<Math.max(1, decodeThreads); i++) {
+			Thread thread = new DecodeThread(i);
+			this.decodeThreads.add(thread);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Feed decoded batches to the coalescer rather than applying them right
+	 * away, set before the first receive(). The coalescer should apply its
+	 * flushes through us (@see newApplier()), shutdown() flushes it once
+	 * the decoders are done and before the apply stage stops
+	 *
+	 * @param coalescer
+	 */
+	public void setCoalescer(InboundCoalescer coalescer) {
+		this.coalescer = coalescer;
+	}
+
+	/**
+	 * Queue a batch for decoding, blocking while the decode queue is full
+	 * (until the pipeline is shut down)
+	 *
+	 * @param envelope the batchEnvelope of a BytesMessage batch, null for a TextMessage one
+	 * @param payload the text of a TextMessage batch or the body of a BytesMessage one
+	 * @return false if the pipeline is shut down, the caller has to apply the batch itself
+	 * @throws InterruptedException
+	 */
+	public boolean receive(String envelope, Object payload) throws InterruptedException {
+		receiveLock.readLock().lock();
+		try {
+			if (!receiving) {
+				return false;
+			}
+
+			InboundBatch batch = new InboundBatch(envelope, payload);
+			if (!decodeQueue.offer(batch)) {
+				LOG.debug("receive() decode queue full, blocking until there is room");
+				long start = System.nanoTime();
+				try {
+					while (!decodeQueue.offer(batch, RECEIVE_RECHECK_MS, TimeUnit.MILLISECONDS)) {
+						if (!receiving) {
+							return false;
+						}
+					}
+				} finally {
+					receiveBlockedNanos.addAndGet(System.nanoTime() - start);
+				}
+			}
+			batchesReceived.incrementAndGet();
+			return true;
+
+		} finally {
+			receiveLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Stop accepting batches and give the stages until the timeout
+	 * to drain their queues, whatever is left after that is dropped
+	 *
+	 * @param timeoutMS
+	 * @return number of batches and units dropped
+	 */
+	public int shutdown(long timeoutMS) {
+		long deadline = System.currentTimeMillis() + timeoutMS;
+
+		// a receive() under way queues its batch or gives up within RECEIVE_RECHECK_MS,
+		// only then may the decoders stop once the queue is empty
+		receiving = false;
+		receiveLock.writeLock().lock();
+		receiveLock.writeLock().unlock();
+
+		decodeRunning = false;
+		join(decodeThreads, deadline);
+
+		// its final flush still goes through the apply stage
+		InboundCoalescer coalescer = this.coalescer;
+		if (coalescer != null) {
+			coalescer.shutdown(Math.max(1, deadline - System.currentTimeMillis()));
+		}
+
+		applyRunning = false;
+		join(applyThreads, deadline);
+
+		int dropped = getDecodeQueueDepth() + getApplyQueueDepth();
+		if (dropped > 0) {
+			LOG.warn("shutdown() timeout of " + timeoutMS + "ms reached, DROPPING " + getDecodeQueueDepth()
+					+ " undecoded batches and " + getApplyQueueDepth() + " unapplied units");
+		}
+		for (Thread thread : decodeThreads) {
+			thread.interrupt();
+		}
+		for (Thread thread : applyThreads) {
+			thread.interrupt();
+		}
+		return dropped;
+	}
+
+	private void join(List<? extends Thread> threads, long deadline) {
+		try {
+			for (Thread thread : threads) {
+				thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void decode(InboundBatch batch) {
+		decodeQueuedNanos.addAndGet(System.nanoTime() - batch.receivedAt);
+
+		InboundCoalescer coalescer = this.coalescer;
+		PipelineApplier applier = (coalescer == null ? new PipelineApplier() : null);
+		BatchEventHandler handler = (applier != null ? applier : coalescer);
+		long start = System.nanoTime();
+		try {
+			if (batch.envelope == null) {
+				BatchJMSEventMessageUtil.decode((String)batch.payload, maxValueBytes, handler);
+			} else {
+				BatchJMSEventMessageUtil.decode(batch.envelope, new ByteArrayInputStream((byte[])batch.payload), maxValueBytes, handler);
+			}
+
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+
+		} catch(Throwable e) {
+			LOG.error("Error decoding inbound BatchJMSEventMessage: " + e.getMessage(), e);
+
+		} finally {
+			// hand off whatever was decoded (up to a failure)
+			long blockedNanos = 0;
+			if (applier != null) {
+				applier.finish();
+				blockedNanos = applier.blockedNanos;
+			}
+			decodeNanos.addAndGet(System.nanoTime() - start - blockedNanos);
+			batchesDecoded.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return an applier handing its units to the apply threads, or applying
+	 * 	them itself once the apply stage is shut down (i.e. a late coalescer flush)
+	 */
+	public BatchApplier newApplier() {
+		return (applyRunning ? new PipelineApplier() : new BatchApplier(caches));
+	}
+
+	/**
+	 * @return the apply thread owning cacheName
+	 */
+	private ApplyThread applyThreadFor(String cacheName) {
+		return applyThreads.get((cacheName.hashCode() & Integer.MAX_VALUE) % applyThreads.size());
+	}
+
+	/**
+	 * @return number of batches waiting to be decoded
+	 */
+	public int getDecodeQueueDepth() {
+		return decodeQueue.size();
+	}
+
+	/**
+	 * @return number of units waiting to be applied, over all apply threads
+	 */
+	public int getApplyQueueDepth() {
+		int depth = 0;
+		for (ApplyThread thread : applyThreads) {
+			depth += thread.units.size();
+		}
+		return depth;
+	}
+
+	public long getBatchesReceived() {
+		return batchesReceived.get();
+	}
+
+	public long getBatchesDecoded() {
+		return batchesDecoded.get();
+	}
+
+	public long getUnitsApplied() {
+		return unitsApplied.get();
+	}
+
+	/**
+	 * @return total time the listener thread was blocked on a full decode queue
+	 */
+	public long getReceiveBlockedMS() {
+		return TimeUnit.NANOSECONDS.toMillis(receiveBlockedNanos.get());
+	}
+
+	/**
+	 * @return total time batches waited to be decoded
+	 */
+	public long getDecodeQueuedMS() {
+		return TimeUnit.NANOSECONDS.toMillis(decodeQueuedNanos.get());
+	}
+
+	/**
+	 * @return total time spent decoding, excluding time blocked on full apply queues
+	 */
+	public long getDecodeMS() {
+		return TimeUnit.NANOSECONDS.toMillis(decodeNanos.get());
+	}
+
+	/**
+	 * @return total time decoders were blocked on full apply queues
+	 */
+	public long getApplyBlockedMS() {
+		return TimeUnit.NANOSECONDS.toMillis(applyBlockedNanos.get());
+	}
+
+	/**
+	 * @return total time spent applying
+	 */
+	public long getApplyMS() {
+		return TimeUnit.NANOSECONDS.toMillis(applyNanos.get());
+	}
+
+	/**
+	 * A received batch's raw payload
+	 */
+	private static final class InboundBatch {
+
+		private final String envelope;
+		private final Object payload;
+		private final long receivedAt = System.nanoTime();
+
+		private InboundBatch(String envelope, Object payload) {
+			this.envelope = envelope;
+			this.payload = payload;
+		}
+	}
+
+	/**
+	 * A unit of work of a batch, for one cache
+	 */
+	private static final class ApplyUnit {
+
+		private final PipelineApplier applier;
+		private final String cacheName;
+		private final Ehcache cache;
+		private final List<Serializable> keys;
+
+		private ApplyUnit(PipelineApplier applier, String cacheName, Ehcache cache, List<Serializable> keys) {
+			this.applier = applier;
+			this.cacheName = cacheName;
+			this.cache = cache;
+			this.keys = keys;
+		}
+	}
+
+	/**
+	 * BatchApplier of one batch that queues its units to the apply
+	 * thread owning their cache rather than applying them
+	 */
+	private final class PipelineApplier extends BatchApplier {
+
+		// time spent blocked on full apply queues
+		private long blockedNanos = 0;
+
+		private PipelineApplier() {
+			super(caches);
+		}
+
+		@Override
+		protected void dispatch(String cacheName, Ehcache cache, List<Serializable> keys) {
+			ApplyUnit unit = new ApplyUnit(this, cacheName, cache, keys);
+			BlockingQueue<ApplyUnit> units = applyThreadFor(cacheName).units;
+
+			if (units.offer(unit)) {
+				return;
+			}
+
+			long start = System.nanoTime();
+			try {
+				units.put(unit);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("interrupted queueing inbound units for cache " + cacheName, e);
+			} finally {
+				long blocked = System.nanoTime() - start;
+				blockedNanos += blocked;
+				applyBlockedNanos.addAndGet(blocked);
+			}
+		}
+
+		private void apply(ApplyUnit unit) {
+			apply(unit.cacheName, unit.cache, unit.keys);
+		}
+	}
+
+	private final class DecodeThread extends Thread {
+
+		public DecodeThread(int id) {
+			super("BatchJMSEventMessage InboundDecodeThread-" + id);
+			setDaemon(true);
+			setPriority(Thread.NORM_PRIORITY);
+		}
+
+		public void run() {
+			try {
+				while (decodeRunning || !decodeQueue.isEmpty()) {
+					InboundBatch batch = decodeQueue.poll(100, TimeUnit.MILLISECONDS);
+					if (batch != null) {
+						decode(batch);
+					}
+				}
+			} catch(InterruptedException e) {
+				// shutdown
+			}
+		}
+	}
+
+	private final class ApplyThread extends Thread {
+
+		private final BlockingQueue<ApplyUnit> units;
+
+		public ApplyThread(int id, int queueSize) {
+			super("BatchJMSEventMessage InboundApplyThread-" + id);
+			this.units = new ArrayBlockingQueue<ApplyUnit>(queueSize);
+			setDaemon(true);
+			setPriority(Thread.NORM_PRIORITY);
+		}
+
+		public void run() {
+			try {
+				while (applyRunning || !units.isEmpty()) {
+					ApplyUnit unit = units.poll(100, TimeUnit.MILLISECONDS);
+					if (unit != null) {
+						long start = System.nanoTime();
+						unit.applier.apply(unit);
+						applyNanos.addAndGet(System.nanoTime() - start);
+						unitsApplied.incrementAndGet();
+					}
+				}
+			} catch(InterruptedException e) {
+				// shutdown
+			}
+		}
+	}
+
+}
@@ -0,0 +1,170 @@
+package org.bitsofinfo.ehcache.jms.custom;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.sf.ehcache.Ehcache;
+
+/**
+ * BatchApplier that applies the caches of a batch in parallel on a
+ * shared pool of inboundApplyThreads (keys of different caches are
+ * independent of each other)
+ *
+ * 	- every cache of the batch gets a strand, the units of work (a
+ * 	  REMOVE_ALL or a chunk of up to APPLY_CHUNK_SIZE keys) of a cache
+ * 	  run one at a time in batch order
+ *
+ * 	- a strand runs a single unit then goes to the back of the pool's
+ * 	  queue if it has more, so one enormous cache takes turns w/ the
+ * 	  others rather than starving them
+ *
+ * 	- units are handed off while the batch is still being decoded,
+ * 	  finish() returns once all of them have been applied, so batches
+ * 	  still apply one after the other
+ *
+ * If the pool rejects work (i.e. shutting down) it is applied on the
+ * calling thread.
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class ParallelBatchApplier extends BatchApplier {
+
+	private final Executor executor;
+
+	// cacheName -> strand, only touched by the decoding thread
+	private final Map<String,CacheStrand> strands = new HashMap<String,CacheStrand>();
+
+	// units handed off and not yet applied
+	private final Object outstandingLock = new Object();
+	private int outstanding = 0;
+
+	/**
+	 * @param caches the caches the batch is applied to
+	 * @param executor the pool applying the strands
+	 */
+	public ParallelBatchApplier(CacheLookupTable caches, Executor executor) {
+		super(caches);
+		this.executor = executor;
+	}
+
+	@Override
+	protected void dispatch(String cacheName, Ehcache cache, List<Serializable> keys) {
+		CacheStrand strand = strands.get(cacheName);
+		if (strand == null) {
+			strand = new CacheStrand(cacheName, cache);
+			strands.put(cacheName, strand);
+		}
+
+		synchronized(outstandingLock) {
+			outstanding++;
+		}
+		strand.add(keys);
+	}
+
+	/**
+	 * Wait for everything handed off to be applied
+	 */
+	@Override
+	public int finish() {
+		super.finish();
+
+		synchronized(outstandingLock) {
+			try {
+				while (outstanding > 0) {
+					outstandingLock.wait();
+				}
+			} catch(InterruptedException e) {
+				// stop waiting, the strands finish on their own
+				Thread.currentThread().interrupt();
+			}
+		}
+		return getApplied();
+	}
+
+	private void unitDone() {
+		synchronized(outstandingLock) {
+			if (--outstanding == 0) {
+				outstandingLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * The units of work of one cache, applied in order one at a time
+	 */
+	private final class CacheStrand implements Runnable {
+
+		private final String cacheName;
+		private final Ehcache cache;
+
+		// null elements are REMOVE_ALLs
+		private final LinkedList<List<Serializable>> units = new LinkedList<List<Serializable>>();
+		private boolean scheduled = false;
+
+		private CacheStrand(String cacheName, Ehcache cache) {
+			this.cacheName = cacheName;
+			this.cache = cache;
+		}
+
+		private void add(List<Serializable> keys) {
+			synchronized(this) {
+				units.add(keys);
+				if (scheduled) {
+					return;
+				}
+				scheduled = true;
+			}
+			schedule();
+		}
+
+		private void schedule() {
+			try {
+				executor.execute(this);
+			} catch(RejectedExecutionException e) {
+				// pool is gone, drain the rest here in a loop, no frame per unit
+				while (applyNext()) {
+				}
+			}
+		}
+
+		public void run() {
+			if (applyNext()) {
+				// more to do, back of the queue behind the other caches
+				schedule();
+			}
+		}
+
+		/**
+		 * Apply the next unit
+		 *
+		 * @return true if more units are waiting, false once the strand is unscheduled
+		 */
+		private boolean applyNext() {
+			List<Serializable> keys;
+			synchronized(this) {
+				keys = units.removeFirst();
+			}
+
+			try {
+				apply(cacheName, cache, keys);
+			} finally {
+				unitDone();
+			}
+
+			synchronized(this) {
+				if (units.isEmpty()) {
+					scheduled = false;
+					return false;
+				}
+				return true;
+			}
+		}
+	}
+
+}
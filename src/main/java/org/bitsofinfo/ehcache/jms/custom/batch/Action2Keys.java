@@ -1,41 +1,219 @@
 package org.bitsofinfo.ehcache.jms.custom.batch;
 
 import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.TreeSet;
+
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.KeyCodec;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.KeyCodecRegistry;
 
 /**
  * Contains a map of Ehcache cache actions (numeric constant)
- * to a Set of all affected Keys. This only works with 
+ * to a Set of all affected Keys. This only works with
  * keys that are Java primitives and are typed with a short
  * type qualifier during transport.
- * 
+ *
  * Why are we doing this? The first use case for this is using
  * AWS SNS/SQS which has message size limits. Using this notation
  * for primitives is much smaller than actually serializing them...
- * 
+ *
  * example
- * 
+ *
  * REMOVE (1) -> (s:key1, i:22, l:22323222322232) etc
- * 
+ *
+ * Keys of any other type for which a KeyCodec is registered are held and
+ * typed like Strings, w/ the KeyCodec's typeTag (i.e. "u:[uuid]")
+ * @see KeyCodecRegistry
+ *
+ * The typed notation is only a transport concern (@see JsonBatchCodec),
+ * in memory keys are held as is and compared by exact equality: String,
+ * Float and Double keys in a HashSet, Integer and Long keys in primitive
+ * sorted form as runs of contiguous values (@see LongRangeSet), which is
+ * what lets a block of sequential ids be encoded as a few ranges.
+ * getKeysForAction() expands those lazily, one key at a time, as it is
+ * iterated. Totals are running counters, never recomputed.
+ *
+ * NOTE: not synchronized, @see BatchJMSEventMessage.addCacheEvent()
+ *
  * @author bitsofinfo.g[at]g mail com
  *
  */
 public class Action2Keys {
-	
+
 	public static final String TYPE_STRING = "s:";
 	public static final String TYPE_INTEGER = "i:";
 	public static final String TYPE_LONG = "l:";
 	public static final String TYPE_FLOAT = "f:";
 	public static final String TYPE_DOUBLE = "d:";
-	
-	private Map<Integer,Set<String>> a2k = new HashMap<Integer,Set<String>>();
 
-	public synchronized void addEvent(Integer action, Serializable key) throws KeyNotPrimitiveException {
-		
+	private final Map<Integer,Keys> a2k = new HashMap<Integer,Keys>(4);
+
+	// running totals over all actions
+	private long totalEntries = 0;
+	private int encodedEntries = 0;
+
+	/**
+	 * @return true if the key was not already present for the action
+	 */
+	public boolean addEvent(Integer action, Serializable key) throws KeyNotPrimitiveException {
+
+		if (key instanceof Integer || key instanceof Long) {
+			LongRangeSet ranges = getKeys(action).rangesFor(key instanceof Integer);
+			int rangesBefore = ranges.getRangeCount();
+			if (!ranges.add(((Number)key).longValue())) {
+				return false;
+			}
+			totalEntries++;
+			encodedEntries += ranges.getRangeCount() - rangesBefore;
+			return true;
+		}
+
+		if (!isCompatible(key)) {
+			throw new KeyNotPrimitiveException();
+		}
+
+		if (!getKeys(action).objects.add(key)) {
+			return false;
+		}
+		totalEntries++;
+		encodedEntries++;
+		return true;
+	}
+
+	/**
+	 * Add every Integer (integerKeys) or Long key of [first,last]
+	 *
+	 * @param action
+	 * @param first
+	 * @param last inclusive
+	 * @param integerKeys true for Integer keys (first/last must be within int range), false for Long
+	 * @return true if any of the keys was not already present for the action
+	 */
+	public boolean addRange(Integer action, long first, long last, boolean integerKeys) {
+		if (integerKeys && (first < Integer.MIN_VALUE || last > Integer.MAX_VALUE)) {
+			throw new IllegalArgumentException("Action2Keys.addRange() Integer key range out of bounds: "
+					+ first + "-" + last);
+		}
+		LongRangeSet ranges = getKeys(action).rangesFor(integerKeys);
+		int rangesBefore = ranges.getRangeCount();
+		long added = ranges.addRange(first, last);
+		totalEntries += added;
+		encodedEntries += ranges.getRangeCount() - rangesBefore;
+		return added > 0;
+	}
+
+	/**
+	 * @param key
+	 * @return true if the key is a String, Integer, Long, Float or Double, or
+	 * 	has a KeyCodec registered for its class @see KeyCodecRegistry
+	 */
+	public static boolean isCompatible(Object key) {
+		return (key instanceof String || key instanceof Integer || key instanceof Long ||
+				key instanceof Double || key instanceof Float || KeyCodecRegistry.getFor(key) != null);
+	}
+
+	/**
+	 * @param key
+	 * @return true if the key is a String, Integer, Long, Float or Double,
+	 * 	the types every version can batch
+	 */
+	public static boolean isPrimitive(Object key) {
+		return (key instanceof String || key instanceof Integer || key instanceof Long ||
+				key instanceof Double || key instanceof Float);
+	}
+
+	/**
+	 * @param typeTag
+	 * @return true if typeTag is one of the TYPE_* tags (w/o the ':')
+	 */
+	public static boolean isReservedTypeTag(String typeTag) {
+		return (TYPE_STRING.equals(typeTag + ":") || TYPE_INTEGER.equals(typeTag + ":") || 
+				TYPE_LONG.equals(typeTag + ":") || TYPE_FLOAT.equals(typeTag + ":") || 
+				TYPE_DOUBLE.equals(typeTag + ":"));
+	}
+
+	private Keys getKeys(Integer action) {
+		Keys keys = a2k.get(action);
+		if (keys == null) {
+			keys = new Keys();
+			a2k.put(action, keys);
+		}
+		return keys;
+	}
+
+	public Set<Integer> getActions() {
+		return a2k.keySet();
+	}
+
+	public int getTotalEntries() {
+		return (int)Math.min(totalEntries, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return number of entries as they cost once encoded by a codec
+	 * 	that supports ranges, i.e. a run of contiguous Integer/Long keys
+	 * 	counts once
+	 */
+	public int getEncodedEntries() {
+		return encodedEntries;
+	}
+
+	/**
+	 * @param action
+	 * @return all the keys of the action, Integer/Long ones are expanded
+	 * 	lazily as the returned (read only) view is iterated
+	 */
+	public Set<Serializable> getKeysForAction(Integer action) {
+		return getKeysForAction(action, true);
+	}
+
+	/**
+	 * @param action
+	 * @param includeRangeKeys false to leave out the Integer/Long keys
+	 * 	(@see getIntegerKeysForAction(), getLongKeysForAction())
+	 * @return read only view of the keys of the action
+	 */
+	public Set<Serializable> getKeysForAction(Integer action, boolean includeRangeKeys) {
+		Keys keys = a2k.get(action);
+		if (keys == null) {
+			return Collections.emptySet();
+		}
+		if (!includeRangeKeys) {
+			return new KeyView(keys.objects, null, null);
+		}
+		return new KeyView(keys.objects, keys.ints, keys.longs);
+	}
+
+	/**
+	 * @param action
+	 * @return the Integer keys of the action, null if none
+	 */
+	public LongRangeSet getIntegerKeysForAction(Integer action) {
+		Keys keys = a2k.get(action);
+		return (keys != null ? keys.ints : null);
+	}
+
+	/**
+	 * @param action
+	 * @return the Long keys of the action, null if none
+	 */
+	public LongRangeSet getLongKeysForAction(Integer action) {
+		Keys keys = a2k.get(action);
+		return (keys != null ? keys.longs : null);
+	}
+
+	/**
+	 * @param key
+	 * @return the key w/ its type qualifier, i.e. "i:22"
+	 * @throws KeyNotPrimitiveException
+	 */
+	public static String toTypedKey(Serializable key) throws KeyNotPrimitiveException {
 		String type = null;
 		if (key instanceof String) {
 			type = TYPE_STRING;
@@ -48,61 +226,180 @@ public class Action2Keys {
 		} else if (key instanceof Float) {
 			type = TYPE_FLOAT;
 		} else {
-			throw new KeyNotPrimitiveException();
+			KeyCodec codec = KeyCodecRegistry.getFor(key);
+			if (codec == null) {
+				throw new KeyNotPrimitiveException();
+			}
+			return codec.getTypeTag() + ":" + codec.encode(key);
 		}
-		
-		String typedKey = type+key.toString();
-		
-		Set<String> keys = a2k.get(action);
-		if (keys == null) {
-			keys = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
-			a2k.put(action,keys);
+		return type+key.toString();
+	}
+
+	/**
+	 * @param typedKey
+	 * @return the key, null if its type qualifier is unknown
+	 */
+	public static Serializable fromTypedKey(String typedKey) {
+		int separator = typedKey.indexOf(':');
+		if (separator < 1) {
+			return null;
+		}
+		if (separator > 1) {
+			return fromCodedKey(typedKey.substring(0, separator), typedKey.substring(separator + 1));
+		}
+		String value = typedKey.substring(2);
+
+		if (typedKey.startsWith(TYPE_STRING)) {
+			return value;
+
+		} else if (typedKey.startsWith(TYPE_INTEGER)) {
+			return Integer.valueOf(value);
+
+		} else if (typedKey.startsWith(TYPE_LONG)) {
+			return Long.valueOf(value);
+
+		} else if (typedKey.startsWith(TYPE_DOUBLE)) {
+			return Double.valueOf(value);
+
+		} else if (typedKey.startsWith(TYPE_FLOAT)) {
+			return Float.valueOf(value);
 		}
-		keys.add(typedKey);
+
+		return fromCodedKey(typedKey.substring(0, 1), value);
 	}
-	
-	public Set<Integer> getActions() {
-		return a2k.keySet();
+
+	/**
+	 * @return the key decoded by the KeyCodec registered for typeTag, null if none is
+	 */
+	private static Serializable fromCodedKey(String typeTag, String value) {
+		KeyCodec codec = KeyCodecRegistry.getByTypeTag(typeTag);
+		return (codec != null ? codec.decode(value) : null);
 	}
-	
-	public int getTotalEntries() {
-		int total = 0;
-		for (Integer key : a2k.keySet()) {
-			total += a2k.get(key).size();
+
+	/**
+	 * The keys of a single action
+	 */
+	private static final class Keys {
+
+		// String, Float, Double and KeyCodec keys
+		private final Set<Serializable> objects = new HashSet<Serializable>();
+
+		// Integer and Long keys, created on first use
+		private LongRangeSet ints = null;
+		private LongRangeSet longs = null;
+
+		private LongRangeSet rangesFor(boolean integerKeys) {
+			if (integerKeys) {
+				if (ints == null) {
+					ints = new LongRangeSet();
+				}
+				return ints;
+			}
+			if (longs == null) {
+				longs = new LongRangeSet();
+			}
+			return longs;
 		}
-		return total;
 	}
-	
-	public Set<Serializable> getKeysForAction(Integer action) {
-		Set<String> typedKeys = a2k.get(action);
-		
-		Set<Serializable> reconstituted = new HashSet<Serializable>();
-		
-		for (String typedKey : typedKeys) {
-			String qualifier = typedKey.substring(0,2);
-			String value = typedKey.substring(2);
-			
-			if (qualifier.equals(TYPE_STRING)) {
-				reconstituted.add(value);
-				
-			} else if (qualifier.equals(TYPE_INTEGER)) {
-				reconstituted.add(Integer.valueOf(value));
-				
-			} else if (qualifier.equals(TYPE_LONG)) {
-				reconstituted.add(Long.valueOf(value));
-				
-			} else if (qualifier.equals(TYPE_DOUBLE)) {
-				reconstituted.add(Double.valueOf(value));
-				
-			} else if (qualifier.equals(TYPE_FLOAT)) {
-				reconstituted.add(Float.valueOf(value));
-				
+
+	/**
+	 * Read only view over the keys and Integer/Long ranges of an action
+	 */
+	private static final class KeyView extends AbstractSet<Serializable> {
+
+		private final Set<Serializable> objects;
+		private final LongRangeSet ints;
+		private final LongRangeSet longs;
+
+		private KeyView(Set<Serializable> objects, LongRangeSet ints, LongRangeSet longs) {
+			this.objects = objects;
+			this.ints = ints;
+			this.longs = longs;
+		}
+
+		@Override
+		public int size() {
+			long total = objects.size() + (ints != null ? ints.size() : 0) + (longs != null ? longs.size() : 0);
+			return (int)Math.min(total, Integer.MAX_VALUE);
+		}
+
+		@Override
+		public boolean contains(Object key) {
+			if (key instanceof Integer) {
+				return ints != null && ints.contains((Integer)key);
+			} else if (key instanceof Long) {
+				return longs != null && longs.contains((Long)key);
+			}
+			return objects.contains(key);
+		}
+
+		@Override
+		public Iterator<Serializable> iterator() {
+
+			final Iterator<Serializable> objectIterator = objects.iterator();
+			final RangeIterator intIterator = new RangeIterator(ints, true);
+			final RangeIterator longIterator = new RangeIterator(longs, false);
+
+			return new Iterator<Serializable>() {
+				public boolean hasNext() {
+					return objectIterator.hasNext() || intIterator.hasNext() || longIterator.hasNext();
+				}
+				public Serializable next() {
+					if (objectIterator.hasNext()) {
+						return objectIterator.next();
+					} else if (intIterator.hasNext()) {
+						return intIterator.next();
+					}
+					return longIterator.next();
+				}
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Expands a LongRangeSet one value at a time, ascending
+	 */
+	private static final class RangeIterator implements Iterator<Serializable> {
+
+		private final LongRangeSet ranges;
+		private final boolean integers;
+		private int range = 0;
+		private long next;
+
+		private RangeIterator(LongRangeSet ranges, boolean integers) {
+			this.ranges = ranges;
+			this.integers = integers;
+			if (ranges != null && !ranges.isEmpty()) {
+				this.next = ranges.getFirst(0);
+			}
+		}
+
+		public boolean hasNext() {
+			return ranges != null && range < ranges.getRangeCount();
+		}
+
+		public Serializable next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			long value = next;
+			if (value == ranges.getLast(range)) {
+				range++;
+				if (range < ranges.getRangeCount()) {
+					next = ranges.getFirst(range);
+				}
 			} else {
-				
+				next = value + 1;
 			}
+			return (integers ? (Serializable)Integer.valueOf((int)value) : Long.valueOf(value));
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
 		}
-		
-		return reconstituted;
 	}
 
 }
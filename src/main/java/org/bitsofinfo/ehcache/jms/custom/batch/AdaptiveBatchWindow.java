@@ -0,0 +1,98 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Computes how long a batch should be allowed to queue, based on
+ * the rate at which batchable events have recently been arriving.
+ * (in the spirit of Nagle's algorithm or Kafka's linger.ms)
+ *
+ * - when events trickle in, the window shrinks towards minWindowMS
+ *   so a lone invalidation goes out almost immediately
+ *
+ * - as the rate climbs towards saturationEventsPerSec (the rate at which
+ *   a full window would produce a full batch) the window stretches
+ *   linearly towards maxWindowMS, packing more events per publish
+ *
+ * The rate is an exponentially weighted moving average whose decay is
+ * based on elapsed time (not number of samples) so that after a quiet
+ * period the very next event sees a low rate and a short window
+ *
+ * recordEvent() is a single atomic increment, the (rare) re-sampling
+ * of the rate is done by whoever asks for the window and wins a CAS
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class AdaptiveBatchWindow {
+
+	// how often the event counter is folded into the moving average
+	private static final long SAMPLE_INTERVAL_MS = 250;
+
+	// time constant of the moving average
+	private static final double RATE_DECAY_MS = 5000;
+
+	private final long minWindowMS;
+	private final long maxWindowMS;
+	private final double saturationEventsPerSec;
+
+	private final AtomicLong eventsInSample = new AtomicLong(0);
+	private final AtomicLong sampleStartedAt = new AtomicLong(System.currentTimeMillis());
+
+	// events/sec
+	private volatile double rate = 0;
+
+	/**
+	 * Constructor
+	 *
+	 * @param minWindowMS window used when events are rare
+	 * @param maxWindowMS window used at or above saturationEventsPerSec
+	 * @param saturationEventsPerSec rate at which the window reaches maxWindowMS
+	 */
+	public AdaptiveBatchWindow(long minWindowMS, long maxWindowMS, double saturationEventsPerSec) {
+		this.minWindowMS = Math.min(minWindowMS, maxWindowMS);
+		this.maxWindowMS = maxWindowMS;
+		this.saturationEventsPerSec = saturationEventsPerSec;
+	}
+
+	/**
+	 * Record the arrival of a batchable event
+	 */
+	public void recordEvent() {
+		eventsInSample.incrementAndGet();
+	}
+
+	/**
+	 * @return the observed event rate (events/sec)
+	 */
+	public double getRate() {
+		sample(System.currentTimeMillis());
+		return rate;
+	}
+
+	/**
+	 * @return how long (ms) a batch started now should be allowed to queue
+	 */
+	public long getWindowMS() {
+		double currentRate = getRate();
+		if (saturationEventsPerSec <= 0 || currentRate >= saturationEventsPerSec) {
+			return maxWindowMS;
+		}
+		return minWindowMS + (long)((maxWindowMS - minWindowMS) * (currentRate / saturationEventsPerSec));
+	}
+
+	private void sample(long now) {
+		long startedAt = sampleStartedAt.get();
+		long elapsed = now - startedAt;
+
+		if (elapsed < SAMPLE_INTERVAL_MS || !sampleStartedAt.compareAndSet(startedAt, now)) {
+			return;
+		}
+
+		// we won, fold the counter into the average
+		double sampledRate = (eventsInSample.getAndSet(0) * 1000d) / elapsed;
+		double weight = 1 - Math.exp(-elapsed / RATE_DECAY_MS);
+		rate = (weight * sampledRate) + ((1 - weight) * rate);
+	}
+
+}
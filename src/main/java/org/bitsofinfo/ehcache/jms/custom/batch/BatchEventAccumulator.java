@@ -0,0 +1,363 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free, multi-producer accumulator of batchable
+ * cache events (REMOVE_ALL cacheName, REMOVE cacheName+key)
+ *
+ * Producers (i.e. the Ehcache replication threads calling
+ * BatchingJMSCachePeer.send()) only ever append to a
+ * non-blocking queue and bump a couple of atomic counters,
+ * so they never block each other or wait on a monitor.
+ *
+ * A single sealer at a time (whoever wins the CAS in seal())
+ * drains the queue into a BatchJMSEventMessage. Because only
+ * that one thread ever touches the BatchJMSEventMessage being
+ * built, the message itself needs no synchronization.
+ * 
+ * The accumulator also keeps a running estimate of what the pending
+ * events will cost once encoded (JSON, compressed, Base64'd). The raw
+ * per-event estimate is deliberately simple, the ratio between it and
+ * the real encoded size is learned from every batch actually encoded
+ * (@see recordEncodedSize()) so the estimate converges on reality for
+ * whatever mix of cache names/keys an app produces.
+ * 
+ * An optional BatchStartedListener is told whenever the first event
+ * enters an empty accumulator, which is when the clock on a batch's
+ * maximum queuing time starts (i.e. to arm a flush timer)
+ * 
+ * When the codec encodes runs of contiguous Integer/Long keys as ranges
+ * (rangeEncoding) such a run counts as a single pending entry against
+ * maxEvents and is (nearly) free in the size estimate, so a bulk update of
+ * a block of sequential ids ends up in one batch rather than hundreds
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BatchEventAccumulator {
+
+	/**
+	 * Notified when the first event enters an empty accumulator
+	 */
+	public interface BatchStartedListener {
+		
+		/**
+		 * @param firstEventAt time (ms) of the first event of the new batch
+		 */
+		public void batchStarted(long firstEventAt);
+	}
+
+	private final ConcurrentLinkedQueue<PendingEvent> pendingEvents = new ConcurrentLinkedQueue<PendingEvent>();
+
+	// number of events appended but not yet drained by a sealer
+	private final AtomicInteger pendingCount = new AtomicInteger(0);
+
+	// pendingCount less the events continuing a run of Integer/Long keys (rangeEncoding only)
+	private final AtomicInteger pendingEntries = new AtomicInteger(0);
+
+	// time the first event entered an empty accumulator, 0 if empty
+	private final AtomicLong firstEventAt = new AtomicLong(0);
+
+	// guards the single sealer
+	private final AtomicBoolean sealing = new AtomicBoolean(false);
+
+	// raw (pre-encoding) size estimate of all pending events
+	private final AtomicLong pendingRawBytes = new AtomicLong(0);
+
+	/*
+	 * Learned ratio of encoded bytes / raw estimated bytes. Starts
+	 * at a pessimistic 1.0 (i.e. assume compression buys us nothing
+	 * which more or less cancels out the Base64 expansion) so the first
+	 * batches seal early rather than blowing the transport's size limit
+	 */
+	private volatile double encodedToRawRatio = 1.0;
+
+	// weight given to the most recent observation of the ratio
+	private static final double RATIO_SMOOTHING = 0.3;
+
+	// approximate per-event framing overhead (quotes, type prefix, separators)
+	private static final int EVENT_OVERHEAD_BYTES = 8;
+
+	private final BatchStartedListener batchStartedListener;
+
+	private final boolean rangeEncoding;
+
+	// last Integer/Long key queued per cache name (rangeEncoding only)
+	private final ConcurrentHashMap<String,AtomicLong> lastNumericKeys = new ConcurrentHashMap<String,AtomicLong>();
+
+	public BatchEventAccumulator() {
+		this(null);
+	}
+
+	/**
+	 * @param batchStartedListener notified when the first event enters an empty accumulator
+	 */
+	public BatchEventAccumulator(BatchStartedListener batchStartedListener) {
+		this(batchStartedListener, false);
+	}
+
+	/**
+	 * @param batchStartedListener notified when the first event enters an empty accumulator
+	 * @param rangeEncoding true if batches are encoded by a codec that encodes runs of
+	 * 	contiguous Integer/Long keys as ranges (@see BinaryBatchCodec)
+	 */
+	public BatchEventAccumulator(BatchStartedListener batchStartedListener, boolean rangeEncoding) {
+		this.batchStartedListener = batchStartedListener;
+		this.rangeEncoding = rangeEncoding;
+	}
+
+	/**
+	 * Queue a REMOVE_ALL for the given cacheName
+	 *
+	 * @param cacheName
+	 * @return the total number of entries pending after this one was added
+	 */
+	public int addRemoveAll(String cacheName) {
+		return enqueue(new PendingEvent(cacheName, null, BatchJMSEventMessage.REMOVE_ALL,
+				estimateRawBytes(cacheName, null), 1));
+	}
+
+	/**
+	 * Queue a REMOVE for the given cacheName + key
+	 *
+	 * @param cacheName
+	 * @param key
+	 * @return the total number of entries pending after this one was added,
+	 * 	an event continuing a run of Integer/Long keys is not counted (rangeEncoding only)
+	 */
+	public int addRemove(String cacheName, Serializable key) {
+		if (rangeEncoding && (key instanceof Integer || key instanceof Long) &&
+				continuesRun(cacheName, ((Number)key).longValue())) {
+			return enqueue(new PendingEvent(cacheName, key, BatchJMSEventMessage.REMOVE, 0, 0));
+		}
+		return enqueue(new PendingEvent(cacheName, key, BatchJMSEventMessage.REMOVE,
+				estimateRawBytes(cacheName, key), 1));
+	}
+
+	private int enqueue(PendingEvent event) {
+		pendingEvents.offer(event);
+		pendingRawBytes.addAndGet(event.rawBytes);
+		pendingCount.incrementAndGet();
+		int pending = pendingEntries.addAndGet(event.entries);
+		if (firstEventAt.get() == 0) {
+			startBatch(System.currentTimeMillis());
+		}
+		return pending;
+	}
+
+	/**
+	 * Racy by design, this only steers the estimates, the batch itself
+	 * works out the real ranges (@see LongRangeSet)
+	 *
+	 * @return true if key is adjacent to the last Integer/Long key queued for the cache
+	 */
+	private boolean continuesRun(String cacheName, long key) {
+		AtomicLong lastKey = lastNumericKeys.get(cacheName);
+		if (lastKey == null) {
+			lastKey = lastNumericKeys.putIfAbsent(cacheName, new AtomicLong(key));
+			if (lastKey == null) {
+				return false;
+			}
+		}
+		return Math.abs(key - lastKey.getAndSet(key)) == 1;
+	}
+
+	private void startBatch(long startedAt) {
+		if (firstEventAt.compareAndSet(0, startedAt) && batchStartedListener != null) {
+			batchStartedListener.batchStarted(startedAt);
+		}
+	}
+
+	private static int estimateRawBytes(String cacheName, Serializable key) {
+		int size = EVENT_OVERHEAD_BYTES + (cacheName != null ? cacheName.length() : 0);
+		if (key instanceof String) {
+			size += ((String)key).length();
+		} else if (key instanceof Integer) {
+			size += 11;
+		} else if (key != null) {
+			size += 20;
+		}
+		return size;
+	}
+
+	/**
+	 * @return number of events appended but not yet sealed
+	 */
+	public int getPendingEvents() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * @return number of entries appended but not yet sealed, same as
+	 * 	getPendingEvents() unless rangeEncoding, in which case events
+	 * 	continuing a run of Integer/Long keys are not counted
+	 */
+	public int getPendingEntries() {
+		return pendingEntries.get();
+	}
+
+	/**
+	 * @return time (ms) the oldest pending event was queued, 0 if nothing is pending
+	 */
+	public long getFirstEventAt() {
+		return firstEventAt.get();
+	}
+
+	/**
+	 * @return how long (ms) the oldest pending event has been waiting, 0 if nothing is pending
+	 */
+	public long getQueuedTimeMS() {
+		long first = firstEventAt.get();
+		if (first == 0) {
+			return 0;
+		}
+		return System.currentTimeMillis() - first;
+	}
+
+	/**
+	 * @return estimated size (bytes) of the pending events once encoded for transport
+	 */
+	public long getEstimatedEncodedBytes() {
+		return (long)(pendingRawBytes.get() * encodedToRawRatio);
+	}
+
+	/**
+	 * Feed back the real encoded size of a batch previously returned
+	 * by seal(), used to refine getEstimatedEncodedBytes()
+	 *
+	 * @param batch
+	 * @param encodedBytes
+	 */
+	public void recordEncodedSize(BatchJMSEventMessage batch, int encodedBytes) {
+		if (batch.getEstimatedRawBytes() <= 0) {
+			return;
+		}
+		double observed = (double)encodedBytes / (double)batch.getEstimatedRawBytes();
+		// racy read/modify/write is fine, this is only an estimate
+		encodedToRawRatio = (RATIO_SMOOTHING * observed) + ((1 - RATIO_SMOOTHING) * encodedToRawRatio);
+	}
+
+	/**
+	 * @see #seal(int, long)
+	 */
+	public BatchJMSEventMessage seal(int maxEvents) {
+		return seal(maxEvents, 0);
+	}
+
+	/**
+	 * Drain pending events into a new BatchJMSEventMessage until either
+	 * the queue is empty, the message contains maxEvents distinct events
+	 * (if rangeEncoding, entries, i.e. a run of contiguous Integer/Long
+	 * keys counts once) or the message's estimated encoded size reaches
+	 * maxEncodedBytes.
+	 *
+	 * Only one thread can seal at a time; if another thread is already
+	 * sealing, this returns null immediately rather than waiting.
+	 *
+	 * @param maxEvents
+	 * @param maxEncodedBytes byte budget for the encoded message, <= 0 for no limit
+	 * @return the sealed BatchJMSEventMessage, or null if there was
+	 * 	nothing to seal or another thread is currently sealing
+	 */
+	public BatchJMSEventMessage seal(int maxEvents, long maxEncodedBytes) {
+
+		if (!sealing.compareAndSet(false, true)) {
+			return null;
+		}
+
+		try {
+			long createdAt = firstEventAt.get();
+
+			// reset the clock up front, anything that arrives while we drain
+			// will re-arm it, and we re-arm it below for any leftovers
+			firstEventAt.set(0);
+
+			long maxRawBytes = Long.MAX_VALUE;
+			if (maxEncodedBytes > 0) {
+				maxRawBytes = (long)(maxEncodedBytes / encodedToRawRatio);
+			}
+
+			BatchJMSEventMessage batch = null;
+			int distinctEvents = 0;
+			long rawBytes = 0;
+
+			PendingEvent event = null;
+			while (distinctEvents < maxEvents && (event = pendingEvents.peek()) != null) {
+
+				// stop short of the budget, but always take at least one event
+				if (distinctEvents > 0 && (rawBytes + event.rawBytes) > maxRawBytes) {
+					break;
+				}
+
+				// we are the only consumer, so this is the event we just peeked at
+				pendingEvents.poll();
+				pendingCount.decrementAndGet();
+				pendingEntries.addAndGet(-event.entries);
+				pendingRawBytes.addAndGet(-event.rawBytes);
+
+				if (batch == null) {
+					batch = new BatchJMSEventMessage(createdAt > 0 ? createdAt : System.currentTimeMillis());
+				}
+
+				try {
+					if (event.action == BatchJMSEventMessage.REMOVE_ALL) {
+						if (batch.addRemovalAllCacheName(event.cacheName)) {
+							// it may have subsumed keys already in the batch
+							distinctEvents = (rangeEncoding ? batch.getEncodedEntries() : batch.getTotalEvents());
+							rawBytes += event.rawBytes;
+						}
+					} else if (batch.addCacheEvent(event.cacheName, event.key, event.action)) {
+						// a key may extend (or even join) existing ranges
+						distinctEvents = (rangeEncoding ? batch.getEncodedEntries() : distinctEvents + 1);
+						rawBytes += event.rawBytes;
+					}
+
+				} catch(KeyNotPrimitiveException e) {
+					// callers are expected to check keyIsCompatible() first, so just drop it
+				}
+			}
+
+			if (batch != null) {
+				batch.setEstimatedRawBytes(rawBytes);
+				batch.setSealedBy(this);
+			}
+
+			// leftovers remain, they keep the age of the batch we just sealed
+			if (!pendingEvents.isEmpty()) {
+				startBatch(createdAt > 0 ? createdAt : System.currentTimeMillis());
+			}
+
+			return batch;
+
+		} finally {
+			sealing.set(false);
+		}
+	}
+
+	/**
+	 * A single queued event
+	 */
+	private static final class PendingEvent {
+
+		private final String cacheName;
+		private final Serializable key;
+		private final int action;
+		private final int rawBytes;
+		private final int entries;
+
+		private PendingEvent(String cacheName, Serializable key, int action, int rawBytes, int entries) {
+			this.cacheName = cacheName;
+			this.key = key;
+			this.action = action;
+			this.rawBytes = rawBytes;
+			this.entries = entries;
+		}
+	}
+
+}
@@ -0,0 +1,53 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.io.Serializable;
+
+/**
+ * Receives the contents of a batch one event at a time as it is
+ * decoded (@see StreamingBatchCodec, BatchJMSEventMessageUtil.decode()),
+ * so a receiver can apply each event without the batch ever being
+ * materialized as a whole
+ * 
+ * Events arrive in the order they are stored in the payload, which for
+ * the built in codecs means a cache's REMOVE_ALL may follow its keys
+ * (i.e. legacy JSON), which is harmless as all events of a batch are
+ * applied together
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public interface BatchEventHandler {
+	
+	/**
+	 * @param createdAt when the batch was created (ms), for the binary
+	 * 	codecs this comes first, before any event
+	 * @throws Exception
+	 */
+	public void onBatch(long createdAt) throws Exception;
+	
+	/**
+	 * @param cacheName
+	 * @throws Exception
+	 */
+	public void onRemoveAll(String cacheName) throws Exception;
+	
+	/**
+	 * @param cacheName
+	 * @param key
+	 * @throws Exception
+	 */
+	public void onRemove(String cacheName, Serializable key) throws Exception;
+	
+	/**
+	 * Every Integer (integerKeys) or Long key of [first,last], only
+	 * called by codecs that encode ranges (@see BinaryBatchCodec)
+	 * 
+	 * @param cacheName
+	 * @param first
+	 * @param last inclusive
+	 * @param integerKeys true for Integer keys, false for Long
+	 * @throws Exception
+	 */
+	public void onRemoveRange(String cacheName, long first, long last, boolean integerKeys) throws Exception;
+	
+}
@@ -2,10 +2,10 @@ package org.bitsofinfo.ehcache.jms.custom.batch;
 
 import java.io.Serializable;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
-import java.util.TreeSet;
 
 import net.sf.ehcache.distribution.LegacyEventMessage;
 import net.sf.ehcache.distribution.jms.JMSEventMessage;
@@ -24,6 +24,9 @@ import net.sf.ehcache.distribution.jms.JMSEventMessage;
  *  to keep all names to a minimum, keeping in mind these batch
  *  messages might be sent to something like AWS/SNS/SQS that has
  *  message size limitations
+ *  
+ *  Cache names and keys are compared by exact equality (Ehcache's
+ *  own semantics), totals are running counters kept on every add
  * 
  * 
  * @author bitsofinfo.g[at]g mail com
@@ -37,52 +40,176 @@ public class BatchJMSEventMessage {
     
     private Date createdAt = new Date();
     
+    // local only (not marshalled) raw size estimate @see BatchEventAccumulator
+    private transient long estimatedRawBytes = 0;
+    
+    // local only (not marshalled) accumulator that sealed this batch, null if collapsed etc
+    private transient BatchEventAccumulator sealedBy = null;
+    
+    // running totals @see getTotalEvents(), getEncodedEntries()
+    private transient long totalEvents = 0;
+    private transient int encodedEntries = 0;
+    
     // cachenames -> action2keys per cache
-    private Map<String,Action2Keys> c_a2k = new TreeMap<String,Action2Keys>(String.CASE_INSENSITIVE_ORDER);
+    private Map<String,Action2Keys> c_a2k = new LinkedHashMap<String,Action2Keys>();
     
     // list of REMOVE_ALL cacheNames
-    private Set<String> ra_c = new TreeSet<String>(String.CASE_INSENSITIVE_ORDER);
+    private Set<String> ra_c = new LinkedHashSet<String>();
     
-    public void addRemovalAllCacheName(String cacheName) {
-    	ra_c.add(cacheName);
+    public BatchJMSEventMessage() {
     }
     
-    public static boolean keyIsCompatible(JMSEventMessage jem) {
-    	if (jem.getSerializableKey() instanceof String ||
-				jem.getSerializableKey() instanceof Integer ||
-				jem.getSerializableKey() instanceof Double ||
-				jem.getSerializableKey() instanceof Long ||
-				jem.getSerializableKey() instanceof Float) {
+    public BatchJMSEventMessage(long createdAt) {
+    	this.createdAt = new Date(createdAt);
+    }
+    
+    /**
+     * Queue a REMOVE_ALL for the cacheName, any individual keys already
+     * queued for the cache are dropped as the REMOVE_ALL covers them
+     * 
+     * @param cacheName
+     * @return true if this was not already queued
+     */
+    public boolean addRemovalAllCacheName(String cacheName) {
+    	Action2Keys covered = c_a2k.remove(cacheName);
+    	if (covered != null) {
+    		totalEvents -= covered.getTotalEntries();
+    		encodedEntries -= covered.getEncodedEntries();
+    	}
+    	if (ra_c.add(cacheName)) {
+    		totalEvents++;
+    		encodedEntries++;
     		return true;
     	}
     	return false;
     }
     
-    public synchronized void addCacheEvent(String cacheName, 
+    /**
+     * @param jem
+     * @return true if the key is a String, Integer, Long, Float or Double
+     */
+    public static boolean keyIsCompatible(JMSEventMessage jem) {
+    	return keyIsCompatible(jem, false);
+    }
+    
+    /**
+     * @param jem
+     * @param keyCodecs true to also accept keys w/ a registered KeyCodec, only
+     * 	when the BatchCodec published w/ can carry them (@see BatchingConfig.isKeyCodecBatching())
+     * @return true if the key can be batched
+     */
+    public static boolean keyIsCompatible(JMSEventMessage jem, boolean keyCodecs) {
+    	return (keyCodecs ? Action2Keys.isCompatible(jem.getSerializableKey()) : 
+    						Action2Keys.isPrimitive(jem.getSerializableKey()));
+    }
+    
+    /**
+     * NOTE: not synchronized, a BatchJMSEventMessage is only ever
+     * populated by a single thread (@see BatchEventAccumulator.seal())
+     * 
+     * If a REMOVE_ALL is already queued for the cacheName the event
+     * is ignored, it is already covered. (All events in a batch are
+     * applied together on the receiving side, so a key removal that
+     * happened after the REMOVE_ALL locally has the same effect there)
+     * 
+     * @return true if this was not already queued (or covered by a REMOVE_ALL)
+     */
+    public boolean addCacheEvent(String cacheName, 
     									   Serializable key, 
     									   Integer cacheAction) throws KeyNotPrimitiveException {
     	
+    	if (ra_c.contains(cacheName)) {
+    		return false;
+    	}
+    	
+    	Action2Keys action2Keys = getAction2Keys(cacheName);
+    	int entriesBefore = action2Keys.getEncodedEntries();
+    	if (!action2Keys.addEvent(cacheAction, key)) {
+    		return false;
+    	}
+    	totalEvents++;
+    	encodedEntries += action2Keys.getEncodedEntries() - entriesBefore;
+    	return true;
+    	
+    }
+    
+    /**
+     * Queue every Integer (integerKeys) or Long key of [first,last],
+     * i.e. a range decoded off the wire @see addCacheEvent()
+     * 
+     * @param cacheName
+     * @param first
+     * @param last inclusive
+     * @param integerKeys true for Integer keys, false for Long
+     * @param cacheAction
+     * @return true if any of the keys was not already queued (or covered by a REMOVE_ALL)
+     */
+    public boolean addCacheEventRange(String cacheName,
+    								  long first,
+    								  long last,
+    								  boolean integerKeys,
+    								  Integer cacheAction) {
+    	
+    	if (ra_c.contains(cacheName)) {
+    		return false;
+    	}
+    	
+    	Action2Keys action2Keys = getAction2Keys(cacheName);
+    	int totalBefore = action2Keys.getTotalEntries();
+    	int entriesBefore = action2Keys.getEncodedEntries();
+    	boolean added = action2Keys.addRange(cacheAction, first, last, integerKeys);
+    	totalEvents += action2Keys.getTotalEntries() - totalBefore;
+    	encodedEntries += action2Keys.getEncodedEntries() - entriesBefore;
+    	return added;
+    }
+    
+    private Action2Keys getAction2Keys(String cacheName) {
     	Action2Keys action2Keys = c_a2k.get(cacheName);
     	if (action2Keys == null) {
     		action2Keys = new Action2Keys();
     		c_a2k.put(cacheName, action2Keys);
     	}
-    	action2Keys.addEvent(cacheAction, key);
-    	
+    	return action2Keys;
     }
     
     public Date getCreatedAt() {
     	return this.createdAt;
     }
     
+    public void setCreatedAt(Date createdAt) {
+    	this.createdAt = createdAt;
+    }
+    
+    public long getEstimatedRawBytes() {
+    	return this.estimatedRawBytes;
+    }
+    
+    public void setEstimatedRawBytes(long estimatedRawBytes) {
+    	this.estimatedRawBytes = estimatedRawBytes;
+    }
+    
+    public BatchEventAccumulator getSealedBy() {
+    	return this.sealedBy;
+    }
+    
+    public void setSealedBy(BatchEventAccumulator sealedBy) {
+    	this.sealedBy = sealedBy;
+    }
+    
+    /**
+     * @return number of REMOVE_ALLs + keys
+     */
     public int getTotalEvents() {
-    	int total = ra_c.size();
-    	
-    	for (String key : c_a2k.keySet()) {
-    		total += c_a2k.get(key).getTotalEntries();
-    	}
-    	
-    	return total;
+    	return (int)Math.min(totalEvents, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * @return number of entries as they cost once encoded by a codec
+     * 	that supports ranges (REMOVE_ALLs, keys, but a run of contiguous
+     * 	Integer/Long keys of a cache counts once)
+     */
+    public int getEncodedEntries() {
+    	return encodedEntries;
     }
     
     public Set<String> getRemoveAllCacheNames() {
@@ -93,9 +220,39 @@ public class BatchJMSEventMessage {
     	return c_a2k.keySet();
     }
     
+    /**
+     * @param cacheName
+     * @return read only view of the keys to REMOVE, Integer/Long keys
+     * 	are expanded lazily as it is iterated
+     */
     public Set<Serializable> getRemoveEventsFor(String cacheName) {
     	return c_a2k.get(cacheName).getKeysForAction(REMOVE);	
     }
     
+    /**
+     * @param cacheName
+     * @param includeRangeKeys false to leave out the Integer/Long keys
+     * @return read only view of the keys to REMOVE
+     */
+    public Set<Serializable> getRemoveEventsFor(String cacheName, boolean includeRangeKeys) {
+    	return c_a2k.get(cacheName).getKeysForAction(REMOVE, includeRangeKeys);	
+    }
+    
+    /**
+     * @param cacheName
+     * @return the Integer keys to REMOVE, null if none
+     */
+    public LongRangeSet getRemovedIntegerKeysFor(String cacheName) {
+    	return c_a2k.get(cacheName).getIntegerKeysForAction(REMOVE);
+    }
+    
+    /**
+     * @param cacheName
+     * @return the Long keys to REMOVE, null if none
+     */
+    public LongRangeSet getRemovedLongKeysFor(String cacheName) {
+    	return c_a2k.get(cacheName).getLongKeysForAction(REMOVE);
+    }
+    
 
 }
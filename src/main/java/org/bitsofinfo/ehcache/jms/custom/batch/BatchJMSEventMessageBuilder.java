@@ -0,0 +1,37 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * BatchEventHandler that builds a BatchJMSEventMessage, i.e.
+ * for decoders that need the batch as a whole
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BatchJMSEventMessageBuilder implements BatchEventHandler {
+	
+	private final BatchJMSEventMessage batchMessage = new BatchJMSEventMessage();
+	
+	public void onBatch(long createdAt) {
+		batchMessage.setCreatedAt(new Date(createdAt));
+	}
+
+	public void onRemoveAll(String cacheName) {
+		batchMessage.addRemovalAllCacheName(cacheName);
+	}
+
+	public void onRemove(String cacheName, Serializable key) throws KeyNotPrimitiveException {
+		batchMessage.addCacheEvent(cacheName, key, BatchJMSEventMessage.REMOVE);
+	}
+
+	public void onRemoveRange(String cacheName, long first, long last, boolean integerKeys) {
+		batchMessage.addCacheEventRange(cacheName, first, last, integerKeys, BatchJMSEventMessage.REMOVE);
+	}
+	
+	public BatchJMSEventMessage getBatchMessage() {
+		return batchMessage;
+	}
+
+}
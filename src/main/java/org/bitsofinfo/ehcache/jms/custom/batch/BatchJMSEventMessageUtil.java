@@ -1,21 +1,25 @@
 package org.bitsofinfo.ehcache.jms.custom.batch;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.UUID;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
 
 import net.sf.ehcache.Element;
 import net.sf.ehcache.distribution.jms.Action;
 import net.sf.ehcache.distribution.jms.JMSEventMessage;
 
 import org.apache.commons.codec.binary.Base64;
-
-import com.google.gson.Gson;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodec;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodecRegistry;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BinaryReader;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.StreamingBatchCodec;
 
 /**
  * Utilities for BatchJMSEventMessage operations
@@ -27,7 +31,26 @@ import com.google.gson.Gson;
  */
 public class BatchJMSEventMessageUtil {
 	
-	public static final String MSG_PREFIX = "batch@:";
+	public static final String PREFIX_START = "batch@";
+	public static final String PREFIX_END = ":";
+	
+	// separates the codec versionTag from the optional CompressionDictionary id
+	public static final String DICTIONARY_SEPARATOR = "/";
+	
+	// JMS property of a BytesMessage batch, holding its envelope prefix (no Base64 body)
+	public static final String BATCH_ENVELOPE_PROPERTY = "batchEnvelope";
+	
+	// JMS properties every batch message is stamped w/ @see InboundDuplicateFilter
+	public static final String BATCH_ORIGIN_PROPERTY = "batchOrigin";
+	public static final String BATCH_SEQUENCE_PROPERTY = "batchSeq";
+	
+	// JMS properties of every part of a multipart batch @see split()
+	public static final String BATCH_ID_PROPERTY = "batchId";
+	public static final String BATCH_PART_PROPERTY = "batchPart";
+	public static final String BATCH_PARTS_PROPERTY = "batchParts";
+	
+	// prefix of the legacy JSON format (empty versionTag)
+	public static final String MSG_PREFIX = PREFIX_START + PREFIX_END;
 
 	/**
 	 * Take a BatchJMSEventMessage and expand it into individual JMSEventMessages
@@ -39,21 +62,199 @@ public class BatchJMSEventMessageUtil {
 		
 		HashSet<JMSEventMessage> toReturn = new HashSet<JMSEventMessage>();
 		
-		// convert all "REMOVE_ALL" events...
-		for (String cacheName2RemoveAll : batchMessage.getRemoveAllCacheNames()) {
-			toReturn.add(new JMSEventMessage(Action.REMOVE_ALL, null, null, cacheName2RemoveAll, null));
+		for (JMSEventMessage jem : iterateJMSEventMessages(batchMessage)) {
+			toReturn.add(jem);
 		}
 		
-		// convert all REMOVE events for each cache that has keys to remove
-		for (String cacheName : batchMessage.getCacheNamesWithEvents()) {
-			for (Serializable keyToRemove : batchMessage.getRemoveEventsFor(cacheName)) {
-				toReturn.add(new JMSEventMessage(Action.REMOVE, keyToRemove, 
-						new Element(keyToRemove,null), cacheName, null));
+		// return all expanded JMSEventMessages
+		return toReturn;
+	}
+	
+	/**
+	 * Lazily expand a BatchJMSEventMessage into individual JMSEventMessages,
+	 * each is only created as the returned Iterable is iterated (i.e. a range
+	 * of 50,000 Integer keys never exists as 50,000 JMSEventMessages at once)
+	 * 
+	 * @param batchMessage
+	 * @return REMOVE_ALLs first, then the REMOVEs cache by cache
+	 */
+	public static Iterable<JMSEventMessage> iterateJMSEventMessages(final BatchJMSEventMessage batchMessage) {
+		return new Iterable<JMSEventMessage>() {
+			public Iterator<JMSEventMessage> iterator() {
+				return new JMSEventMessageIterator(batchMessage);
 			}
+		};
+	}
+	
+	private static final class JMSEventMessageIterator implements Iterator<JMSEventMessage> {
+		
+		private final BatchJMSEventMessage batchMessage;
+		private final Iterator<String> removeAllCacheNames;
+		private final Iterator<String> cacheNamesWithEvents;
+		
+		private String cacheName = null;
+		private Iterator<Serializable> keysToRemove = null;
+		
+		private JMSEventMessageIterator(BatchJMSEventMessage batchMessage) {
+			this.batchMessage = batchMessage;
+			this.removeAllCacheNames = batchMessage.getRemoveAllCacheNames().iterator();
+			this.cacheNamesWithEvents = batchMessage.getCacheNamesWithEvents().iterator();
 		}
 		
-		// return all expanded JMSEventMessages
-		return toReturn;
+		public boolean hasNext() {
+			if (removeAllCacheNames.hasNext()) {
+				return true;
+			}
+			while (keysToRemove == null || !keysToRemove.hasNext()) {
+				if (!cacheNamesWithEvents.hasNext()) {
+					return false;
+				}
+				cacheName = cacheNamesWithEvents.next();
+				keysToRemove = batchMessage.getRemoveEventsFor(cacheName).iterator();
+			}
+			return true;
+		}
+		
+		public JMSEventMessage next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			
+			// convert all "REMOVE_ALL" events...
+			if (removeAllCacheNames.hasNext()) {
+				return new JMSEventMessage(Action.REMOVE_ALL, null, null, removeAllCacheNames.next(), null);
+			}
+			
+			// then all REMOVE events for each cache that has keys to remove
+			Serializable keyToRemove = keysToRemove.next();
+			return new JMSEventMessage(Action.REMOVE, keyToRemove, 
+					new Element(keyToRemove,null), cacheName, null);
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+	
+	/**
+	 * Merge the given BatchJMSEventMessages into a single new one that
+	 * just does a REMOVE_ALL on every cache any of them referenced. 
+	 * Individual keys are not carried over, they are covered by the
+	 * REMOVE_ALL (i.e. we over-invalidate rather than lose anything)
+	 * 
+	 * @param batchMessages
+	 * @return
+	 */
+	public static BatchJMSEventMessage collapseToRemoveAll(BatchJMSEventMessage... batchMessages) {
+		
+		BatchJMSEventMessage collapsed = null;
+		
+		for (BatchJMSEventMessage batchMessage : batchMessages) {
+			
+			// keep the age of the oldest
+			if (collapsed == null) {
+				collapsed = new BatchJMSEventMessage(batchMessage.getCreatedAt().getTime());
+			}
+			
+			for (String cacheName : batchMessage.getRemoveAllCacheNames()) {
+				collapsed.addRemovalAllCacheName(cacheName);
+			}
+			for (String cacheName : batchMessage.getCacheNamesWithEvents()) {
+				collapsed.addRemovalAllCacheName(cacheName);
+			}
+		}
+		
+		return collapsed;
+	}
+	
+	/**
+	 * Split a BatchJMSEventMessage into about parts batches of even size, i.e.
+	 * one too big for the transport. Every part is a complete batch of its own
+	 * (REMOVE/REMOVE_ALL events are independent of each other) that any receiver,
+	 * of any version, can apply on its own
+	 * 
+	 * @param batchMessage
+	 * @param parts
+	 * @param rangeEncoding true if a run of contiguous Integer/Long keys costs about
+	 * 	as much as one key once encoded (@see BatchJMSEventMessage.getEncodedEntries()),
+	 * 	false to size parts by events, splitting such runs as needed
+	 * @return the parts, all w/ the createdAt of the batch
+	 * @throws Exception
+	 */
+	public static List<BatchJMSEventMessage> split(BatchJMSEventMessage batchMessage, 
+												   int parts, 
+												   boolean rangeEncoding) throws Exception {
+		
+		long weight = (rangeEncoding ? batchMessage.getEncodedEntries() : batchMessage.getTotalEvents());
+		long maxWeight = Math.max(1, (weight + Math.max(1, parts) - 1) / Math.max(1, parts));
+		
+		BatchSplitter splitter = new BatchSplitter(maxWeight, rangeEncoding);
+		replay(batchMessage, splitter);
+		return splitter.parts;
+	}
+	
+	/**
+	 * Fills one part after the other up to maxWeight
+	 */
+	private static final class BatchSplitter implements BatchEventHandler {
+		
+		private final long maxWeight;
+		private final boolean rangeEncoding;
+		private final List<BatchJMSEventMessage> parts = new ArrayList<BatchJMSEventMessage>();
+		
+		private long createdAt = System.currentTimeMillis();
+		private BatchJMSEventMessage current = null;
+		
+		private BatchSplitter(long maxWeight, boolean rangeEncoding) {
+			this.maxWeight = maxWeight;
+			this.rangeEncoding = rangeEncoding;
+		}
+		
+		private long weight(BatchJMSEventMessage part) {
+			return (rangeEncoding ? part.getEncodedEntries() : part.getTotalEvents());
+		}
+		
+		/**
+		 * @return the part being filled, a new one if it is full
+		 */
+		private BatchJMSEventMessage current() {
+			if (current == null || weight(current) >= maxWeight) {
+				current = new BatchJMSEventMessage(createdAt);
+				parts.add(current);
+			}
+			return current;
+		}
+		
+		public void onBatch(long createdAt) {
+			this.createdAt = createdAt;
+		}
+		
+		public void onRemoveAll(String cacheName) {
+			current().addRemovalAllCacheName(cacheName);
+		}
+		
+		public void onRemove(String cacheName, Serializable key) throws KeyNotPrimitiveException {
+			current().addCacheEvent(cacheName, key, BatchJMSEventMessage.REMOVE);
+		}
+		
+		public void onRemoveRange(String cacheName, long first, long last, boolean integerKeys) {
+			if (rangeEncoding) {
+				current().addCacheEventRange(cacheName, first, last, integerKeys, BatchJMSEventMessage.REMOVE);
+				return;
+			}
+			
+			// every key counts, spread the range over as many parts as it fills
+			while (true) {
+				BatchJMSEventMessage part = current();
+				long room = maxWeight - part.getTotalEvents();
+				long chunkLast = (last - first < room ? last : first + room - 1);
+				part.addCacheEventRange(cacheName, first, chunkLast, integerKeys, BatchJMSEventMessage.REMOVE);
+				if (chunkLast == last) {
+					return;
+				}
+				first = chunkLast + 1;
+			}
+		}
 	}
 	
 	/**
@@ -65,51 +266,126 @@ public class BatchJMSEventMessageUtil {
 	 * @throws Exception
 	 */
 	public static String toString(BatchJMSEventMessage batchMessage) throws Exception {
+		return toString(batchMessage, BatchCodecRegistry.JSON);
+	}
+	
+	/**
+	 * Take a BatchJMSEventMessage and convert it to a string for transport
+	 * (base-64 encoded, compressed output of the codec) prefixed with
+	 * "batch@[codec versionTag]:"
+	 * 
+	 * @param batchMessage
+	 * @param codec
+	 * @return
+	 * @throws Exception
+	 */
+	public static String toString(BatchJMSEventMessage batchMessage, BatchCodec codec) throws Exception {
+		return toString(batchMessage, codec, null);
+	}
+	
+	/**
+	 * Take a BatchJMSEventMessage and convert it to a string for transport
+	 * (base-64 encoded output of the codec, compressed w/ the dictionary) prefixed
+	 * with "batch@[codec versionTag]/[dictionary id]:" or just 
+	 * "batch@[codec versionTag]:" if the dictionary is null
+	 * 
+	 * @param batchMessage
+	 * @param codec
+	 * @param dictionary null for none
+	 * @return
+	 * @throws Exception
+	 */
+	public static String toString(BatchJMSEventMessage batchMessage, 
+								  BatchCodec codec, 
+								  CompressionDictionary dictionary) throws Exception {
 		
-		String json = new Gson().toJson(batchMessage);
-		
-		// Compressor with highest level of compression
-	    Deflater compressor = new Deflater();
-	    compressor.setLevel(Deflater.BEST_COMPRESSION);
-	    
-	    // Give the compressor the data to compress
-	    byte[] jsonBytes = json.getBytes();
-	    compressor.setInput(jsonBytes);
-	    compressor.finish();
-	    
-	    // Create an expandable byte array to hold the compressed data.
-	    // It is not necessary that the compressed data will be smaller than
-	    // the uncompressed data.
-	    ByteArrayOutputStream bos = new ByteArrayOutputStream(jsonBytes.length);
-	    
-	    // Compress the data
-	    byte[] buf = new byte[32];
-	    while (!compressor.finished()) {
-	        int count = compressor.deflate(buf);
-	        bos.write(buf, 0, count);
-	    }
-	    try {
-	        bos.close();
-	    } catch (IOException e) {
+		return getEnvelopePrefix(codec, dictionary) + 
+				Base64.encodeBase64String(toCompressedBytes(batchMessage, codec, dictionary));
+	}
+	
+	/**
+	 * @param codec
+	 * @param dictionary null for none
+	 * @return "batch@[codec versionTag]/[dictionary id]:" or just 
+	 * 	"batch@[codec versionTag]:" if the dictionary is null
+	 */
+	public static String getEnvelopePrefix(BatchCodec codec, CompressionDictionary dictionary) {
+	    StringBuilder sb = new StringBuilder(PREFIX_START).append(codec.getVersionTag());
+	    if (dictionary != null) {
+	    	sb.append(DICTIONARY_SEPARATOR).append(dictionary.getId());
 	    }
-	    
-	    // Get the compressed data
-	    byte[] compressedData = bos.toByteArray();
-	    
-	    return MSG_PREFIX + Base64.encodeBase64String(compressedData);
+	    return sb.append(PREFIX_END).toString();
 	}
 	
+	/**
+	 * Take a BatchJMSEventMessage and convert it to the raw compressed
+	 * bytes of the codec's output (i.e. for a BytesMessage, which carries
+	 * getEnvelopePrefix() in its BATCH_ENVELOPE_PROPERTY instead)
+	 * 
+	 * @param batchMessage
+	 * @param codec
+	 * @param dictionary null for none
+	 * @return
+	 * @throws Exception
+	 */
+	public static byte[] toCompressedBytes(BatchJMSEventMessage batchMessage, 
+										   BatchCodec codec, 
+										   CompressionDictionary dictionary) throws Exception {
+		
+		byte[] encoded = codec.encode(batchMessage);
+		
+		// compressed w/ a pooled Deflater at the highest level of compression
+	    return ZlibPool.compress(encoded, 0, encoded.length, dictionary);
+	}
+	
+	/**
+	 * @param canidateString
+	 * @return true if prefixed w/ "batch@[versionTag]:" (MSG_PREFIX for the legacy JSON format)
+	 */
 	public static boolean isBatchJMSEventMessage(String canidateString) {
-		if (canidateString.startsWith(MSG_PREFIX)) {
+		if (canidateString.startsWith(PREFIX_START) && 
+				canidateString.indexOf(PREFIX_END, PREFIX_START.length()) != -1) {
 			return true;
 		}
 		return false;
 	}
 	
+	/**
+	 * @param batchMessageString
+	 * @return everything between "batch@" and ":", i.e. "[versionTag]" or "[versionTag]/[dictionary id]"
+	 */
+	private static String getEnvelopeHeader(String batchMessageString) {
+		return batchMessageString.substring(PREFIX_START.length(), 
+				batchMessageString.indexOf(PREFIX_END, PREFIX_START.length()));
+	}
 	
 	/**
-	 * Take a base64 encoded, compressed JSON string (prefixed w/ MSG_PREFIX) 
-	 * and convert it to a BatchJMSEventMessage
+	 * @param batchMessageString
+	 * @return the codec versionTag in the "batch@[versionTag](/[dictionary id]):" prefix
+	 */
+	public static String getVersionTag(String batchMessageString) {
+		String header = getEnvelopeHeader(batchMessageString);
+		int separator = header.indexOf(DICTIONARY_SEPARATOR);
+		return (separator == -1 ? header : header.substring(0, separator));
+	}
+	
+	/**
+	 * @param batchMessageString
+	 * @return the CompressionDictionary id in the "batch@[versionTag]/[dictionary id]:" 
+	 * 	prefix, null if none was used
+	 */
+	public static String getDictionaryId(String batchMessageString) {
+		String header = getEnvelopeHeader(batchMessageString);
+		int separator = header.indexOf(DICTIONARY_SEPARATOR);
+		return (separator == -1 ? null : header.substring(separator + 1));
+	}
+	
+	
+	/**
+	 * Take a base64 encoded, compressed string (prefixed w/ "batch@[versionTag](/[dictionary id]):") 
+	 * and convert it to a BatchJMSEventMessage using the codec registered
+	 * for the versionTag (@see BatchCodecRegistry) and the dictionary, if any,
+	 * registered for the id (@see CompressionDictionaryRegistry)
 	 * 
 	 * @param batchMessageString
 	 * @return
@@ -118,53 +394,239 @@ public class BatchJMSEventMessageUtil {
 	public static BatchJMSEventMessage fromString(String batchMessageString) throws Exception {
 		
 		if (!isBatchJMSEventMessage(batchMessageString)) {
-			throw new Exception("BatchJMSEventMessageUtil.toString(), cannot process, " +
-					"passed msg was not prefixed w/ " + MSG_PREFIX);
+			throw new Exception("BatchJMSEventMessageUtil.fromString(), cannot process, " +
+					"passed msg was not prefixed w/ " + PREFIX_START + "[versionTag]" + PREFIX_END);
 		}
 		
+		String header = getEnvelopeHeader(batchMessageString);
 		byte[] decodedCompressed = Base64.decodeBase64(
-				batchMessageString.replaceFirst(MSG_PREFIX, ""));
-		
-		// Compressor with highest level of compression
-	    Inflater inflater = new Inflater();
-	    
-	    // Give the compressor the data to compress
-	    inflater.setInput(decodedCompressed);
-	    
-	    ByteArrayOutputStream stream = new ByteArrayOutputStream();
-	    byte[] buf = new byte[32];
-	    while (!inflater.finished()) {
-	        int count = inflater.inflate(buf);
-	        stream.write(buf, 0, count);
-	    }
-	    String asJson = new String(stream.toByteArray(),"UTF-8");
-
-		return (BatchJMSEventMessage)new Gson().fromJson(asJson,BatchJMSEventMessage.class);
+				batchMessageString.substring(PREFIX_START.length() + header.length() + PREFIX_END.length()));
+		
+		return fromCompressedBytes(batchMessageString, decodedCompressed);
 	}
 	
-	public static void main(String[] arg) throws Exception {
+	/**
+	 * Take the raw compressed bytes of a batch and convert them to a BatchJMSEventMessage 
+	 * using the codec registered for the versionTag (@see BatchCodecRegistry) and the
+	 * dictionary, if any, registered for the id (@see CompressionDictionaryRegistry)
+	 * found in the envelopePrefix
+	 * 
+	 * @param envelopePrefix "batch@[versionTag](/[dictionary id]):"
+	 * @param compressed
+	 * @return
+	 * @throws Exception
+	 */
+	public static BatchJMSEventMessage fromCompressedBytes(String envelopePrefix, byte[] compressed) throws Exception {
 		
-		BatchJMSEventMessage msg = new BatchJMSEventMessage();
-		for (int i=0; i< 500; i++) {
-			msg.addRemovalAllCacheName(UUID.randomUUID().toString() +UUID.randomUUID().toString() + UUID.randomUUID().toString() + UUID.randomUUID().toString());
+		if (!isBatchJMSEventMessage(envelopePrefix)) {
+			throw new Exception("BatchJMSEventMessageUtil.fromCompressedBytes(), cannot process, " +
+					"envelope was not prefixed w/ " + PREFIX_START + "[versionTag]" + PREFIX_END);
 		}
 		
-		for (int i=0; i< 500; i++) {
-			String x = UUID.randomUUID().toString() +UUID.randomUUID().toString() + UUID.randomUUID().toString() + UUID.randomUUID().toString();
-			System.out.println(x.length());
-			msg.addCacheEvent(x, 
-					UUID.randomUUID().toString() +UUID.randomUUID().toString() + UUID.randomUUID().toString() + UUID.randomUUID().toString(), JMSEventMessage.REMOVE);
+		BatchCodec codec = resolveCodec(envelopePrefix);
+		CompressionDictionary dictionary = resolveDictionary(envelopePrefix);
+		
+		// decompressed w/ a pooled Inflater
+		return codec.decode(ZlibPool.decompress(compressed, dictionary));
+	}
+	
+	/**
+	 * Streaming decode of a base64 encoded, compressed string (prefixed w/ 
+	 * "batch@[versionTag](/[dictionary id]):"), each event is handed to the
+	 * handler as soon as it is read, the payload is base64 decoded, decompressed
+	 * and decoded in one pass w/o any of those stages being held in full
+	 * 
+	 * @param batchMessageString
+	 * @param handler
+	 * @throws Exception
+	 */
+	public static void decode(String batchMessageString, BatchEventHandler handler) throws Exception {
+		decode(batchMessageString, BinaryReader.DEFAULT_MAX_LENGTH, handler);
+	}
+	
+	/**
+	 * @see decode(String, BatchEventHandler)
+	 * 
+	 * @param batchMessageString
+	 * @param maxValueBytes longest value (key, cache name) the batch may declare
+	 * @param handler
+	 * @throws Exception
+	 */
+	public static void decode(String batchMessageString, int maxValueBytes, BatchEventHandler handler) throws Exception {
+		
+		if (!isBatchJMSEventMessage(batchMessageString)) {
+			throw new Exception("BatchJMSEventMessageUtil.decode(), cannot process, " +
+					"passed msg was not prefixed w/ " + PREFIX_START + "[versionTag]" + PREFIX_END);
 		}
 		
+		int payloadStart = batchMessageString.indexOf(PREFIX_END, PREFIX_START.length()) + PREFIX_END.length();
+		decode(batchMessageString.substring(0, payloadStart), 
+				new Base64InputStream(new StringAsciiInputStream(batchMessageString, payloadStart)), 
+				maxValueBytes, handler);
+	}
+	
+	/**
+	 * Streaming decode of the raw compressed bytes of a batch (i.e. the body of
+	 * a BytesMessage), each event is handed to the handler as soon as it is read
+	 * using the codec registered for the versionTag (@see BatchCodecRegistry) and
+	 * the dictionary, if any, registered for the id (@see CompressionDictionaryRegistry)
+	 * found in the envelopePrefix. Codecs that are not a StreamingBatchCodec are
+	 * decoded whole and then replayed to the handler
+	 * 
+	 * @param envelopePrefix "batch@[versionTag](/[dictionary id]):"
+	 * @param compressed closed once decoded
+	 * @param handler
+	 * @throws Exception
+	 */
+	public static void decode(String envelopePrefix, InputStream compressed, BatchEventHandler handler) throws Exception {
+		decode(envelopePrefix, compressed, BinaryReader.DEFAULT_MAX_LENGTH, handler);
+	}
+	
+	/**
+	 * @see decode(String, InputStream, BatchEventHandler)
+	 * 
+	 * @param envelopePrefix "batch@[versionTag](/[dictionary id]):"
+	 * @param compressed closed once decoded
+	 * @param maxValueBytes longest value (key, cache name) the batch may declare
+	 * @param handler
+	 * @throws Exception
+	 */
+	public static void decode(String envelopePrefix, InputStream compressed, int maxValueBytes, BatchEventHandler handler) throws Exception {
 		
-		String compressedAsB64 = BatchJMSEventMessageUtil.toString(msg);
-		System.out.println(compressedAsB64);
+		if (!isBatchJMSEventMessage(envelopePrefix)) {
+			compressed.close();
+			throw new Exception("BatchJMSEventMessageUtil.decode(), cannot process, " +
+					"envelope was not prefixed w/ " + PREFIX_START + "[versionTag]" + PREFIX_END);
+		}
 		
-		BatchJMSEventMessage reconstituted = BatchJMSEventMessageUtil.fromString(compressedAsB64);
-		String compressedAsB642 = BatchJMSEventMessageUtil.toString(reconstituted);
-
-		System.out.println("LENGTH = " + compressedAsB642.length());
-		System.out.println(compressedAsB64.equals(compressedAsB642));
+		InputStream in = null;
+		try {
+			BatchCodec codec = resolveCodec(envelopePrefix);
+			
+			// decompressed as read w/ a pooled Inflater
+			in = ZlibPool.inflate(compressed, resolveDictionary(envelopePrefix));
+			
+			if (codec instanceof StreamingBatchCodec) {
+				((StreamingBatchCodec)codec).decode(in, maxValueBytes, handler);
+				
+			} else {
+				ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				int count = 0;
+				while ((count = in.read(buffer)) != -1) {
+					decompressed.write(buffer, 0, count);
+				}
+				replay(codec.decode(decompressed.toByteArray()), handler);
+			}
+			
+		} finally {
+			if (in != null) {
+				in.close();
+			} else {
+				compressed.close();
+			}
+		}
+	}
+	
+	/**
+	 * Hand every event of the batch to the handler, Integer/Long keys
+	 * as ranges (@see BatchEventHandler.onRemoveRange())
+	 * 
+	 * @param batchMessage
+	 * @param handler
+	 * @throws Exception
+	 */
+	public static void replay(BatchJMSEventMessage batchMessage, BatchEventHandler handler) throws Exception {
+		
+		handler.onBatch(batchMessage.getCreatedAt().getTime());
+		
+		for (String cacheName : batchMessage.getRemoveAllCacheNames()) {
+			handler.onRemoveAll(cacheName);
+		}
+		
+		for (String cacheName : batchMessage.getCacheNamesWithEvents()) {
+			for (Serializable key : batchMessage.getRemoveEventsFor(cacheName, false)) {
+				handler.onRemove(cacheName, key);
+			}
+			replayRanges(cacheName, batchMessage.getRemovedIntegerKeysFor(cacheName), true, handler);
+			replayRanges(cacheName, batchMessage.getRemovedLongKeysFor(cacheName), false, handler);
+		}
+	}
+	
+	private static void replayRanges(String cacheName, LongRangeSet ranges, boolean integerKeys, BatchEventHandler handler) throws Exception {
+		if (ranges == null) {
+			return;
+		}
+		for (int i=0; i<ranges.getRangeCount(); i++) {
+			handler.onRemoveRange(cacheName, ranges.getFirst(i), ranges.getLast(i), integerKeys);
+		}
+	}
+	
+	/**
+	 * @param envelopePrefix
+	 * @return the codec registered for the envelope's versionTag
+	 * @throws Exception if none is
+	 */
+	private static BatchCodec resolveCodec(String envelopePrefix) throws Exception {
+		String versionTag = getVersionTag(envelopePrefix);
+		BatchCodec codec = BatchCodecRegistry.getByVersionTag(versionTag);
+		if (codec == null) {
+			throw new Exception("BatchJMSEventMessageUtil, cannot process, " +
+					"no BatchCodec registered for versionTag '" + versionTag + "'");
+		}
+		return codec;
+	}
+	
+	/**
+	 * @param envelopePrefix
+	 * @return the dictionary registered for the envelope's dictionary id, null if it names none
+	 * @throws Exception if it names one that is not registered
+	 */
+	private static CompressionDictionary resolveDictionary(String envelopePrefix) throws Exception {
+		String dictionaryId = getDictionaryId(envelopePrefix);
+		if (dictionaryId == null) {
+			return null;
+		}
+		CompressionDictionary dictionary = CompressionDictionaryRegistry.get(dictionaryId);
+		if (dictionary == null) {
+			throw new Exception("BatchJMSEventMessageUtil, cannot process, " +
+					"no CompressionDictionary registered for id '" + dictionaryId + "'");
+		}
+		return dictionary;
+	}
+	
+	/**
+	 * The chars of a (Base64, i.e. ASCII) String from an offset as bytes,
+	 * w/o copying the String
+	 */
+	private static final class StringAsciiInputStream extends InputStream {
+		
+		private final String str;
+		private int pos;
+		
+		private StringAsciiInputStream(String str, int offset) {
+			this.str = str;
+			this.pos = offset;
+		}
 		
+		@Override
+		public int read() {
+			return (pos < str.length() ? str.charAt(pos++) & 0xFF : -1);
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (pos >= str.length()) {
+				return -1;
+			}
+			int count = Math.min(len, str.length() - pos);
+			for (int i=0; i<count; i++) {
+				b[off + i] = (byte)str.charAt(pos++);
+			}
+			return count;
+		}
 	}
 }
@@ -0,0 +1,55 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.io.Serializable;
+
+/**
+ * Simple immutable cacheName + key pair
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class CacheKey {
+
+	private final String cacheName;
+	private final Serializable key;
+	private final int hash;
+
+	public CacheKey(String cacheName, Serializable key) {
+		this.cacheName = cacheName;
+		this.key = key;
+		this.hash = (31 * cacheName.hashCode()) + (key != null ? key.hashCode() : 0);
+	}
+
+	public String getCacheName() {
+		return cacheName;
+	}
+
+	public Serializable getKey() {
+		return key;
+	}
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof CacheKey)) {
+			return false;
+		}
+		CacheKey other = (CacheKey)obj;
+		return hash == other.hash &&
+				cacheName.equals(other.cacheName) &&
+				(key == null ? other.key == null : key.equals(other.key));
+	}
+
+	@Override
+	public String toString() {
+		return cacheName + "->" + key;
+	}
+
+}
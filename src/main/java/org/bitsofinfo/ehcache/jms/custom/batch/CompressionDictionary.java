@@ -0,0 +1,66 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.util.zip.Adler32;
+
+/**
+ * A preset Deflate dictionary (@see Deflater.setDictionary) identified
+ * by an id that travels in the batch envelope ("batch@[versionTag]/[id]:")
+ * so receivers know which dictionary to inflate with
+ * 
+ * A dictionary is simply bytes likely to appear in batches, i.e. our cache 
+ * names and common key prefixes, with the most frequent ones at the end. 
+ * It lets Deflate back-reference those from the very first byte of a 
+ * message rather than starting with an empty window, which is where small
+ * and medium batches gain the most. @see CompressionDictionaryBuilder
+ * 
+ * NOTE: the bytes behind an id must NEVER change once used, every
+ * receiver must have the exact same dictionary, use a new id instead
+ * 
+ * @see CompressionDictionaryRegistry
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class CompressionDictionary {
+	
+	private final String id;
+	private final byte[] bytes;
+	private final long adler;
+	
+	/**
+	 * @param id must not contain ':' or '/'
+	 * @param bytes
+	 */
+	public CompressionDictionary(String id, byte[] bytes) {
+		if (id == null || id.length() == 0 || id.indexOf(':') != -1 || id.indexOf('/') != -1) {
+			throw new IllegalArgumentException("CompressionDictionary id cannot be empty or contain ':' or '/' -> " + id);
+		}
+		this.id = id;
+		this.bytes = bytes;
+		
+		// what zlib records in the stream header to identify the dictionary
+		Adler32 adler32 = new Adler32();
+		adler32.update(bytes);
+		this.adler = adler32.getValue();
+	}
+	
+	public String getId() {
+		return id;
+	}
+	
+	public byte[] getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * @return Adler-32 checksum of the bytes, as found in the header of streams compressed w/ it
+	 */
+	public long getAdler() {
+		return adler;
+	}
+	
+	public String toString() {
+		return id + "[" + bytes.length + " bytes, adler=" + adler + "]";
+	}
+
+}
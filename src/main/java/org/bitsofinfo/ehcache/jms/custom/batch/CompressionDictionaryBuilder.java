@@ -0,0 +1,242 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodec;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodecRegistry;
+
+/**
+ * Offline tool that trains a CompressionDictionary from captured batches
+ *
+ * 	java ... CompressionDictionaryBuilder [outputFile] [codec name] [maxBytes] [captureFile]...
+ *
+ * Each capture file holds one batch payload per line exactly as sent
+ * ("batch@...", i.e. grep'd out of a log or dumped off the topic), any
+ * other line is ignored. The cache names and string key prefixes (up to
+ * the last ':', '.', '/', '-', '_' or '#') found are scored by how often
+ * they occur times their length, and the best ones are written, least
+ * valuable first, as Deflate favors the end of the dictionary (closest to
+ * the data). Last comes a sample batch of the top cache names encoded by
+ * the given codec, which teaches the dictionary the codec's own framing.
+ *
+ * Keep maxBytes <= 32768 (Deflate's window), 4-16k is usually plenty.
+ * The compressed size of every sample w/ and w/o the dictionary is reported.
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class CompressionDictionaryBuilder {
+
+	private static final int MIN_FRAGMENT_LENGTH = 3;
+	private static final String KEY_PREFIX_DELIMITERS = ":./-_#";
+
+	private final Map<String,Integer> fragmentCounts = new HashMap<String,Integer>();
+	private final Map<String,Integer> cacheNameCounts = new HashMap<String,Integer>();
+	private final List<byte[]> samples = new ArrayList<byte[]>();
+
+	private final BatchCodec codec;
+
+	public CompressionDictionaryBuilder(BatchCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * Add a captured batch to train on
+	 *
+	 * @param batchMessage
+	 * @throws Exception
+	 */
+	public void addSample(BatchJMSEventMessage batchMessage) throws Exception {
+
+		samples.add(codec.encode(batchMessage));
+
+		for (String cacheName : batchMessage.getRemoveAllCacheNames()) {
+			count(cacheNameCounts, cacheName);
+			count(fragmentCounts, cacheName);
+		}
+
+		for (String cacheName : batchMessage.getCacheNamesWithEvents()) {
+			count(cacheNameCounts, cacheName);
+			count(fragmentCounts, cacheName);
+
+			for (Serializable key : batchMessage.getRemoveEventsFor(cacheName)) {
+				if (key instanceof String) {
+					String prefix = keyPrefix((String)key);
+					if (prefix != null) {
+						count(fragmentCounts, prefix);
+					}
+				}
+			}
+		}
+	}
+
+	private static void count(Map<String,Integer> counts, String fragment) {
+		Integer count = counts.get(fragment);
+		counts.put(fragment, (count == null ? 1 : count + 1));
+	}
+
+	private static String keyPrefix(String key) {
+		for (int i=key.length()-1; i>=MIN_FRAGMENT_LENGTH-1; i--) {
+			if (KEY_PREFIX_DELIMITERS.indexOf(key.charAt(i)) != -1) {
+				return key.substring(0, i+1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param maxBytes
+	 * @return the trained dictionary bytes
+	 * @throws Exception
+	 */
+	public byte[] build(int maxBytes) throws Exception {
+
+		// a sample batch of the most common cache names (for the codec's framing)
+		List<Map.Entry<String,Integer>> cacheNames = sortByScore(cacheNameCounts, false);
+		BatchJMSEventMessage framing = new BatchJMSEventMessage(System.currentTimeMillis());
+		for (int i=0; i<cacheNames.size() && i<4; i++) {
+			if (i % 2 == 0) {
+				framing.addCacheEvent(cacheNames.get(i).getKey(), "key", BatchJMSEventMessage.REMOVE);
+			} else {
+				framing.addRemovalAllCacheName(cacheNames.get(i).getKey());
+			}
+		}
+		byte[] framingBytes = codec.encode(framing);
+
+		// best fragments that fit (highest score first)
+		int budget = maxBytes - framingBytes.length;
+		List<byte[]> chosen = new ArrayList<byte[]>();
+		for (Map.Entry<String,Integer> fragment : sortByScore(fragmentCounts, false)) {
+
+			// seen once is just noise
+			if (fragment.getValue() < 2) {
+				continue;
+			}
+
+			byte[] bytes = fragment.getKey().getBytes("UTF-8");
+			if (bytes.length <= budget) {
+				chosen.add(bytes);
+				budget -= bytes.length;
+			}
+		}
+
+		// then write them least valuable first, framing last
+		Collections.reverse(chosen);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream(maxBytes);
+		for (byte[] bytes : chosen) {
+			out.write(bytes);
+		}
+		out.write(framingBytes);
+
+		byte[] dictionary = out.toByteArray();
+		if (dictionary.length > maxBytes) {
+			dictionary = Arrays.copyOfRange(dictionary, dictionary.length - maxBytes, dictionary.length);
+		}
+		return dictionary;
+	}
+
+	/**
+	 * @param dictionary
+	 * @return [total compressed bytes w/o dictionary, total compressed bytes w/ it] over all samples
+	 */
+	public long[] evaluate(CompressionDictionary dictionary) {
+		long[] totals = new long[2];
+		for (byte[] sample : samples) {
+			totals[0] += ZlibPool.compress(sample).length;
+			totals[1] += ZlibPool.compress(sample, 0, sample.length, dictionary).length;
+		}
+		return totals;
+	}
+
+	public int getSampleCount() {
+		return samples.size();
+	}
+
+	private static List<Map.Entry<String,Integer>> sortByScore(Map<String,Integer> counts, final boolean ascending) {
+		List<Map.Entry<String,Integer>> entries = new ArrayList<Map.Entry<String,Integer>>(counts.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String,Integer>>() {
+			public int compare(Map.Entry<String,Integer> e1, Map.Entry<String,Integer> e2) {
+				long score1 = (long)e1.getValue() * e1.getKey().length();
+				long score2 = (long)e2.getValue() * e2.getKey().length();
+				int result = (score1 < score2 ? -1 : (score1 == score2 ? e1.getKey().compareTo(e2.getKey()) : 1));
+				return ascending ? result : -result;
+			}
+		});
+		return entries;
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		if (args.length < 4) {
+			System.out.println("Usage: CompressionDictionaryBuilder [outputFile] [codec name i.e. json|binary] " +
+					"[maxBytes i.e. 16384] [captureFile]...");
+			System.exit(1);
+		}
+
+		BatchCodec codec = BatchCodecRegistry.getByName(args[1]);
+		if (codec == null) {
+			System.out.println("Unknown codec: " + args[1]);
+			System.exit(1);
+		}
+
+		CompressionDictionaryBuilder builder = new CompressionDictionaryBuilder(codec);
+		int unreadable = 0;
+
+		for (int i=3; i<args.length; i++) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(args[i]), "UTF-8"));
+			try {
+				String line = null;
+				while ((line = reader.readLine()) != null) {
+					line = line.trim();
+					if (!BatchJMSEventMessageUtil.isBatchJMSEventMessage(line)) {
+						continue;
+					}
+					try {
+						builder.addSample(BatchJMSEventMessageUtil.fromString(line));
+					} catch(Exception e) {
+						unreadable++;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+
+		byte[] dictionary = builder.build(Integer.valueOf(args[2]));
+
+		FileOutputStream fos = new FileOutputStream(args[0]);
+		try {
+			fos.write(dictionary);
+		} finally {
+			fos.close();
+		}
+
+		long[] totals = builder.evaluate(new CompressionDictionary("eval", dictionary));
+
+		Map<String,Object> report = new LinkedHashMap<String,Object>();
+		report.put("samples", builder.getSampleCount());
+		report.put("unreadable", unreadable);
+		report.put("dictionaryBytes", dictionary.length);
+		report.put("compressedBytesWithout", totals[0]);
+		report.put("compressedBytesWith", totals[1]);
+		if (totals[0] > 0) {
+			report.put("savedPct", 100 - ((totals[1] * 100) / totals[0]));
+		}
+		System.out.println("Wrote " + args[0] + " " + report);
+	}
+
+}
@@ -0,0 +1,89 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM wide registry of the CompressionDictionaries batches
+ * may reference, looked up by the id found in their envelope
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class CompressionDictionaryRegistry {
+	
+	private static final Map<String,CompressionDictionary> dictionaries = new ConcurrentHashMap<String,CompressionDictionary>();
+	
+	private CompressionDictionaryRegistry() {
+	}
+	
+	/**
+	 * Register a dictionary, replacing one w/ the same id only if identical
+	 * 
+	 * @param dictionary
+	 * @throws IllegalArgumentException if different bytes are already registered for the id
+	 */
+	public static void register(CompressionDictionary dictionary) {
+		CompressionDictionary existing = dictionaries.get(dictionary.getId());
+		if (existing != null && existing.getAdler() != dictionary.getAdler()) {
+			throw new IllegalArgumentException("CompressionDictionary " + dictionary.getId() + 
+					" is already registered w/ different content " + existing);
+		}
+		dictionaries.put(dictionary.getId(), dictionary);
+	}
+	
+	/**
+	 * @param id
+	 * @return the dictionary, null if none is registered for id
+	 */
+	public static CompressionDictionary get(String id) {
+		return dictionaries.get(id);
+	}
+	
+	/**
+	 * Load a dictionary from a file, or if no such file exists
+	 * a classpath resource, and register it
+	 * 
+	 * @param id
+	 * @param location file path or classpath resource
+	 * @return the registered dictionary
+	 * @throws IOException if it cannot be found/read
+	 */
+	public static CompressionDictionary load(String id, String location) throws IOException {
+		
+		InputStream is = null;
+		File file = new File(location);
+		if (file.isFile()) {
+			is = new FileInputStream(file);
+		} else {
+			is = CompressionDictionaryRegistry.class.getClassLoader().getResourceAsStream(
+					location.startsWith("/") ? location.substring(1) : location);
+		}
+		
+		if (is == null) {
+			throw new IOException("CompressionDictionary " + id + " not found as a file or classpath resource: " + location);
+		}
+		
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int count = 0;
+			while ((count = is.read(buf)) != -1) {
+				bytes.write(buf, 0, count);
+			}
+			
+			CompressionDictionary dictionary = new CompressionDictionary(id, bytes.toByteArray());
+			register(dictionary);
+			return dictionary;
+			
+		} finally {
+			is.close();
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drops redelivered inbound batches (i.e. SQS is at-least-once)
+ *
+ * Every batch message is stamped by its sender w/ the sender's origin id
+ * (random per BatchPublisher, so a restarted sender never collides w/ its
+ * previous life) and a sequence number @see BatchPublisher. The stamps of
+ * the batches applied within the last windowMS are remembered, a message
+ * w/ a stamp already seen is a duplicate and skipped before its payload is
+ * even looked at.
+ *
+ * 	- memory is bounded by maxEntries, the oldest stamps are forgotten
+ * 	  first (a redelivery after that is simply applied again)
+ *
+ * 	- stamps are expired in arrival order on every call, no sweeper needed
+ *
+ * Thread safe
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class InboundDuplicateFilter {
+
+	private final long windowMS;
+	private final int maxEntries;
+
+	// stamp -> time first seen, oldest first
+	private final LinkedHashMap<Stamp,Long> seen = new LinkedHashMap<Stamp,Long>();
+
+	private final AtomicLong batchesAccepted = new AtomicLong(0);
+	private final AtomicLong duplicatesDropped = new AtomicLong(0);
+
+	/**
+	 * Constructor
+	 *
+	 * @param windowMS how long a stamp is remembered
+	 * @param maxEntries max number of stamps remembered
+	 */
+	public InboundDuplicateFilter(long windowMS, int maxEntries) {
+		this.windowMS = windowMS;
+		this.maxEntries = Math.max(1, maxEntries);
+	}
+
+	/**
+	 * @param origin the sender's origin id
+	 * @param sequence the sender's sequence number of the batch
+	 * @return true if this is the first delivery (within the window), false if a duplicate that should be dropped
+	 */
+	public synchronized boolean firstDelivery(String origin, long sequence) {
+
+		long now = System.currentTimeMillis();
+		expire(now);
+
+		Stamp stamp = new Stamp(origin, sequence);
+		if (seen.containsKey(stamp)) {
+			duplicatesDropped.incrementAndGet();
+			return false;
+		}
+
+		seen.put(stamp, now);
+		if (seen.size() > maxEntries) {
+			Iterator<Stamp> eldest = seen.keySet().iterator();
+			eldest.next();
+			eldest.remove();
+		}
+
+		batchesAccepted.incrementAndGet();
+		return true;
+	}
+
+	private void expire(long now) {
+		Iterator<Long> seenAt = seen.values().iterator();
+		while (seenAt.hasNext()) {
+			if (now - seenAt.next() < windowMS) {
+				return;
+			}
+			seenAt.remove();
+		}
+	}
+
+	public long getWindowMS() {
+		return windowMS;
+	}
+
+	public synchronized int getTrackedStamps() {
+		return seen.size();
+	}
+
+	public long getBatchesAccepted() {
+		return batchesAccepted.get();
+	}
+
+	public long getDuplicatesDropped() {
+		return duplicatesDropped.get();
+	}
+
+	/**
+	 * origin id + sequence of a batch
+	 */
+	private static final class Stamp {
+
+		private final String origin;
+		private final long sequence;
+
+		private Stamp(String origin, long sequence) {
+			this.origin = origin;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int hashCode() {
+			return origin.hashCode() * 31 + (int)(sequence ^ (sequence >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Stamp)) {
+				return false;
+			}
+			Stamp other = (Stamp)obj;
+			return sequence == other.sequence && origin.equals(other.origin);
+		}
+	}
+
+}
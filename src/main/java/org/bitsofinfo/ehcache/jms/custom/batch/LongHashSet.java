@@ -0,0 +1,144 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.util.Arrays;
+
+/**
+ * Primitive open addressing (linear probing) hash set of longs,
+ * no boxing and no per entry objects, 8 bytes a slot
+ *
+ * 0 marks a free slot, hence 0 itself is tracked apart
+ *
+ * NOTE: not synchronized
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class LongHashSet {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] slots;
+	private int mask;
+	private int size = 0;
+	private boolean containsZero = false;
+
+	public LongHashSet() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize
+	 */
+	public LongHashSet(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2) {
+			capacity <<= 1;
+		}
+		this.slots = new long[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value was not already present
+	 */
+	public boolean add(long value) {
+		if (value == 0) {
+			if (containsZero) {
+				return false;
+			}
+			containsZero = true;
+			size++;
+			return true;
+		}
+
+		int index = slot(value);
+		while (slots[index] != 0) {
+			if (slots[index] == value) {
+				return false;
+			}
+			index = (index + 1) & mask;
+		}
+		slots[index] = value;
+		size++;
+
+		// keep the load factor <= 0.5
+		if (size * 2 > slots.length) {
+			rehash(slots.length * 2);
+		}
+		return true;
+	}
+
+	public boolean contains(long value) {
+		if (value == 0) {
+			return containsZero;
+		}
+		int index = slot(value);
+		while (slots[index] != 0) {
+			if (slots[index] == value) {
+				return true;
+			}
+			index = (index + 1) & mask;
+		}
+		return false;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return all values, ascending
+	 */
+	public long[] toSortedArray() {
+		long[] values = new long[size];
+		int count = 0;
+		if (containsZero) {
+			values[count++] = 0;
+		}
+		for (long value : slots) {
+			if (value != 0) {
+				values[count++] = value;
+			}
+		}
+		Arrays.sort(values);
+		return values;
+	}
+
+	public void clear() {
+		if (slots.length > MIN_CAPACITY) {
+			slots = new long[MIN_CAPACITY];
+			mask = MIN_CAPACITY - 1;
+		} else {
+			Arrays.fill(slots, 0);
+		}
+		size = 0;
+		containsZero = false;
+	}
+
+	private int slot(long value) {
+		// fibonacci hashing spreads sequential values
+		long hash = value * 0x9E3779B97F4A7C15L;
+		return (int)(hash ^ (hash >>> 32)) & mask;
+	}
+
+	private void rehash(int capacity) {
+		long[] old = slots;
+		slots = new long[capacity];
+		mask = capacity - 1;
+		for (long value : old) {
+			if (value != 0) {
+				int index = slot(value);
+				while (slots[index] != 0) {
+					index = (index + 1) & mask;
+				}
+				slots[index] = value;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,264 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.util.Arrays;
+
+/**
+ * Primitive sorted set of longs held as disjoint, non adjacent
+ * inclusive ranges [first,last], i.e. 50,000 sequential ids are
+ * a single range of 16 bytes rather than 50,000 boxed Longs.
+ *
+ * Appending in ascending order (the common case of a bulk update
+ * walking a block of ids) extends or appends the last range in O(1).
+ * Any other value goes into a primitive LongHashSet and is only merged
+ * into the ranges (one sort, one linear pass) once they are read,
+ * i.e. by a codec, so adding is never worse than O(log ranges).
+ *
+ * getRangeCount() is kept exact on every add (a new value joins 0, 1
+ * or 2 existing runs) without merging anything.
+ *
+ * NOTE: not synchronized, @see BatchJMSEventMessage.addCacheEvent()
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class LongRangeSet {
+
+	private long[] firsts = new long[4];
+	private long[] lasts = new long[4];
+	private int ranges = 0;
+
+	// added out of order, not yet merged into the ranges
+	private final LongHashSet unmerged = new LongHashSet();
+
+	// total values held, can exceed an int given decoded ranges
+	private long size = 0;
+
+	// number of runs of the whole set (ranges + unmerged)
+	private int runs = 0;
+
+	/**
+	 * @param value
+	 * @return true if the value was not already present
+	 */
+	public boolean add(long value) {
+
+		// fast path, at or past the end of the last range
+		if (unmerged.isEmpty() && (ranges == 0 || value > lasts[ranges-1])) {
+			appendRange(value, value);
+			size++;
+			return true;
+		}
+
+		if (contains(value)) {
+			return false;
+		}
+
+		// joins the run below and/or above, or starts its own
+		int joins = 0;
+		if (value != Long.MIN_VALUE && contains(value - 1)) {
+			joins++;
+		}
+		if (value != Long.MAX_VALUE && contains(value + 1)) {
+			joins++;
+		}
+		runs += 1 - joins;
+		size++;
+
+		if (ranges == 0 || value > lasts[ranges-1] + 1 && lasts[ranges-1] != Long.MAX_VALUE) {
+			appendRangeOnly(value);
+		} else if (value == lasts[ranges-1] + 1 && lasts[ranges-1] != Long.MAX_VALUE) {
+			lasts[ranges-1] = value;
+		} else {
+			unmerged.add(value);
+		}
+		return true;
+	}
+
+	/**
+	 * Add every value of [first,last], merging w/ any overlapping
+	 * or adjacent range already held
+	 *
+	 * @param first
+	 * @param last inclusive, >= first
+	 * @return number of values that were not already present
+	 */
+	public long addRange(long first, long last) {
+
+		if (last < first) {
+			throw new IllegalArgumentException("LongRangeSet.addRange() last " + last + " < first " + first);
+		}
+
+		merge();
+
+		// fast path, at or past the end of the last range
+		if (ranges == 0 || first > lasts[ranges-1]) {
+			appendRange(first, last);
+			long added = (last - first) + 1;
+			size += added;
+			return added;
+		}
+
+		// first range that ends at or after first-1 (i.e. overlaps or touches)
+		int from = firstRangeEndingAtOrAfter(first == Long.MIN_VALUE ? first : first - 1);
+
+		// ranges [from,to) overlap or touch [first,last]
+		int to = from;
+		long mergedFirst = first;
+		long mergedLast = last;
+		long covered = 0;
+		while (to < ranges && (last == Long.MAX_VALUE || firsts[to] <= last + 1)) {
+			mergedFirst = Math.min(mergedFirst, firsts[to]);
+			mergedLast = Math.max(mergedLast, lasts[to]);
+			covered += (lasts[to] - firsts[to]) + 1;
+			to++;
+		}
+
+		if (from == to) {
+			ensureCapacity(ranges + 1);
+			System.arraycopy(firsts, from, firsts, from + 1, ranges - from);
+			System.arraycopy(lasts, from, lasts, from + 1, ranges - from);
+			ranges++;
+		} else if (to - from > 1) {
+			System.arraycopy(firsts, to, firsts, from + 1, ranges - to);
+			System.arraycopy(lasts, to, lasts, from + 1, ranges - to);
+			ranges -= (to - from - 1);
+		}
+		firsts[from] = mergedFirst;
+		lasts[from] = mergedLast;
+		runs = ranges;
+
+		long added = ((mergedLast - mergedFirst) + 1) - covered;
+		size += added;
+		return added;
+	}
+
+	/**
+	 * Extend the last range w/ [first,last] if adjacent, otherwise
+	 * append it, first must be > the last value of the last range
+	 */
+	private void appendRange(long first, long last) {
+		if (ranges > 0 && lasts[ranges-1] != Long.MAX_VALUE && first == lasts[ranges-1] + 1) {
+			lasts[ranges-1] = last;
+		} else {
+			appendRangeOnly(first);
+			lasts[ranges-1] = last;
+			runs++;
+		}
+	}
+
+	private void appendRangeOnly(long value) {
+		ensureCapacity(ranges + 1);
+		firsts[ranges] = value;
+		lasts[ranges] = value;
+		ranges++;
+	}
+
+	public boolean contains(long value) {
+		int index = firstRangeEndingAtOrAfter(value);
+		return (index < ranges && firsts[index] <= value) || unmerged.contains(value);
+	}
+
+	/**
+	 * Merge any values added out of order into the ranges
+	 */
+	private void merge() {
+		if (unmerged.isEmpty()) {
+			return;
+		}
+
+		long[] values = unmerged.toSortedArray();
+		unmerged.clear();
+
+		long[] mergedFirsts = new long[ranges + values.length];
+		long[] mergedLasts = new long[ranges + values.length];
+		int merged = 0;
+
+		int r = 0;
+		int v = 0;
+		while (r < ranges || v < values.length) {
+			long first;
+			long last;
+			if (v >= values.length || (r < ranges && firsts[r] < values[v])) {
+				first = firsts[r];
+				last = lasts[r++];
+			} else {
+				first = values[v];
+				last = values[v++];
+			}
+
+			if (merged > 0 && mergedLasts[merged-1] != Long.MAX_VALUE && first <= mergedLasts[merged-1] + 1) {
+				mergedLasts[merged-1] = Math.max(mergedLasts[merged-1], last);
+			} else {
+				mergedFirsts[merged] = first;
+				mergedLasts[merged++] = last;
+			}
+		}
+
+		firsts = mergedFirsts;
+		lasts = mergedLasts;
+		ranges = merged;
+		runs = merged;
+	}
+
+	/**
+	 * @return index of the first range whose last >= value, ranges if none
+	 */
+	private int firstRangeEndingAtOrAfter(long value) {
+		int low = 0;
+		int high = ranges - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (lasts[mid] < value) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private void ensureCapacity(int required) {
+		if (required > firsts.length) {
+			int capacity = Math.max(required, firsts.length * 2);
+			firsts = Arrays.copyOf(firsts, capacity);
+			lasts = Arrays.copyOf(lasts, capacity);
+		}
+	}
+
+	/**
+	 * @return total number of values held
+	 */
+	public long size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return number of disjoint runs, i.e. what the set costs to encode
+	 */
+	public int getRangeCount() {
+		return runs;
+	}
+
+	/**
+	 * @param index 0 to getRangeCount()-1, ascending
+	 * @return first value of the range
+	 */
+	public long getFirst(int index) {
+		merge();
+		return firsts[index];
+	}
+
+	/**
+	 * @param index 0 to getRangeCount()-1, ascending
+	 * @return last value (inclusive) of the range
+	 */
+	public long getLast(int index) {
+		merge();
+		return lasts[index];
+	}
+
+}
@@ -0,0 +1,152 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Receiver side bookkeeping of multipart batches, @see BatchJMSEventMessageUtil.split()
+ *
+ * Every part of a multipart batch is a complete batch of its own (the
+ * events of an invalidation batch are independent of each other) so
+ * parts are applied as they arrive, nothing is buffered. What we track
+ * per batch id is only which parts were seen, to skip redelivered parts
+ * and to report batches whose parts did not all arrive within timeoutMS.
+ *
+ * Bounded to maxTracked batch ids, the oldest is forgotten first.
+ * Thread safe
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class MultipartBatchTracker {
+
+	private final Log LOG = LogFactory.getLog(getClass());
+
+	private final long timeoutMS;
+	private final int maxTracked;
+
+	// batch id -> parts seen, oldest first
+	private final LinkedHashMap<String,PartialBatch> batches = new LinkedHashMap<String,PartialBatch>();
+
+	private final AtomicLong partsReceived = new AtomicLong(0);
+	private final AtomicLong duplicatePartsSkipped = new AtomicLong(0);
+	private final AtomicLong batchesCompleted = new AtomicLong(0);
+	private final AtomicLong batchesIncomplete = new AtomicLong(0);
+
+	/**
+	 * @param timeoutMS how long after its first part a batch's other parts are expected
+	 * @param maxTracked max number of batch ids tracked at once
+	 */
+	public MultipartBatchTracker(long timeoutMS, int maxTracked) {
+		this.timeoutMS = timeoutMS;
+		this.maxTracked = Math.max(1, maxTracked);
+	}
+
+	/**
+	 * Record the arrival of a part
+	 *
+	 * @param batchId
+	 * @param part 0 based
+	 * @param parts total number of parts of the batch
+	 * @return false if this part was already received (i.e. redelivered) and should be skipped
+	 */
+	public synchronized boolean onPart(String batchId, int part, int parts) {
+
+		long now = System.currentTimeMillis();
+		expire(now);
+
+		if (part < 0 || parts < 1 || part >= parts) {
+			LOG.warn("onPart() malformed part " + part + " of " + parts + " for batch " + batchId + ", applying it untracked");
+			return true;
+		}
+
+		PartialBatch batch = batches.get(batchId);
+		if (batch == null) {
+			batch = new PartialBatch(now, parts);
+			batches.put(batchId, batch);
+
+			if (batches.size() > maxTracked) {
+				Iterator<Map.Entry<String,PartialBatch>> eldest = batches.entrySet().iterator();
+				forget(eldest.next(), "evicted");
+				eldest.remove();
+			}
+		}
+
+		if (batch.received.get(part)) {
+			duplicatePartsSkipped.incrementAndGet();
+			return false;
+		}
+
+		batch.received.set(part);
+		partsReceived.incrementAndGet();
+		if (++batch.receivedCount == batch.parts) {
+			batchesCompleted.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Forget every batch whose first part arrived more than timeoutMS ago,
+	 * those are in arrival order so we stop at the first one still current
+	 */
+	private void expire(long now) {
+		Iterator<Map.Entry<String,PartialBatch>> entries = batches.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<String,PartialBatch> entry = entries.next();
+			if (now - entry.getValue().firstSeen < timeoutMS) {
+				return;
+			}
+			forget(entry, "timed out");
+			entries.remove();
+		}
+	}
+
+	private void forget(Map.Entry<String,PartialBatch> entry, String reason) {
+		PartialBatch batch = entry.getValue();
+		if (batch.receivedCount < batch.parts) {
+			batchesIncomplete.incrementAndGet();
+			LOG.warn("multipart batch " + entry.getKey() + " " + reason + " w/ only " + batch.receivedCount
+					+ " of " + batch.parts + " parts received");
+		}
+	}
+
+	public synchronized int getTrackedBatches() {
+		return batches.size();
+	}
+
+	public long getPartsReceived() {
+		return partsReceived.get();
+	}
+
+	public long getDuplicatePartsSkipped() {
+		return duplicatePartsSkipped.get();
+	}
+
+	public long getBatchesCompleted() {
+		return batchesCompleted.get();
+	}
+
+	public long getBatchesIncomplete() {
+		return batchesIncomplete.get();
+	}
+
+	private static final class PartialBatch {
+
+		private final long firstSeen;
+		private final int parts;
+		private final BitSet received = new BitSet();
+		private int receivedCount = 0;
+
+		private PartialBatch(long firstSeen, int parts) {
+			this.firstSeen = firstSeen;
+			this.parts = parts;
+		}
+	}
+
+}
@@ -0,0 +1,166 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cross-batch duplicate suppression for write-hot keys
+ *
+ * Remembers every cacheName+key REMOVE that went out in a sealed batch
+ * for windowMS. Another REMOVE for the same key inside that window is
+ * suppressed (not batched again), but the key is flagged so that ONE
+ * trailing invalidation is sent once the window closes, guaranteeing
+ * the last write is always followed by an invalidation on the receivers.
+ *
+ * 	- memory is bounded by maxEntries, once full new keys are simply
+ * 	  not tracked (i.e. never suppressed) until entries expire
+ *
+ * 	- sweep() must be invoked periodically, it expires old entries and
+ * 	  returns the trailing invalidations that are now due
+ * 
+ * 	- a key's "published" time is when the sealer STARTED draining the
+ * 	  batch that contained it, any suppression after that point is not
+ * 	  covered by that batch and still warrants a trailing invalidation
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class RecentInvalidationFilter {
+
+	/*
+	 * Entries are expired a little after their window closes so that a
+	 * suppress() that saw an open window has long since flagged the entry
+	 */
+	private static final long SWEEP_GRACE_MS = 100;
+
+	private final long windowMS;
+	private final int maxEntries;
+
+	private final ConcurrentHashMap<CacheKey, Published> published = new ConcurrentHashMap<CacheKey, Published>();
+
+	private final AtomicLong suppressedEvents = new AtomicLong(0);
+	private final AtomicLong trailingInvalidations = new AtomicLong(0);
+
+	/**
+	 * Constructor
+	 *
+	 * @param windowMS how long after being published a key is suppressed
+	 * @param maxEntries max number of keys tracked
+	 */
+	public RecentInvalidationFilter(long windowMS, int maxEntries) {
+		this.windowMS = windowMS;
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param cacheName
+	 * @param key
+	 * @return true if a REMOVE for this key was published within the window,
+	 * 	in which case the caller should NOT batch it again (a trailing
+	 * 	invalidation will be returned by sweep() once the window closes)
+	 */
+	public boolean suppress(String cacheName, Serializable key) {
+		Published entry = published.get(new CacheKey(cacheName, key));
+		if (entry == null || (System.currentTimeMillis() - entry.publishedAt) >= windowMS) {
+			return false;
+		}
+		entry.lastSuppressedAt = System.currentTimeMillis();
+		suppressedEvents.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Record all the keys of a sealed batch as published
+	 *
+	 * @param batch
+	 * @param sealedAt time the sealer started draining the events of this batch
+	 */
+	public void recordPublished(BatchJMSEventMessage batch, long sealedAt) {
+
+		for (String cacheName : batch.getCacheNamesWithEvents()) {
+			for (Serializable key : batch.getRemoveEventsFor(cacheName)) {
+
+				CacheKey cacheKey = new CacheKey(cacheName, key);
+				Published entry = published.get(cacheKey);
+
+				if (entry != null) {
+					// suppressions before sealedAt are now covered, later ones are not
+					entry.publishedAt = Math.max(entry.publishedAt, sealedAt);
+
+				} else if (published.size() < maxEntries) {
+					published.put(cacheKey, new Published(sealedAt));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Expire entries whose window has closed
+	 *
+	 * @return keys that were suppressed during their (now closed) window
+	 * 	and need a trailing invalidation
+	 */
+	public List<CacheKey> sweep() {
+		return sweep(false);
+	}
+
+	/**
+	 * Expire entries whose window has closed, or ALL entries if force
+	 * is true (i.e. on shutdown, when we cannot wait for windows to close)
+	 *
+	 * @param force
+	 * @return keys that were suppressed during their (now closed) window
+	 * 	and need a trailing invalidation
+	 */
+	public List<CacheKey> sweep(boolean force) {
+		long now = System.currentTimeMillis();
+		List<CacheKey> trailing = new ArrayList<CacheKey>();
+
+		Iterator<Map.Entry<CacheKey, Published>> itr = published.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<CacheKey, Published> entry = itr.next();
+			Published record = entry.getValue();
+			if (force || (now - record.publishedAt) >= (windowMS + SWEEP_GRACE_MS)) {
+				itr.remove();
+				if (record.lastSuppressedAt >= record.publishedAt) {
+					trailing.add(entry.getKey());
+				}
+			}
+		}
+
+		trailingInvalidations.addAndGet(trailing.size());
+		return trailing;
+	}
+
+	public long getWindowMS() {
+		return windowMS;
+	}
+
+	public int getTrackedKeys() {
+		return published.size();
+	}
+
+	public long getSuppressedEvents() {
+		return suppressedEvents.get();
+	}
+
+	public long getTrailingInvalidations() {
+		return trailingInvalidations.get();
+	}
+
+	private static final class Published {
+
+		private volatile long publishedAt;
+		private volatile long lastSuppressedAt = 0;
+
+		private Published(long publishedAt) {
+			this.publishedAt = publishedAt;
+		}
+	}
+
+}
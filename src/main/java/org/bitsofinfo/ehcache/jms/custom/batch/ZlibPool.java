@@ -0,0 +1,306 @@
+package org.bitsofinfo.ehcache.jms.custom.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * JVM wide, thread safe pool of Deflaters/Inflaters used to compress
+ * and decompress batch payloads
+ *
+ * Each Deflater/Inflater holds native zlib memory that is only
+ * reclaimed by end() (or much later by finalization), so rather than
+ * creating one per batch we reset() and reuse a handful of them, each
+ * paired with a large reusable buffer so a payload goes through in a
+ * few JNI calls rather than thousands.
+ *
+ * At most MAX_POOLED of each are kept idle, any extra instance
+ * (i.e. during a burst) is end()ed as soon as it is returned, as are
+ * all idle ones on clear()
+ * 
+ * Optionally a preset CompressionDictionary can be used, reset()
+ * clears it so a pooled instance never leaks one into the next use
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class ZlibPool {
+
+	// size of the buffer paired w/ every pooled Deflater/Inflater
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static final int MAX_POOLED = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+
+	private static final ConcurrentLinkedQueue<PooledDeflater> deflaters = new ConcurrentLinkedQueue<PooledDeflater>();
+	private static final ConcurrentLinkedQueue<PooledInflater> inflaters = new ConcurrentLinkedQueue<PooledInflater>();
+
+	// idle counts, ConcurrentLinkedQueue.size() is O(n)
+	private static final AtomicInteger idleDeflaters = new AtomicInteger(0);
+	private static final AtomicInteger idleInflaters = new AtomicInteger(0);
+
+	private ZlibPool() {
+	}
+
+	/**
+	 * Compress at Deflater.BEST_COMPRESSION
+	 *
+	 * @param data
+	 * @return
+	 */
+	public static byte[] compress(byte[] data) {
+		return compress(data, 0, data.length);
+	}
+
+	/**
+	 * Compress at Deflater.BEST_COMPRESSION
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return
+	 */
+	public static byte[] compress(byte[] data, int offset, int length) {
+		return compress(data, offset, length, null);
+	}
+
+	/**
+	 * Compress at Deflater.BEST_COMPRESSION w/ a preset dictionary
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @param dictionary null for none
+	 * @return
+	 */
+	public static byte[] compress(byte[] data, int offset, int length, CompressionDictionary dictionary) {
+
+		PooledDeflater pooled = borrowDeflater();
+		try {
+			Deflater deflater = pooled.deflater;
+			if (dictionary != null) {
+				deflater.setDictionary(dictionary.getBytes());
+			}
+			deflater.setInput(data, offset, length);
+			deflater.finish();
+
+			// compressed output is rarely bigger than the input
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, length / 2));
+			while (!deflater.finished()) {
+				int count = deflater.deflate(pooled.buffer);
+				out.write(pooled.buffer, 0, count);
+			}
+			return out.toByteArray();
+
+		} finally {
+			release(pooled);
+		}
+	}
+
+	/**
+	 * @param compressed
+	 * @return
+	 * @throws DataFormatException if compressed is not valid zlib data
+	 */
+	public static byte[] decompress(byte[] compressed) throws DataFormatException {
+		return decompress(compressed, null);
+	}
+
+	/**
+	 * @param compressed
+	 * @param dictionary the preset dictionary it was compressed w/, null for none
+	 * @return
+	 * @throws DataFormatException if compressed is not valid zlib data or
+	 * 	requires a dictionary other than the one given
+	 */
+	public static byte[] decompress(byte[] compressed, CompressionDictionary dictionary) throws DataFormatException {
+
+		PooledInflater pooled = borrowInflater();
+		try {
+			Inflater inflater = pooled.inflater;
+			inflater.setInput(compressed);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(256, compressed.length * 4));
+			while (!inflater.finished()) {
+				int count = inflater.inflate(pooled.buffer);
+				
+				// the stream header names the dictionary (by its Adler-32) before any data
+				if (count == 0 && inflater.needsDictionary()) {
+					long requiredAdler = inflater.getAdler() & 0xFFFFFFFFL;
+					if (dictionary == null || dictionary.getAdler() != requiredAdler) {
+						throw new DataFormatException("ZlibPool.decompress() input requires a preset dictionary w/ adler " 
+								+ requiredAdler + ", have: " + dictionary);
+					}
+					inflater.setDictionary(dictionary.getBytes());
+					continue;
+				}
+				
+				if (count == 0 && inflater.needsInput()) {
+					throw new DataFormatException("ZlibPool.decompress() truncated input");
+				}
+				out.write(pooled.buffer, 0, count);
+			}
+			return out.toByteArray();
+
+		} finally {
+			release(pooled);
+		}
+	}
+
+	/**
+	 * Decompress as the returned stream is read, through a pooled Inflater
+	 * (returned to the pool on close()) using its buffer for the compressed
+	 * input, so neither the compressed nor the decompressed payload is ever
+	 * held in full
+	 *
+	 * @param compressed closed along w/ the returned stream
+	 * @param dictionary the preset dictionary it was compressed w/, null for none
+	 * @return must be closed
+	 */
+	public static InputStream inflate(InputStream compressed, CompressionDictionary dictionary) {
+		return new PooledInflaterInputStream(compressed, dictionary);
+	}
+
+	private static final class PooledInflaterInputStream extends InputStream {
+
+		private final InputStream compressed;
+		private final CompressionDictionary dictionary;
+		private PooledInflater pooled;
+		private final byte[] single = new byte[1];
+
+		private PooledInflaterInputStream(InputStream compressed, CompressionDictionary dictionary) {
+			this.compressed = compressed;
+			this.dictionary = dictionary;
+			this.pooled = borrowInflater();
+		}
+
+		@Override
+		public int read() throws IOException {
+			return (read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (pooled == null) {
+				throw new IOException("ZlibPool stream closed");
+			}
+			if (len == 0) {
+				return 0;
+			}
+
+			Inflater inflater = pooled.inflater;
+			try {
+				while (true) {
+					if (inflater.finished()) {
+						return -1;
+					}
+
+					int count = inflater.inflate(b, off, len);
+					if (count > 0) {
+						return count;
+					}
+
+					// the stream header names the dictionary (by its Adler-32) before any data
+					if (inflater.needsDictionary()) {
+						long requiredAdler = inflater.getAdler() & 0xFFFFFFFFL;
+						if (dictionary == null || dictionary.getAdler() != requiredAdler) {
+							throw new IOException("ZlibPool.inflate() input requires a preset dictionary w/ adler "
+									+ requiredAdler + ", have: " + dictionary);
+						}
+						inflater.setDictionary(dictionary.getBytes());
+
+					} else if (inflater.needsInput()) {
+						int read = compressed.read(pooled.buffer, 0, pooled.buffer.length);
+						if (read == -1) {
+							throw new IOException("ZlibPool.inflate() truncated input");
+						}
+						inflater.setInput(pooled.buffer, 0, read);
+					}
+				}
+			} catch(DataFormatException e) {
+				throw new IOException("ZlibPool.inflate() invalid input: " + e.getMessage(), e);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (pooled != null) {
+				release(pooled);
+				pooled = null;
+			}
+			compressed.close();
+		}
+	}
+
+	private static PooledDeflater borrowDeflater() {
+		PooledDeflater pooled = deflaters.poll();
+		if (pooled == null) {
+			return new PooledDeflater();
+		}
+		idleDeflaters.decrementAndGet();
+		return pooled;
+	}
+
+	private static PooledInflater borrowInflater() {
+		PooledInflater pooled = inflaters.poll();
+		if (pooled == null) {
+			return new PooledInflater();
+		}
+		idleInflaters.decrementAndGet();
+		return pooled;
+	}
+
+	private static void release(PooledDeflater pooled) {
+		if (idleDeflaters.incrementAndGet() <= MAX_POOLED) {
+			pooled.deflater.reset();
+			deflaters.offer(pooled);
+		} else {
+			idleDeflaters.decrementAndGet();
+			pooled.deflater.end();
+		}
+	}
+
+	private static void release(PooledInflater pooled) {
+		if (idleInflaters.incrementAndGet() <= MAX_POOLED) {
+			pooled.inflater.reset();
+			inflaters.offer(pooled);
+		} else {
+			idleInflaters.decrementAndGet();
+			pooled.inflater.end();
+		}
+	}
+
+	/**
+	 * end() every idle Deflater/Inflater, releasing their native memory.
+	 * Safe to call at any time, the pool simply re-fills on demand
+	 */
+	public static void clear() {
+		PooledDeflater deflater = null;
+		while ((deflater = deflaters.poll()) != null) {
+			idleDeflaters.decrementAndGet();
+			deflater.deflater.end();
+		}
+		PooledInflater inflater = null;
+		while ((inflater = inflaters.poll()) != null) {
+			idleInflaters.decrementAndGet();
+			inflater.inflater.end();
+		}
+	}
+
+	private static final class PooledDeflater {
+
+		private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+	}
+
+	private static final class PooledInflater {
+
+		private final Inflater inflater = new Inflater();
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+	}
+
+}
@@ -0,0 +1,52 @@
+package org.bitsofinfo.ehcache.jms.custom.batch.codec;
+
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
+
+/**
+ * Marshals a BatchJMSEventMessage to/from raw bytes. The transport
+ * envelope (compression, Base64, "batch@[versionTag]:" prefix) is
+ * applied around whatever a codec produces by BatchJMSEventMessageUtil
+ * 
+ * The versionTag written into the envelope's prefix is what selects the
+ * codec on the receiving side, so DCs running different versions can
+ * interoperate as long as the receivers know every tag in use. The legacy
+ * JSON format has an empty tag (i.e. "batch@:") which is all older 
+ * receivers understand.
+ * 
+ * Implementations must be thread safe and are registered with
+ * the BatchCodecRegistry
+ * 
+ * @see BatchCodecRegistry
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public interface BatchCodec {
+	
+	/**
+	 * @return the name used to select this codec in configuration (i.e. batchCodec=json)
+	 */
+	public String getName();
+	
+	/**
+	 * @return the tag identifying this codec's format in the envelope prefix,
+	 * 	must not contain ':' or '/'. Never change it once messages have been sent with it,
+	 * 	introduce a new tag (and codec) for a new format instead
+	 */
+	public String getVersionTag();
+	
+	/**
+	 * @param batchMessage
+	 * @return the raw (uncompressed) encoded bytes
+	 * @throws Exception
+	 */
+	public byte[] encode(BatchJMSEventMessage batchMessage) throws Exception;
+	
+	/**
+	 * @param data raw (decompressed) bytes previously produced by encode()
+	 * @return
+	 * @throws Exception
+	 */
+	public BatchJMSEventMessage decode(byte[] data) throws Exception;
+
+}
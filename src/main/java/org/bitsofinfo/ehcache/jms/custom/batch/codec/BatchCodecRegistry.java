@@ -0,0 +1,71 @@
+package org.bitsofinfo.ehcache.jms.custom.batch.codec;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * JVM wide registry of the available BatchCodecs, looked up
+ * by name (configuration) or by versionTag (inbound messages)
+ * 
+ * The built in JsonBatchCodec (legacy, tag "") and BinaryBatchCodec 
+ * ("binary", tag "b1") are always registered,
+ * custom ones can be added via register()
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BatchCodecRegistry {
+	
+	private static final Map<String,BatchCodec> codecsByName = new ConcurrentHashMap<String,BatchCodec>();
+	private static final Map<String,BatchCodec> codecsByVersionTag = new ConcurrentHashMap<String,BatchCodec>();
+	
+	public static final BatchCodec JSON = new JsonBatchCodec();
+	public static final BatchCodec BINARY = new BinaryBatchCodec();
+	
+	static {
+		register(JSON);
+		register(BINARY);
+	}
+	
+	private BatchCodecRegistry() {
+	}
+	
+	/**
+	 * Register (or replace) a codec
+	 * 
+	 * @param codec
+	 */
+	public static void register(BatchCodec codec) {
+		if (codec.getVersionTag() == null || codec.getVersionTag().indexOf(':') != -1 || codec.getVersionTag().indexOf('/') != -1) {
+			throw new IllegalArgumentException("BatchCodec versionTag cannot be null or contain ':' or '/' -> " + codec.getVersionTag());
+		}
+		codecsByName.put(codec.getName().toLowerCase(), codec);
+		codecsByVersionTag.put(codec.getVersionTag(), codec);
+	}
+	
+	/**
+	 * @param name
+	 * @return the codec, null if none is registered under name
+	 */
+	public static BatchCodec getByName(String name) {
+		return codecsByName.get(name.trim().toLowerCase());
+	}
+	
+	/**
+	 * @param versionTag
+	 * @return the codec, null if none is registered for versionTag
+	 */
+	public static BatchCodec getByVersionTag(String versionTag) {
+		return codecsByVersionTag.get(versionTag);
+	}
+	
+	/**
+	 * @return read only view of every codec registered, one per versionTag
+	 */
+	public static Collection<BatchCodec> getAll() {
+		return Collections.unmodifiableCollection(codecsByVersionTag.values());
+	}
+
+}
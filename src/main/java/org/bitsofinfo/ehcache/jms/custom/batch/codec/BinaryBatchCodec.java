@@ -0,0 +1,448 @@
+package org.bitsofinfo.ehcache.jms.custom.batch.codec;
+
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bitsofinfo.ehcache.jms.custom.batch.Action2Keys;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchEventHandler;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageBuilder;
+import org.bitsofinfo.ehcache.jms.custom.batch.LongRangeSet;
+
+/**
+ * Compact binary format (versionTag "b1"), no reflection and no
+ * intermediate JSON String, considerably smaller and cheaper to
+ * encode/decode than JsonBatchCodec
+ *
+ * All integers are unsigned LEB128 varints unless noted otherwise,
+ * strings are a varint byte length followed by UTF-8 bytes. Front-coded
+ * strings are sorted and each written as the number of leading bytes it
+ * shares w/ the previous one plus the remaining bytes, so keys like
+ * "tenant42:account:1234" cost little more than their distinct tail
+ * (@see BinaryReader.readFrontCoded())
+ *
+ * 	createdAt			varint (ms)
+ * 	string table		varint count, then each cache name once, front-coded
+ * 	REMOVE_ALLs			varint count, then each a varint string table index
+ * 	caches w/ REMOVEs	varint count, then each:
+ * 		cache name			varint string table index
+ * 		key sections		varint count, then each:
+ * 			key type			1 byte (KEY_TYPE_*)
+ * 			keys				string	-> varint count, then front-coded keys
+ * 								int		-> varint range count, then ranges (see below)
+ * 								long	-> varint range count, then ranges (see below)
+ * 								float	-> varint count, then each 4 bytes (IEEE 754 bits, big endian)
+ * 								double	-> varint count, then each 8 bytes (IEEE 754 bits, big endian)
+ * 								coded	-> string KeyCodec typeTag, then varint count
+ * 										   and the front-coded Strings it encoded the keys to
+ *
+ * Integer/Long keys are sent as runs of contiguous keys, ascending, a bulk
+ * update of 50,000 sequential ids is a single range of a few bytes
+ *
+ * 	first range:		zig-zag varint first key
+ * 	any other:			varint gap (first key - previous range's last key - 2)
+ * 						varint length (last key - first key)
+ *
+ * Ranges are disjoint and never adjacent so the gap is never negative,
+ * the arithmetic is modulo 2^64 which makes any span of Long keys encodable.
+ * Keys w/ a KeyCodec (@see KeyCodecRegistry) get a KEY_TYPE_CODED section
+ * per KeyCodec. A receiver w/o a KeyCodec for the typeTag skips the
+ * section (warning about it) and goes on w/ the rest of the batch.
+ *
+ * Decoding is streaming, each event is handed to a BatchEventHandler as
+ * soon as it is read, only the string table is held @see StreamingBatchCodec
+ *
+ * NOTE: this layout may still change in place until it is first released,
+ * from then on any new layout needs a new codec/versionTag
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BinaryBatchCodec implements StreamingBatchCodec {
+
+	private final Log LOG = LogFactory.getLog(getClass());
+
+	public static final byte KEY_TYPE_STRING = 1;
+	public static final byte KEY_TYPE_INTEGER = 2;
+	public static final byte KEY_TYPE_LONG = 3;
+	public static final byte KEY_TYPE_FLOAT = 4;
+	public static final byte KEY_TYPE_DOUBLE = 5;
+	public static final byte KEY_TYPE_CODED = 6;
+
+	private static final byte[] KEY_TYPES = new byte[]{KEY_TYPE_STRING, KEY_TYPE_INTEGER,
+													   KEY_TYPE_LONG, KEY_TYPE_FLOAT, KEY_TYPE_DOUBLE};
+
+	public String getName() {
+		return "binary";
+	}
+
+	public String getVersionTag() {
+		return "b1";
+	}
+
+	public byte[] encode(BatchJMSEventMessage batchMessage) throws Exception {
+
+		BinaryWriter out = new BinaryWriter(256);
+
+		// every cache name once
+		Set<String> cacheNames = new LinkedHashSet<String>(batchMessage.getRemoveAllCacheNames());
+		cacheNames.addAll(batchMessage.getCacheNamesWithEvents());
+
+		out.writeVarLong(batchMessage.getCreatedAt().getTime());
+
+		String[] strings = writeStringTable(out, cacheNames);
+		Map<String,Integer> stringTable = new HashMap<String,Integer>();
+		for (int i=0; i<strings.length; i++) {
+			stringTable.put(strings[i], i);
+		}
+
+		out.writeVarInt(batchMessage.getRemoveAllCacheNames().size());
+		for (String cacheName : batchMessage.getRemoveAllCacheNames()) {
+			out.writeVarInt(stringTable.get(cacheName));
+		}
+
+		out.writeVarInt(batchMessage.getCacheNamesWithEvents().size());
+		for (String cacheName : batchMessage.getCacheNamesWithEvents()) {
+			out.writeVarInt(stringTable.get(cacheName));
+			writeKeySections(out, batchMessage, cacheName);
+		}
+
+		return out.toByteArray();
+	}
+
+	/**
+	 * Write the string table (varint count, then the strings front-coded)
+	 *
+	 * @param out
+	 * @param strings
+	 * @return the strings in the order written, i.e. by string table index
+	 */
+	private static String[] writeStringTable(BinaryWriter out, Collection<String> strings) {
+		byte[][] sorted = BinaryWriter.toSortedUtf8(strings);
+		out.writeVarInt(sorted.length);
+		out.writeFrontCoded(sorted);
+
+		String[] ordered = new String[sorted.length];
+		for (int i=0; i<sorted.length; i++) {
+			ordered[i] = new String(sorted[i], BinaryWriter.UTF8);
+		}
+		return ordered;
+	}
+
+	/**
+	 * Write a KEY_TYPE_STRING section, or the Strings of a KEY_TYPE_CODED one
+	 * (varint count, then the keys front-coded)
+	 *
+	 * @param out
+	 * @param keys
+	 */
+	private static void writeStringKeys(BinaryWriter out, List<String> keys) {
+		out.writeVarInt(keys.size());
+		out.writeFrontCoded(BinaryWriter.toSortedUtf8(keys));
+	}
+
+	/**
+	 * Write the REMOVE keys of the cache, one section per key type
+	 * and one per KeyCodec present
+	 *
+	 * @param out
+	 * @param batchMessage
+	 * @param cacheName
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static void writeKeySections(BinaryWriter out, BatchJMSEventMessage batchMessage, String cacheName) {
+
+		List<Serializable>[] sections = new List[KEY_TYPES.length + 1];
+
+		// KeyCodec -> its encoded keys
+		Map<KeyCodec,List<String>> coded = new LinkedHashMap<KeyCodec,List<String>>();
+
+		// Integer/Long keys come straight off their ranges, never expanded
+		for (Serializable key : batchMessage.getRemoveEventsFor(cacheName, false)) {
+			if (Action2Keys.isPrimitive(key)) {
+				byte type = keyType(key);
+				if (sections[type] == null) {
+					sections[type] = new ArrayList<Serializable>();
+				}
+				sections[type].add(key);
+				continue;
+			}
+
+			KeyCodec codec = KeyCodecRegistry.getFor(key);
+			if (codec == null) {
+				throw new IllegalArgumentException("BinaryBatchCodec no KeyCodec for key of type " + key.getClass().getName());
+			}
+			List<String> section = coded.get(codec);
+			if (section == null) {
+				section = new ArrayList<String>();
+				coded.put(codec, section);
+			}
+			section.add(codec.encode(key));
+		}
+
+		LongRangeSet ints = batchMessage.getRemovedIntegerKeysFor(cacheName);
+		LongRangeSet longs = batchMessage.getRemovedLongKeysFor(cacheName);
+
+		int sectionCount = coded.size();
+		for (byte type : KEY_TYPES) {
+			if (sections[type] != null ||
+					(type == KEY_TYPE_INTEGER && ints != null && !ints.isEmpty()) ||
+					(type == KEY_TYPE_LONG && longs != null && !longs.isEmpty())) {
+				sectionCount++;
+			}
+		}
+
+		out.writeVarInt(sectionCount);
+		for (byte type : KEY_TYPES) {
+			if (type == KEY_TYPE_INTEGER || type == KEY_TYPE_LONG) {
+				LongRangeSet ranges = (type == KEY_TYPE_INTEGER ? ints : longs);
+				if (ranges != null && !ranges.isEmpty()) {
+					out.writeByte(type);
+					writeRanges(out, ranges);
+				}
+			} else if (sections[type] != null) {
+				out.writeByte(type);
+				writeKeySection(out, type, sections[type]);
+			}
+		}
+
+		for (Map.Entry<KeyCodec,List<String>> section : coded.entrySet()) {
+			out.writeByte(KEY_TYPE_CODED);
+			out.writeString(section.getKey().getTypeTag());
+			writeStringKeys(out, section.getValue());
+		}
+	}
+
+	/**
+	 * Write the keys of a String/Float/Double section (after its type byte)
+	 *
+	 * @param out
+	 * @param type KEY_TYPE_*
+	 * @param section
+	 */
+	@SuppressWarnings("unchecked")
+	private static void writeKeySection(BinaryWriter out, byte type, List<Serializable> section) {
+
+		if (type == KEY_TYPE_STRING) {
+			writeStringKeys(out, (List<String>)(List<?>)section);
+			return;
+		}
+
+		out.writeVarInt(section.size());
+		for (Serializable key : section) {
+			if (type == KEY_TYPE_FLOAT) {
+				out.writeFixedInt(Float.floatToIntBits((Float)key));
+			} else {
+				out.writeFixedLong(Double.doubleToLongBits((Double)key));
+			}
+		}
+	}
+
+	private static void writeRanges(BinaryWriter out, LongRangeSet ranges) {
+		out.writeVarInt(ranges.getRangeCount());
+		for (int i=0; i<ranges.getRangeCount(); i++) {
+			if (i == 0) {
+				out.writeZigZagVarLong(ranges.getFirst(i));
+			} else {
+				out.writeVarLong(ranges.getFirst(i) - ranges.getLast(i-1) - 2);
+			}
+			out.writeVarLong(ranges.getLast(i) - ranges.getFirst(i));
+		}
+	}
+
+	private static byte keyType(Serializable key) {
+		if (key instanceof String) {
+			return KEY_TYPE_STRING;
+		} else if (key instanceof Integer) {
+			return KEY_TYPE_INTEGER;
+		} else if (key instanceof Long) {
+			return KEY_TYPE_LONG;
+		} else if (key instanceof Float) {
+			return KEY_TYPE_FLOAT;
+		} else if (key instanceof Double) {
+			return KEY_TYPE_DOUBLE;
+		}
+		throw new IllegalArgumentException("BinaryBatchCodec cannot encode key of type " + key.getClass().getName());
+	}
+
+	public BatchJMSEventMessage decode(byte[] data) throws Exception {
+		BatchJMSEventMessageBuilder builder = new BatchJMSEventMessageBuilder();
+		decode(new BinaryReader(data), builder);
+		return builder.getBatchMessage();
+	}
+
+	public void decode(InputStream in, int maxValueBytes, BatchEventHandler handler) throws Exception {
+		decode(new BinaryReader(in, maxValueBytes), handler);
+	}
+
+	/**
+	 * Walk the payload, handing each event to the handler as it is read
+	 *
+	 * @param in
+	 * @param handler
+	 * @throws Exception
+	 */
+	private void decode(BinaryReader in, BatchEventHandler handler) throws Exception {
+
+		handler.onBatch(in.readVarLong());
+
+		String[] strings = in.readFrontCoded(in.readVarInt());
+
+		int removeAlls = in.readVarInt();
+		for (int i=0; i<removeAlls; i++) {
+			handler.onRemoveAll(stringAt(strings, in.readVarInt()));
+		}
+
+		int caches = in.readVarInt();
+		for (int i=0; i<caches; i++) {
+			String cacheName = stringAt(strings, in.readVarInt());
+
+			int sections = in.readVarInt();
+			for (int s=0; s<sections; s++) {
+				readKeySection(in, in.readByte(), cacheName, handler);
+			}
+		}
+	}
+
+	private static String stringAt(String[] strings, int index) throws Exception {
+		if (index < 0 || index >= strings.length) {
+			throw new Exception("BinaryBatchCodec.decode() string table index out of bounds: " + index);
+		}
+		return strings[index];
+	}
+
+	/**
+	 * Read the keys of a section (after its type byte), handing each to the handler as a REMOVE
+	 *
+	 * @param in
+	 * @param type KEY_TYPE_*
+	 * @param cacheName
+	 * @param handler
+	 * @throws Exception
+	 */
+	private void readKeySection(BinaryReader in, byte type, String cacheName, BatchEventHandler handler) throws Exception {
+
+		switch(type) {
+		case KEY_TYPE_STRING:
+			readStringKeys(in, cacheName, handler);
+			return;
+
+		case KEY_TYPE_INTEGER:
+		case KEY_TYPE_LONG:
+			readRanges(in, (type == KEY_TYPE_INTEGER), cacheName, handler);
+			return;
+
+		case KEY_TYPE_CODED:
+			String typeTag = in.readString();
+			KeyCodec codec = KeyCodecRegistry.getByTypeTag(typeTag);
+			if (codec == null) {
+				// the events of this section are lost, not the rest of the batch
+				int skipped = skipStringKeys(in);
+				LOG.warn("decode() no KeyCodec registered for typeTag '" + typeTag + "', skipped " + 
+						skipped + " keys of cache " + cacheName);
+				return;
+			}
+			readStringKeys(in, cacheName, new DecodingHandler(codec, handler));
+			return;
+
+		case KEY_TYPE_FLOAT:
+		case KEY_TYPE_DOUBLE:
+			int keys = in.readVarInt();
+			for (int k=0; k<keys; k++) {
+				if (type == KEY_TYPE_FLOAT) {
+					handler.onRemove(cacheName, Float.intBitsToFloat(in.readFixedInt()));
+				} else {
+					handler.onRemove(cacheName, Double.longBitsToDouble(in.readFixedLong()));
+				}
+			}
+			return;
+
+		default:
+			throw new Exception("BinaryBatchCodec.decode() unknown key type: " + type);
+		}
+	}
+
+	/**
+	 * Read a KEY_TYPE_STRING section, or the Strings of a KEY_TYPE_CODED one,
+	 * handing each to the handler as read
+	 */
+	private static void readStringKeys(BinaryReader in, String cacheName, BatchEventHandler handler) throws Exception {
+		int keys = in.readVarInt();
+		in.startFrontCoded();
+		for (int i=0; i<keys; i++) {
+			handler.onRemove(cacheName, in.readNextFrontCoded());
+		}
+	}
+
+	/**
+	 * Read past the Strings of a KEY_TYPE_CODED section
+	 *
+	 * @return number of keys read past
+	 */
+	private static int skipStringKeys(BinaryReader in) {
+		int keys = in.readVarInt();
+		in.startFrontCoded();
+		for (int i=0; i<keys; i++) {
+			in.readNextFrontCoded();
+		}
+		return keys;
+	}
+
+	private static void readRanges(BinaryReader in, boolean integerKeys, String cacheName, BatchEventHandler handler) throws Exception {
+		int ranges = in.readVarInt();
+		long previousLast = 0;
+		for (int i=0; i<ranges; i++) {
+			long first = (i == 0 ? in.readZigZagVarLong() : previousLast + 2 + in.readVarLong());
+			long last = first + in.readVarLong();
+			if (last < first) {
+				throw new Exception("BinaryBatchCodec.decode() malformed range: " + first + "-" + last);
+			}
+			if (integerKeys && (first < Integer.MIN_VALUE || last > Integer.MAX_VALUE)) {
+				throw new Exception("BinaryBatchCodec.decode() Integer range out of bounds: " + first + "-" + last);
+			}
+			handler.onRemoveRange(cacheName, first, last, integerKeys);
+			previousLast = last;
+		}
+	}
+
+	/**
+	 * Decodes the Strings of a KEY_TYPE_CODED section on their way to the handler
+	 */
+	private static final class DecodingHandler implements BatchEventHandler {
+
+		private final KeyCodec codec;
+		private final BatchEventHandler handler;
+
+		private DecodingHandler(KeyCodec codec, BatchEventHandler handler) {
+			this.codec = codec;
+			this.handler = handler;
+		}
+
+		public void onBatch(long createdAt) throws Exception {
+			handler.onBatch(createdAt);
+		}
+
+		public void onRemoveAll(String cacheName) throws Exception {
+			handler.onRemoveAll(cacheName);
+		}
+
+		public void onRemove(String cacheName, Serializable key) throws Exception {
+			handler.onRemove(cacheName, codec.decode((String)key));
+		}
+
+		public void onRemoveRange(String cacheName, long first, long last, boolean integerKeys) throws Exception {
+			handler.onRemoveRange(cacheName, first, last, integerKeys);
+		}
+	}
+
+}
@@ -0,0 +1,242 @@
+package org.bitsofinfo.ehcache.jms.custom.batch.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads what a BinaryWriter wrote. Not thread safe
+ *
+ * Either over a byte[] or, in streaming mode, over an InputStream through
+ * a small window that is refilled as needed (and only grown to hold
+ * the single biggest value read), so decoding never needs the whole
+ * payload in memory
+ *
+ * Declared lengths/counts are checked before anything is allocated for
+ * them: over a byte[] they cannot exceed what remains of it, streaming
+ * they cannot exceed maxLength
+ *
+ * @see BinaryWriter
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BinaryReader {
+
+	private static final int STREAM_WINDOW_SIZE = 8 * 1024;
+
+	/**
+	 * Longest value (i.e. a key or cache name) read in streaming
+	 * mode unless told otherwise, far beyond any sane key
+	 */
+	public static final int DEFAULT_MAX_LENGTH = 1024 * 1024;
+
+	private byte[] buf;
+	private int limit;
+	private int pos;
+
+	// null unless streaming
+	private final InputStream in;
+
+	// longest length/count accepted while streaming
+	private final int maxLength;
+
+	// front-coded string being rebuilt @see readNextFrontCoded()
+	private byte[] frontCoded = new byte[64];
+	private int frontCodedLength = 0;
+
+	public BinaryReader(byte[] buf) {
+		this(buf, 0, buf.length);
+	}
+
+	public BinaryReader(byte[] buf, int offset, int length) {
+		this.buf = buf;
+		this.pos = offset;
+		this.limit = offset + length;
+		this.in = null;
+		this.maxLength = length;
+	}
+
+	/**
+	 * Streaming mode, in is read as needed but never closed
+	 *
+	 * @param in
+	 */
+	public BinaryReader(InputStream in) {
+		this(in, DEFAULT_MAX_LENGTH);
+	}
+
+	/**
+	 * Streaming mode, in is read as needed but never closed
+	 *
+	 * @param in
+	 * @param maxLength longest length/count a value may declare
+	 */
+	public BinaryReader(InputStream in, int maxLength) {
+		this.buf = new byte[STREAM_WINDOW_SIZE];
+		this.pos = 0;
+		this.limit = 0;
+		this.in = in;
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Reject a length/count read off the data before acting on it
+	 *
+	 * @param length
+	 * @return length
+	 */
+	public int checkLength(int length) {
+		if (length < 0) {
+			throw new IllegalStateException("BinaryReader malformed length " + length + " at " + pos);
+		}
+		if (length > (in == null ? limit - pos : maxLength)) {
+			throw new IllegalStateException("BinaryReader declared length " + length + " at " + pos + 
+					" exceeds " + (in == null ? "the remaining " + (limit - pos) + " bytes" : "the max of " + maxLength));
+		}
+		return length;
+	}
+
+	private void require(int bytes) {
+		if (bytes > limit - pos && !fill(bytes)) {
+			throw new IllegalStateException("BinaryReader truncated data, need " + bytes + " bytes at " + pos + " of " + limit);
+		}
+	}
+
+	/**
+	 * Streaming only, slide the unread bytes to the start of the window
+	 * and read until at least bytes are available
+	 *
+	 * @return false if the stream ended first
+	 */
+	private boolean fill(int bytes) {
+		if (in == null) {
+			return false;
+		}
+
+		int unread = limit - pos;
+		if (bytes > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length << 1, bytes));
+		}
+		System.arraycopy(buf, pos, buf, 0, unread);
+		pos = 0;
+		limit = unread;
+
+		try {
+			while (limit < bytes) {
+				int count = in.read(buf, limit, buf.length - limit);
+				if (count == -1) {
+					return false;
+				}
+				limit += count;
+			}
+		} catch(IOException e) {
+			throw new IllegalStateException("BinaryReader error reading stream: " + e.getMessage(), e);
+		}
+		return true;
+	}
+
+	public byte readByte() {
+		require(1);
+		return buf[pos++];
+	}
+
+	public long readVarLong() {
+		long value = 0;
+		int shift = 0;
+		while (true) {
+			if (shift > 63) {
+				throw new IllegalStateException("BinaryReader malformed varint at " + pos);
+			}
+			byte b = readByte();
+			value |= (long)(b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+
+	public int readVarInt() {
+		return (int)readVarLong();
+	}
+
+	public long readZigZagVarLong() {
+		long value = readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	public int readFixedInt() {
+		require(4);
+		return ((buf[pos++] & 0xFF) << 24) |
+				((buf[pos++] & 0xFF) << 16) |
+				((buf[pos++] & 0xFF) << 8) |
+				(buf[pos++] & 0xFF);
+	}
+
+	public long readFixedLong() {
+		return ((long)readFixedInt() << 32) | (readFixedInt() & 0xFFFFFFFFL);
+	}
+
+	public String readString() {
+		int length = checkLength(readVarInt());
+		require(length);
+		String str = new String(buf, pos, length, BinaryWriter.UTF8);
+		pos += length;
+		return str;
+	}
+
+	/**
+	 * Read a run written by BinaryWriter.writeFrontCoded(), each string
+	 * is rebuilt in place on top of the previous one in a single pass
+	 *
+	 * @param count number of strings in the run
+	 * @return
+	 */
+	public String[] readFrontCoded(int count) {
+		String[] strings = new String[checkLength(count)];
+		startFrontCoded();
+		for (int i=0; i<count; i++) {
+			strings[i] = readNextFrontCoded();
+		}
+		return strings;
+	}
+
+	/**
+	 * Start reading a new run written by BinaryWriter.writeFrontCoded()
+	 * one string at a time @see readNextFrontCoded()
+	 */
+	public void startFrontCoded() {
+		frontCodedLength = 0;
+	}
+
+	/**
+	 * @return the next string of the run, rebuilt in place on top of the previous one
+	 */
+	public String readNextFrontCoded() {
+		int shared = readVarInt();
+		int suffix = readVarInt();
+		if (shared < 0 || shared > frontCodedLength || suffix < 0) {
+			throw new IllegalStateException("BinaryReader malformed front-coded string at " + pos);
+		}
+		require(checkLength(suffix));
+		if (in != null && shared + suffix > maxLength) {
+			throw new IllegalStateException("BinaryReader front-coded string of " + (shared + suffix) + 
+					" bytes at " + pos + " exceeds the max of " + maxLength);
+		}
+
+		if (shared + suffix > frontCoded.length) {
+			frontCoded = Arrays.copyOf(frontCoded, Math.max(frontCoded.length << 1, shared + suffix));
+		}
+		System.arraycopy(buf, pos, frontCoded, shared, suffix);
+		pos += suffix;
+		frontCodedLength = shared + suffix;
+
+		return new String(frontCoded, 0, frontCodedLength, BinaryWriter.UTF8);
+	}
+
+	public boolean hasRemaining() {
+		return pos < limit || fill(1);
+	}
+
+}
@@ -0,0 +1,147 @@
+package org.bitsofinfo.ehcache.jms.custom.batch.codec;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Minimal growable byte buffer with the varint/fixed width
+ * primitives used by the binary codecs. Not thread safe
+ * 
+ * @see BinaryReader
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BinaryWriter {
+	
+	public static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private byte[] buf;
+	private int count = 0;
+	
+	public BinaryWriter(int initialCapacity) {
+		this.buf = new byte[Math.max(16, initialCapacity)];
+	}
+	
+	private void ensureCapacity(int additional) {
+		if (count + additional > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length << 1, count + additional));
+		}
+	}
+	
+	public void writeByte(int b) {
+		ensureCapacity(1);
+		buf[count++] = (byte)b;
+	}
+	
+	public void writeBytes(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, buf, count, length);
+		count += length;
+	}
+	
+	/**
+	 * Unsigned LEB128, 7 bits per byte, high bit set on all but the last
+	 */
+	public void writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			buf[count++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buf[count++] = (byte)value;
+	}
+	
+	public void writeVarInt(int value) {
+		writeVarLong(value & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Signed values, zig-zag mapped so small negatives stay small
+	 */
+	public void writeZigZagVarLong(long value) {
+		writeVarLong((value << 1) ^ (value >> 63));
+	}
+	
+	public void writeFixedInt(int value) {
+		ensureCapacity(4);
+		buf[count++] = (byte)(value >>> 24);
+		buf[count++] = (byte)(value >>> 16);
+		buf[count++] = (byte)(value >>> 8);
+		buf[count++] = (byte)value;
+	}
+	
+	public void writeFixedLong(long value) {
+		writeFixedInt((int)(value >>> 32));
+		writeFixedInt((int)value);
+	}
+	
+	/**
+	 * varint UTF-8 byte length, then the bytes
+	 */
+	public void writeString(String str) {
+		byte[] bytes = str.getBytes(UTF8);
+		writeVarInt(bytes.length);
+		writeBytes(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Front-coded run of strings, each written as the varint number of leading
+	 * bytes it shares with the previous one, then the remaining bytes as a
+	 * string (varint length + bytes). Only worth it on sorted input
+	 * 
+	 * @param sortedUtf8 @see toSortedUtf8()
+	 */
+	public void writeFrontCoded(byte[][] sortedUtf8) {
+		byte[] previous = new byte[0];
+		for (byte[] current : sortedUtf8) {
+			int shared = 0;
+			int max = Math.min(previous.length, current.length);
+			while (shared < max && previous[shared] == current[shared]) {
+				shared++;
+			}
+			writeVarInt(shared);
+			writeVarInt(current.length - shared);
+			writeBytes(current, shared, current.length - shared);
+			previous = current;
+		}
+	}
+	
+	/**
+	 * @param strings
+	 * @return the UTF-8 bytes of each string, sorted (unsigned, lexicographically)
+	 */
+	public static byte[][] toSortedUtf8(Collection<String> strings) {
+		byte[][] utf8 = new byte[strings.size()][];
+		int i = 0;
+		for (String str : strings) {
+			utf8[i++] = str.getBytes(UTF8);
+		}
+		Arrays.sort(utf8, UNSIGNED_LEXICOGRAPHIC);
+		return utf8;
+	}
+	
+	private static final Comparator<byte[]> UNSIGNED_LEXICOGRAPHIC = new Comparator<byte[]>() {
+		public int compare(byte[] b1, byte[] b2) {
+			int max = Math.min(b1.length, b2.length);
+			for (int i=0; i<max; i++) {
+				int diff = (b1[i] & 0xFF) - (b2[i] & 0xFF);
+				if (diff != 0) {
+					return diff;
+				}
+			}
+			return b1.length - b2.length;
+		}
+	};
+	
+	public int size() {
+		return count;
+	}
+	
+	public byte[] toByteArray() {
+		return Arrays.copyOf(buf, count);
+	}
+
+}
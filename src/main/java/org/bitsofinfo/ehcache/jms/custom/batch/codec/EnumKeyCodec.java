@@ -0,0 +1,100 @@
+package org.bitsofinfo.ehcache.jms.custom.batch.codec;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * KeyCodec for enum keys
+ * 
+ * Bound to a single enum class, keys are written by their name() only.
+ * The built in unbound instance (typeTag "e") takes any enum not bound
+ * to its own codec and writes "[enum class name]#[name()]"
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public class EnumKeyCodec implements KeyCodec {
+	
+	private static final char CLASS_SEPARATOR = '#';
+	
+	private final String typeTag;
+	
+	// null for the unbound codec
+	private final Class<? extends Enum> enumClass;
+	
+	// unbound only, enum class name -> class
+	private final Map<String,Class<? extends Enum>> enumClasses = new ConcurrentHashMap<String,Class<? extends Enum>>();
+	
+	/**
+	 * Unbound, any enum, typeTag "e"
+	 */
+	public EnumKeyCodec() {
+		this("e", null);
+	}
+	
+	/**
+	 * @param typeTag
+	 * @param enumClass
+	 */
+	public EnumKeyCodec(String typeTag, Class<? extends Enum> enumClass) {
+		this.typeTag = typeTag;
+		this.enumClass = enumClass;
+	}
+	
+	public String getTypeTag() {
+		return typeTag;
+	}
+	
+	public Class<?> getKeyClass() {
+		return (enumClass != null ? enumClass : Enum.class);
+	}
+	
+	public String encode(Serializable key) {
+		Enum value = (Enum)key;
+		if (enumClass != null) {
+			return value.name();
+		}
+		return value.getDeclaringClass().getName() + CLASS_SEPARATOR + value.name();
+	}
+	
+	public Serializable decode(String value) {
+		if (enumClass != null) {
+			return Enum.valueOf(enumClass, value);
+		}
+		
+		int separator = value.lastIndexOf(CLASS_SEPARATOR);
+		if (separator == -1) {
+			throw new IllegalArgumentException("EnumKeyCodec malformed key: " + value);
+		}
+		return Enum.valueOf(loadEnumClass(value.substring(0, separator)), value.substring(separator + 1));
+	}
+	
+	private Class<? extends Enum> loadEnumClass(String className) {
+		Class<? extends Enum> loaded = enumClasses.get(className);
+		if (loaded != null) {
+			return loaded;
+		}
+		
+		Class<?> clazz = null;
+		try {
+			ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+			clazz = Class.forName(className, false, (classLoader != null ? classLoader : getClass().getClassLoader()));
+		} catch(ClassNotFoundException e) {
+			throw new IllegalArgumentException("EnumKeyCodec unknown enum class: " + className, e);
+		}
+		if (!clazz.isEnum()) {
+			throw new IllegalArgumentException("EnumKeyCodec not an enum class: " + className);
+		}
+		
+		loaded = (Class<? extends Enum>)clazz;
+		enumClasses.put(className, loaded);
+		return loaded;
+	}
+	
+	public String toString() {
+		return "EnumKeyCodec[" + typeTag + "=" + (enumClass != null ? enumClass.getName() : "any enum") + "]";
+	}
+
+}
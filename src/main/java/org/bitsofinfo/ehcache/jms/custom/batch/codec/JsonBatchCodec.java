@@ -0,0 +1,228 @@
+package org.bitsofinfo.ehcache.jms.custom.batch.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.util.Date;
+
+import org.bitsofinfo.ehcache.jms.custom.batch.Action2Keys;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchEventHandler;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageBuilder;
+import org.bitsofinfo.ehcache.jms.custom.batch.KeyNotPrimitiveException;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The original (and default) format, the BatchJMSEventMessage as JSON.
+ * Its versionTag is empty, i.e. the "batch@:" prefix understood by
+ * every version of BatchingJMSCachePeer
+ *
+ * The message is written/read explicitly (streaming, no reflection) in
+ * its original shape, which every version understands:
+ *
+ * 	{"createdAt":"[Gson date]",
+ * 	 "c_a2k":{"[cacheName]":{"a2k":{"[action]":["s:key1","i:22",...]}}},
+ * 	 "ra_c":["[cacheName]",...]}
+ *
+ * Integer/Long key ranges are expanded into individual typed keys.
+ * Reading is a single streaming walk handing each event to a
+ * BatchEventHandler (@see StreamingBatchCodec), decode(byte[]) builds
+ * the BatchJMSEventMessage through its add methods so keys are
+ * de-duplicated and its counters are right.
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class JsonBatchCodec implements StreamingBatchCodec {
+
+	private static final String CREATED_AT = "createdAt";
+	private static final String CACHE_ACTIONS_KEYS = "c_a2k";
+	private static final String ACTIONS_KEYS = "a2k";
+	private static final String REMOVE_ALL_CACHES = "ra_c";
+
+	// thread safe
+	private final Gson gson = new GsonBuilder().registerTypeAdapterFactory(new TypeAdapterFactory() {
+		@SuppressWarnings("unchecked")
+		public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+			if (type.getRawType() != BatchJMSEventMessage.class) {
+				return null;
+			}
+			return (TypeAdapter<T>)new BatchAdapter(gson.getAdapter(Date.class));
+		}
+	}).create();
+
+	public String getName() {
+		return "json";
+	}
+
+	public String getVersionTag() {
+		return "";
+	}
+
+	public byte[] encode(BatchJMSEventMessage batchMessage) throws Exception {
+		return gson.toJson(batchMessage).getBytes("UTF-8");
+	}
+
+	public BatchJMSEventMessage decode(byte[] data) throws Exception {
+		return gson.fromJson(new String(data, "UTF-8"), BatchJMSEventMessage.class);
+	}
+
+	public void decode(InputStream in, int maxValueBytes, BatchEventHandler handler) throws Exception {
+		// JsonReader offers no per value limit, it is bounded by the payload
+		JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+		if (reader.peek() == JsonToken.NULL) {
+			return;
+		}
+		read(reader, gson.getAdapter(Date.class), handler);
+	}
+
+	/**
+	 * Walk the message, handing each event to the handler as it is read
+	 */
+	private static void read(JsonReader in, TypeAdapter<Date> dateAdapter, BatchEventHandler handler) throws Exception {
+
+		in.beginObject();
+		while (in.hasNext()) {
+			String name = in.nextName();
+
+			if (CREATED_AT.equals(name)) {
+				Date createdAt = dateAdapter.read(in);
+				if (createdAt != null) {
+					handler.onBatch(createdAt.getTime());
+				}
+
+			} else if (CACHE_ACTIONS_KEYS.equals(name)) {
+				in.beginObject();
+				while (in.hasNext()) {
+					readActionsKeys(in, in.nextName(), handler);
+				}
+				in.endObject();
+
+			} else if (REMOVE_ALL_CACHES.equals(name)) {
+				in.beginArray();
+				while (in.hasNext()) {
+					handler.onRemoveAll(in.nextString());
+				}
+				in.endArray();
+
+			} else {
+				in.skipValue();
+			}
+		}
+		in.endObject();
+	}
+
+	/**
+	 * {"a2k":{"[action]":["[typed key]",...]}}, only REMOVE keys are
+	 * handed on, the only action ever sent
+	 */
+	private static void readActionsKeys(JsonReader in, String cacheName, BatchEventHandler handler) throws Exception {
+		in.beginObject();
+		while (in.hasNext()) {
+			if (!ACTIONS_KEYS.equals(in.nextName())) {
+				in.skipValue();
+				continue;
+			}
+
+			in.beginObject();
+			while (in.hasNext()) {
+				if (Integer.parseInt(in.nextName()) != BatchJMSEventMessage.REMOVE) {
+					in.skipValue();
+					continue;
+				}
+				in.beginArray();
+				while (in.hasNext()) {
+					Serializable key = Action2Keys.fromTypedKey(in.nextString());
+					if (key != null) {
+						handler.onRemove(cacheName, key);
+					}
+				}
+				in.endArray();
+			}
+			in.endObject();
+		}
+		in.endObject();
+	}
+
+	private static final class BatchAdapter extends TypeAdapter<BatchJMSEventMessage> {
+
+		// Gson's own Date format, which older versions read reflectively
+		private final TypeAdapter<Date> dateAdapter;
+
+		private BatchAdapter(TypeAdapter<Date> dateAdapter) {
+			this.dateAdapter = dateAdapter;
+		}
+
+		@Override
+		public void write(JsonWriter out, BatchJMSEventMessage batchMessage) throws IOException {
+			if (batchMessage == null) {
+				out.nullValue();
+				return;
+			}
+
+			out.beginObject();
+
+			out.name(CREATED_AT);
+			dateAdapter.write(out, batchMessage.getCreatedAt());
+
+			out.name(CACHE_ACTIONS_KEYS);
+			out.beginObject();
+			for (String cacheName : batchMessage.getCacheNamesWithEvents()) {
+				out.name(cacheName);
+				out.beginObject();
+				out.name(ACTIONS_KEYS);
+				out.beginObject();
+				out.name(String.valueOf(BatchJMSEventMessage.REMOVE));
+				out.beginArray();
+				for (Serializable key : batchMessage.getRemoveEventsFor(cacheName)) {
+					try {
+						out.value(Action2Keys.toTypedKey(key));
+					} catch(KeyNotPrimitiveException e) {
+						throw new IOException("JsonBatchCodec cannot encode key of type " + key.getClass().getName());
+					}
+				}
+				out.endArray();
+				out.endObject();
+				out.endObject();
+			}
+			out.endObject();
+
+			out.name(REMOVE_ALL_CACHES);
+			out.beginArray();
+			for (String cacheName : batchMessage.getRemoveAllCacheNames()) {
+				out.value(cacheName);
+			}
+			out.endArray();
+
+			out.endObject();
+		}
+
+		@Override
+		public BatchJMSEventMessage read(JsonReader in) throws IOException {
+			if (in.peek() == JsonToken.NULL) {
+				in.nextNull();
+				return null;
+			}
+
+			BatchJMSEventMessageBuilder builder = new BatchJMSEventMessageBuilder();
+			try {
+				JsonBatchCodec.read(in, dateAdapter, builder);
+			} catch(IOException e) {
+				throw e;
+			} catch(Exception e) {
+				throw new IOException("JsonBatchCodec error reading batch: " + e.getMessage(), e);
+			}
+			return builder.getBatchMessage();
+		}
+	}
+
+}
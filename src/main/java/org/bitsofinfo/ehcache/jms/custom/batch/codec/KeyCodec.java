@@ -0,0 +1,49 @@
+package org.bitsofinfo.ehcache.jms.custom.batch.codec;
+
+import java.io.Serializable;
+
+/**
+ * Lets keys of a type other than String, Integer, Long, Float and Double
+ * ride in batches rather than each going out as a Java serialized
+ * ObjectMessage. A KeyCodec turns a key into a short String and back,
+ * tagged w/ its typeTag on the wire (i.e. "u:[uuid]" in JSON) so the
+ * receiver knows which KeyCodec to decode it w/
+ * 
+ * Keys are compared by equals()/hashCode() while batched, the decoded key
+ * must be equal to the original for the invalidation to hit on the
+ * receiving side. Keys are matched to a KeyCodec by their exact class
+ * (the declaring class for enum constants)
+ * 
+ * Implementations must be thread safe and have a no-arg constructor to
+ * be configured via keyCodecs.[typeTag]=[class name] @see KeyCodecRegistry
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public interface KeyCodec {
+	
+	/**
+	 * @return short tag identifying this codec on the wire, must not contain ':' 
+	 * 	and never change once messages have been sent with it
+	 */
+	public String getTypeTag();
+	
+	/**
+	 * @return the class of the keys handled
+	 */
+	public Class<?> getKeyClass();
+	
+	/**
+	 * @param key
+	 * @return the key as a String
+	 */
+	public String encode(Serializable key);
+	
+	/**
+	 * @param value as returned by encode()
+	 * @return the key
+	 * @throws IllegalArgumentException if value is malformed
+	 */
+	public Serializable decode(String value);
+
+}
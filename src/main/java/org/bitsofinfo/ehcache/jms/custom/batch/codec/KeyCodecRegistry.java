@@ -0,0 +1,133 @@
+package org.bitsofinfo.ehcache.jms.custom.batch.codec;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bitsofinfo.ehcache.jms.custom.batch.Action2Keys;
+
+/**
+ * JVM wide registry of the available KeyCodecs, looked up by key
+ * class (outbound) or by typeTag (inbound)
+ * 
+ * Built in and always registered:
+ * 
+ * 	UUID		"u"
+ * 	Short		"h"
+ * 	Byte		"b"
+ * 	Character	"c"
+ * 	Boolean		"z"
+ * 	any enum	"e"	(@see EnumKeyCodec, which can also be bound to one enum w/ a shorter tag)
+ * 
+ * custom ones can be added via register(). The tags of the keys batched 
+ * natively (@see Action2Keys.TYPE_*) are reserved
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class KeyCodecRegistry {
+	
+	private static final Map<String,KeyCodec> codecsByTypeTag = new ConcurrentHashMap<String,KeyCodec>();
+	private static final Map<Class<?>,KeyCodec> codecsByKeyClass = new ConcurrentHashMap<Class<?>,KeyCodec>();
+	
+	public static final KeyCodec UUID_KEYS = new KeyCodec() {
+		public String getTypeTag() { return "u"; }
+		public Class<?> getKeyClass() { return UUID.class; }
+		public String encode(Serializable key) { return key.toString(); }
+		public Serializable decode(String value) { return UUID.fromString(value); }
+	};
+	
+	public static final KeyCodec SHORT_KEYS = new KeyCodec() {
+		public String getTypeTag() { return "h"; }
+		public Class<?> getKeyClass() { return Short.class; }
+		public String encode(Serializable key) { return key.toString(); }
+		public Serializable decode(String value) { return Short.valueOf(value); }
+	};
+	
+	public static final KeyCodec BYTE_KEYS = new KeyCodec() {
+		public String getTypeTag() { return "b"; }
+		public Class<?> getKeyClass() { return Byte.class; }
+		public String encode(Serializable key) { return key.toString(); }
+		public Serializable decode(String value) { return Byte.valueOf(value); }
+	};
+	
+	public static final KeyCodec CHARACTER_KEYS = new KeyCodec() {
+		public String getTypeTag() { return "c"; }
+		public Class<?> getKeyClass() { return Character.class; }
+		public String encode(Serializable key) { return key.toString(); }
+		public Serializable decode(String value) {
+			if (value.length() != 1) {
+				throw new IllegalArgumentException("Character key must be 1 char: " + value);
+			}
+			return Character.valueOf(value.charAt(0));
+		}
+	};
+	
+	public static final KeyCodec BOOLEAN_KEYS = new KeyCodec() {
+		public String getTypeTag() { return "z"; }
+		public Class<?> getKeyClass() { return Boolean.class; }
+		public String encode(Serializable key) { return ((Boolean)key ? "1" : "0"); }
+		public Serializable decode(String value) { return Boolean.valueOf("1".equals(value)); }
+	};
+	
+	public static final KeyCodec ENUM_KEYS = new EnumKeyCodec();
+	
+	static {
+		register(UUID_KEYS);
+		register(SHORT_KEYS);
+		register(BYTE_KEYS);
+		register(CHARACTER_KEYS);
+		register(BOOLEAN_KEYS);
+		register(ENUM_KEYS);
+	}
+	
+	private KeyCodecRegistry() {
+	}
+	
+	/**
+	 * Register (or replace) a codec
+	 * 
+	 * @param codec
+	 */
+	public static void register(KeyCodec codec) {
+		String typeTag = codec.getTypeTag();
+		if (typeTag == null || typeTag.length() == 0 || typeTag.indexOf(':') != -1) {
+			throw new IllegalArgumentException("KeyCodec typeTag cannot be empty or contain ':' -> " + typeTag);
+		}
+		if (Action2Keys.isReservedTypeTag(typeTag)) {
+			throw new IllegalArgumentException("KeyCodec typeTag '" + typeTag + "' is reserved");
+		}
+		
+		KeyCodec replaced = codecsByTypeTag.put(typeTag, codec);
+		if (replaced != null && replaced.getKeyClass() != codec.getKeyClass()) {
+			codecsByKeyClass.remove(replaced.getKeyClass());
+		}
+		codecsByKeyClass.put(codec.getKeyClass(), codec);
+	}
+	
+	/**
+	 * @param typeTag
+	 * @return the codec, null if none is registered for typeTag
+	 */
+	public static KeyCodec getByTypeTag(String typeTag) {
+		return codecsByTypeTag.get(typeTag);
+	}
+	
+	/**
+	 * @param key
+	 * @return the codec for the key's class, null if none is registered
+	 */
+	public static KeyCodec getFor(Object key) {
+		if (key == null) {
+			return null;
+		}
+		
+		if (key instanceof Enum) {
+			KeyCodec codec = codecsByKeyClass.get(((Enum<?>)key).getDeclaringClass());
+			return (codec != null ? codec : codecsByKeyClass.get(Enum.class));
+		}
+		return codecsByKeyClass.get(key.getClass());
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.bitsofinfo.ehcache.jms.custom.batch.codec;
+
+import java.io.InputStream;
+
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchEventHandler;
+
+/**
+ * A BatchCodec that can also decode straight off a stream, handing
+ * each event to a BatchEventHandler as soon as it is read rather than
+ * materializing a BatchJMSEventMessage, so the memory needed to apply
+ * an inbound batch is about that of a single key
+ * 
+ * All the built in codecs are streaming, BatchJMSEventMessageUtil.decode()
+ * falls back to decode(byte[]) for custom codecs that are not
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public interface StreamingBatchCodec extends BatchCodec {
+	
+	/**
+	 * @param in the (decompressed) codec output, not closed
+	 * @param maxValueBytes longest value (key, cache name) the payload may declare,
+	 * 	anything longer is rejected before it is buffered
+	 * @param handler
+	 * @throws Exception
+	 */
+	public void decode(InputStream in, int maxValueBytes, BatchEventHandler handler) throws Exception;
+
+}
@@ -0,0 +1,132 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bitsofinfo.ehcache.jms.custom.batch.Action2Keys;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchEventAccumulator;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageUtil;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodec;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodecRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Action2Keys must keep keys distinct exactly as Ehcache does (case
+ * sensitive, Integer 1 != Long 1) and keep its totals, and so those of
+ * the batches sealed off a BatchEventAccumulator, consistent
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class Action2KeysTest {
+
+	private static final Integer REMOVE = BatchJMSEventMessage.REMOVE;
+
+	@Test
+	public void testKeysDifferingInCaseBothSurvive() throws Exception {
+		Action2Keys a2k = new Action2Keys();
+		Assert.assertTrue(a2k.addEvent(REMOVE, "Abc"));
+		Assert.assertTrue(a2k.addEvent(REMOVE, "abc"));
+		Assert.assertFalse(a2k.addEvent(REMOVE, "abc"));
+		Assert.assertEquals(new HashSet<Serializable>(Arrays.asList("Abc", "abc")), a2k.getKeysForAction(REMOVE));
+		Assert.assertEquals(2, a2k.getTotalEntries());
+
+		Assert.assertEquals("s:Abc", Action2Keys.toTypedKey("Abc"));
+		Assert.assertEquals("abc", Action2Keys.fromTypedKey(Action2Keys.toTypedKey("abc")));
+
+		// and on the wire
+		BatchJMSEventMessage batch = new BatchJMSEventMessage(System.currentTimeMillis());
+		batch.addCacheEvent("cacheA", "Abc", REMOVE);
+		batch.addCacheEvent("cacheA", "abc", REMOVE);
+		for (BatchCodec codec : BatchCodecRegistry.getAll()) {
+			BatchJMSEventMessage decoded = BatchJMSEventMessageUtil.fromString(BatchJMSEventMessageUtil.toString(batch, codec));
+			Assert.assertEquals(codec.getName(), new HashSet<Serializable>(Arrays.asList("Abc", "abc")), 
+								new HashSet<Serializable>(decoded.getRemoveEventsFor("cacheA")));
+		}
+	}
+
+	@Test
+	public void testIntegerAndLongKeysStayApart() throws Exception {
+		Action2Keys a2k = new Action2Keys();
+		Assert.assertTrue(a2k.addEvent(REMOVE, 1));
+		Assert.assertTrue(a2k.addEvent(REMOVE, 1L));
+		Assert.assertTrue(a2k.addEvent(REMOVE, "1"));
+		Assert.assertTrue(a2k.addRange(REMOVE, 2, 10, true));
+		Assert.assertFalse(a2k.addRange(REMOVE, 1, 5, true));
+
+		Assert.assertEquals(12, a2k.getTotalEntries());
+		// "1", ints 1-10, long 1
+		Assert.assertEquals(3, a2k.getEncodedEntries());
+		Set<Serializable> keys = a2k.getKeysForAction(REMOVE);
+		Assert.assertEquals(12, keys.size());
+		Assert.assertTrue(keys.contains(Integer.valueOf(10)));
+		Assert.assertFalse(keys.contains(Long.valueOf(10)));
+		Assert.assertEquals(1, a2k.getKeysForAction(REMOVE, false).size());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testIntegerRangeOutOfBounds() {
+		new Action2Keys().addRange(REMOVE, Integer.MAX_VALUE - 1, Integer.MAX_VALUE + 1L, true);
+	}
+
+	@Test
+	public void testTotalEventsConsistentAfterDrains() throws Exception {
+		BatchEventAccumulator accumulator = new BatchEventAccumulator(null, true);
+		Set<String> expected = new HashSet<String>();
+
+		for (int i = 0; i < 3000; i++) {
+			accumulator.addRemove("cacheA", i % 1000);
+			accumulator.addRemove("cacheB", "key" + (i % 700));
+			accumulator.addRemove("cacheC", (long)i);
+			expected.add("cacheA:" + (i % 1000));
+			expected.add("cacheB:key" + (i % 700));
+			expected.add("cacheC:" + i + "L");
+			if (i == 2000) {
+				accumulator.addRemoveAll("cacheD");
+				expected.add("cacheD:ALL");
+			}
+		}
+
+		// drained a bit at a time, duplicates only collapse within a batch
+		int drained = 0;
+		Set<String> seen = new HashSet<String>();
+		BatchJMSEventMessage batch;
+		while ((batch = accumulator.seal(250)) != null) {
+			int events = batch.getRemoveAllCacheNames().size();
+			for (String cacheName : batch.getRemoveAllCacheNames()) {
+				seen.add(cacheName + ":ALL");
+			}
+			for (String cacheName : batch.getCacheNamesWithEvents()) {
+				for (Serializable key : batch.getRemoveEventsFor(cacheName)) {
+					seen.add(cacheName + ":" + key + (key instanceof Long ? "L" : ""));
+					events++;
+				}
+			}
+			Assert.assertEquals(events, batch.getTotalEvents());
+			drained += events;
+		}
+
+		Assert.assertEquals(0, accumulator.getPendingEvents());
+		Assert.assertEquals(0, accumulator.getPendingEntries());
+		Assert.assertEquals(expected, seen);
+		Assert.assertTrue(drained >= expected.size() && drained <= 3 * 3000 + 1);
+
+		// a REMOVE_ALL drops the keys it covers from the totals
+		batch = new BatchJMSEventMessage(System.currentTimeMillis());
+		batch.addCacheEventRange("cacheA", 1, 100, true, REMOVE);
+		batch.addCacheEvent("cacheA", "key1", REMOVE);
+		batch.addCacheEvent("cacheB", "key1", REMOVE);
+		Assert.assertEquals(102, batch.getTotalEvents());
+		Assert.assertEquals(3, batch.getEncodedEntries());
+		batch.addRemovalAllCacheName("cacheA");
+		Assert.assertEquals(2, batch.getTotalEvents());
+		Assert.assertEquals(2, batch.getEncodedEntries());
+		Assert.assertFalse(batch.addCacheEventRange("cacheA", 1, 5, true, REMOVE));
+		Assert.assertEquals(2, batch.getTotalEvents());
+	}
+
+}
@@ -0,0 +1,113 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import java.io.ByteArrayInputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageBuilder;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageUtil;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodec;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodecRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Every registered BatchCodec must hand back what it was given, and
+ * the legacy JSON one must keep the exact shape receivers that predate
+ * the codecs parse @see LegacyJsonBatchDecoder
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BatchCodecRoundTripTest {
+
+	// Gson's date format has no millis
+	private static final long CREATED_AT = 1382090400000L;
+
+	private static final Serializable[] KEYS = new Serializable[]{"key1", "Key1", "", "k\u00e9y/:,\"", 1.5f, 2.5d, 
+																  Integer.MIN_VALUE, -7, 22, Integer.MAX_VALUE, 
+																  Long.MIN_VALUE, 22L, Long.MAX_VALUE, 
+																  UUID.fromString("6f1c2a1e-8d2b-4c57-9d7e-1a2b3c4d5e6f"), (short)3, 'c', true};
+
+	@Test
+	public void testEveryRegisteredCodecRoundTrips() throws Exception {
+		BatchJMSEventMessage batch = newBatch();
+		Assert.assertTrue(BatchCodecRegistry.getAll().size() >= 2);
+
+		for (BatchCodec codec : BatchCodecRegistry.getAll()) {
+			String tag = "versionTag '" + codec.getVersionTag() + "'";
+			Assert.assertSame(tag, codec, BatchCodecRegistry.getByVersionTag(codec.getVersionTag()));
+			Assert.assertSame(tag, codec, BatchCodecRegistry.getByName(codec.getName()));
+
+			// TextMessage
+			String text = BatchJMSEventMessageUtil.toString(batch, codec);
+			Assert.assertEquals(tag, codec.getVersionTag(), BatchJMSEventMessageUtil.getVersionTag(text));
+			assertSameBatch(tag, batch, BatchJMSEventMessageUtil.fromString(text));
+
+			// BytesMessage
+			String envelope = BatchJMSEventMessageUtil.getEnvelopePrefix(codec, null);
+			byte[] bytes = BatchJMSEventMessageUtil.toCompressedBytes(batch, codec, null);
+			assertSameBatch(tag, batch, BatchJMSEventMessageUtil.fromCompressedBytes(envelope, bytes));
+
+			// streamed through a handler, as received
+			BatchJMSEventMessageBuilder builder = new BatchJMSEventMessageBuilder();
+			BatchJMSEventMessageUtil.decode(envelope, new ByteArrayInputStream(bytes), builder);
+			assertSameBatch(tag, batch, builder.getBatchMessage());
+		}
+	}
+
+	@Test
+	public void testLegacyJsonWireShape() throws Exception {
+		BatchJMSEventMessage batch = new BatchJMSEventMessage(CREATED_AT);
+		batch.addRemovalAllCacheName("cacheA");
+		batch.addCacheEvent("cacheB", "key1", BatchJMSEventMessage.REMOVE);
+		batch.addCacheEvent("cacheC", 22, BatchJMSEventMessage.REMOVE);
+		batch.addCacheEvent("cacheD", 5L, BatchJMSEventMessage.REMOVE);
+		batch.addCacheEvent("cacheD", 6L, BatchJMSEventMessage.REMOVE);
+
+		String text = BatchJMSEventMessageUtil.toString(batch, BatchCodecRegistry.JSON);
+		Assert.assertTrue(text.startsWith(BatchJMSEventMessageUtil.MSG_PREFIX));
+
+		// createdAt is in Gson's default (locale dependent) date format
+		String json = LegacyJsonBatchDecoder.inflate(text);
+		Assert.assertTrue(json, json.matches("\\{\"createdAt\":\"[^\"]+\",.*"));
+		Assert.assertEquals("{\"c_a2k\":{\"cacheB\":{\"a2k\":{\"1\":[\"s:key1\"]}}," 
+										+ "\"cacheC\":{\"a2k\":{\"1\":[\"i:22\"]}}," 
+										+ "\"cacheD\":{\"a2k\":{\"1\":[\"l:5\",\"l:6\"]}}}," 
+										+ "\"ra_c\":[\"cacheA\"]}", 
+							"{" + json.replaceFirst("^\\{\"createdAt\":\"[^\"]+\",", ""));
+
+		Assert.assertEquals(batch.getCreatedAt(), LegacyJsonBatchDecoder.decode(text).getCreatedAt());
+	}
+
+	private static BatchJMSEventMessage newBatch() throws Exception {
+		BatchJMSEventMessage batch = new BatchJMSEventMessage(CREATED_AT);
+		batch.addRemovalAllCacheName("cacheA");
+		batch.addRemovalAllCacheName("cacheE");
+		for (Serializable key : KEYS) {
+			batch.addCacheEvent("cacheB", key, BatchJMSEventMessage.REMOVE);
+		}
+		batch.addCacheEventRange("cacheC", 1, 5000, true, BatchJMSEventMessage.REMOVE);
+		batch.addCacheEventRange("cacheC", Integer.MAX_VALUE - 2, Integer.MAX_VALUE, true, BatchJMSEventMessage.REMOVE);
+		batch.addCacheEventRange("cacheC", Long.MIN_VALUE, Long.MIN_VALUE + 2, false, BatchJMSEventMessage.REMOVE);
+		batch.addCacheEventRange("cacheC", 1, 5000, false, BatchJMSEventMessage.REMOVE);
+		return batch;
+	}
+
+	private static void assertSameBatch(String tag, BatchJMSEventMessage expected, BatchJMSEventMessage actual) {
+		Assert.assertEquals(tag, expected.getCreatedAt(), actual.getCreatedAt());
+		Assert.assertEquals(tag, expected.getRemoveAllCacheNames(), actual.getRemoveAllCacheNames());
+		Assert.assertEquals(tag, expected.getCacheNamesWithEvents(), actual.getCacheNamesWithEvents());
+		for (String cacheName : expected.getCacheNamesWithEvents()) {
+			Set<Serializable> keys = new HashSet<Serializable>(expected.getRemoveEventsFor(cacheName));
+			Assert.assertEquals(tag + " " + cacheName, keys, new HashSet<Serializable>(actual.getRemoveEventsFor(cacheName)));
+		}
+		Assert.assertEquals(tag, expected.getTotalEvents(), actual.getTotalEvents());
+		Assert.assertEquals(tag, new HashSet<Serializable>(Arrays.asList(KEYS)), new HashSet<Serializable>(actual.getRemoveEventsFor("cacheB")));
+	}
+
+}
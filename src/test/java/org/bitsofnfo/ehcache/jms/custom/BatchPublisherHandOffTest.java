@@ -0,0 +1,91 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.bitsofinfo.ehcache.jms.custom.BatchFlushScheduler;
+import org.bitsofinfo.ehcache.jms.custom.BatchPublisher;
+import org.bitsofinfo.ehcache.jms.custom.BatchPublisher.BatchTransport;
+import org.bitsofinfo.ehcache.jms.custom.BatchPublisher.OverflowPolicy;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageUtil;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodecRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tasks on the shared BatchFlushScheduler hand batches off w/ handOff(),
+ * which must never block (i.e. a slow WAN filling the publisher queue
+ * under BLOCK) yet lose nothing
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class BatchPublisherHandOffTest {
+
+	private final StubJMS jms = new StubJMS();
+	private BatchPublisher publisher;
+
+	@Before
+	public void setUp() {
+		BatchFlushScheduler.acquire();
+		publisher = new BatchPublisher(1, 1, OverflowPolicy.BLOCK, BatchCodecRegistry.JSON, null, 
+									   BatchTransport.TEXT, 0, jms.getSession(), jms.getProducer());
+	}
+
+	@After
+	public void tearDown() {
+		jms.allowSends();
+		publisher.shutdown(1000);
+		BatchFlushScheduler.release();
+	}
+
+	@Test
+	public void testHandOffNeverBlocksOnAFullQueue() throws Exception {
+		jms.holdSends();
+
+		// 1 in flight, 1 queued, the rest kept aside
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < 20; i++) {
+			publisher.handOff(newBatch(i));
+		}
+		Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+		Assert.assertTrue(publisher.getHandOffBacklog() >= 18);
+
+		jms.allowSends();
+		long deadline = System.currentTimeMillis() + 10000;
+		while (jms.getSent().size() < 20 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		Set<Serializable> keys = new HashSet<Serializable>();
+		for (String text : jms.getSent()) {
+			keys.addAll(BatchJMSEventMessageUtil.fromString(text).getRemoveEventsFor("cacheA"));
+		}
+		Assert.assertEquals(20, keys.size());
+		Assert.assertEquals(0, publisher.getHandOffBacklog());
+		Assert.assertEquals(0, publisher.getBatchesDropped());
+	}
+
+	@Test
+	public void testShutdownDrainsTheHandOffBacklog() throws Exception {
+		jms.holdSends();
+		for (int i = 0; i < 5; i++) {
+			publisher.handOff(newBatch(i));
+		}
+
+		jms.allowSends();
+		Assert.assertEquals(0, publisher.shutdown(10000));
+		Assert.assertEquals(5, jms.getSent().size());
+	}
+
+	private static BatchJMSEventMessage newBatch(int key) throws Exception {
+		BatchJMSEventMessage batch = new BatchJMSEventMessage(System.currentTimeMillis());
+		batch.addCacheEvent("cacheA", "key" + key, BatchJMSEventMessage.REMOVE);
+		return batch;
+	}
+
+}
@@ -0,0 +1,101 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bitsofinfo.ehcache.jms.custom.BatchApplier;
+import org.bitsofinfo.ehcache.jms.custom.BatchApplierFactory;
+import org.bitsofinfo.ehcache.jms.custom.InboundCoalescer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * What an InboundCoalescer hands its applier: every key once, int/long
+ * keys as ranges, nothing a REMOVE_ALL subsumes
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class InboundCoalescerTest {
+
+	@Test
+	public void testRangesStayRanges() {
+		RecordingFactory applied = new RecordingFactory();
+		InboundCoalescer coalescer = new InboundCoalescer(60000, 100, applied);
+
+		coalescer.onRemoveRange("cacheA", 1, 1000, true);
+		coalescer.onRemoveRange("cacheA", 1001, 2000, true);
+		coalescer.onRemove("cacheA", Integer.valueOf(5));
+		coalescer.onRemoveRange("cacheA", 1, 2000, false);
+		coalescer.onRemove("cacheA", Long.valueOf(Long.MAX_VALUE));
+		coalescer.onRemove("cacheA", "1");
+
+		// one run of ints, two of longs and a string
+		Assert.assertEquals(4, coalescer.getPendingKeys());
+		Assert.assertEquals(4002, coalescer.flush());
+		Assert.assertEquals(Arrays.asList("cacheA:1", "cacheA:int[1-2000]", "cacheA:long[1-2000]", 
+										  "cacheA:long[" + Long.MAX_VALUE + "-" + Long.MAX_VALUE + "]"), applied.calls);
+
+		Assert.assertEquals(4003, coalescer.getEventsReceived());
+		Assert.assertEquals(1, coalescer.getEventsMerged());
+		Assert.assertEquals(0, coalescer.getPendingKeys());
+	}
+
+	@Test
+	public void testRemoveAllSubsumesRanges() {
+		RecordingFactory applied = new RecordingFactory();
+		InboundCoalescer coalescer = new InboundCoalescer(60000, 100, applied);
+
+		coalescer.onRemoveRange("cacheA", 1, 1000, true);
+		coalescer.onRemove("cacheA", "1");
+		coalescer.onRemoveAll("cacheA");
+		coalescer.onRemoveRange("cacheA", 1, 10, false);
+		coalescer.onRemoveRange("cacheB", Integer.MIN_VALUE, Integer.MIN_VALUE + 1, true);
+
+		Assert.assertEquals(1, coalescer.getPendingKeys());
+		Assert.assertEquals(3, coalescer.flush());
+		Assert.assertEquals(Arrays.asList("cacheA:ALL", "cacheB:int[" + Integer.MIN_VALUE + "-" + (Integer.MIN_VALUE + 1) + "]"), applied.calls);
+		Assert.assertEquals(1011, coalescer.getEventsMerged());
+	}
+
+	@Test
+	public void testMaxKeysCountsRuns() {
+		RecordingFactory applied = new RecordingFactory();
+		InboundCoalescer coalescer = new InboundCoalescer(60000, 3, applied);
+
+		// a single run, however long, does not flush early
+		coalescer.onRemoveRange("cacheA", 1, 100000, false);
+		coalescer.onRemoveRange("cacheA", 100001, 200000, false);
+		Assert.assertTrue(applied.calls.isEmpty());
+
+		coalescer.onRemoveRange("cacheA", 300000, 300000, false);
+		coalescer.onRemoveRange("cacheA", 400000, 400000, false);
+		Assert.assertEquals(3, applied.calls.size());
+		Assert.assertEquals(0, coalescer.getPendingKeys());
+	}
+
+	/**
+	 * Records the calls of the appliers it creates, applies nothing
+	 */
+	private static final class RecordingFactory implements BatchApplierFactory {
+
+		private final List<String> calls = new ArrayList<String>();
+
+		public BatchApplier newApplier() {
+			return new BatchApplier(null) {
+				public void onRemoveAll(String cacheName) {
+					calls.add(cacheName + ":ALL");
+				}
+				public void onRemove(String cacheName, Serializable key) {
+					calls.add(cacheName + ":" + key);
+				}
+				public void onRemoveRange(String cacheName, long first, long last, boolean integerKeys) {
+					calls.add(cacheName + ":" + (integerKeys ? "int" : "long") + "[" + first + "-" + last + "]");
+				}
+			};
+		}
+	}
+
+}
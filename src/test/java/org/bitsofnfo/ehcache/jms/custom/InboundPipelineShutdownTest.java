@@ -0,0 +1,165 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.bitsofinfo.ehcache.jms.custom.CacheLookupTable;
+import org.bitsofinfo.ehcache.jms.custom.InboundCoalescer;
+import org.bitsofinfo.ehcache.jms.custom.InboundPipeline;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageUtil;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodecRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Whatever an InboundPipeline accepted must be applied by the time its
+ * shutdown() returns, also when its batches sit in an InboundCoalescer:
+ * decoders drained -> coalescer flushed -> apply stage drained
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class InboundPipelineShutdownTest {
+
+	private static final int BATCHES = 200;
+	private static final int KEYS_PER_BATCH = 50;
+
+	private CacheManager cacheManager;
+	private CacheLookupTable caches;
+
+	@Before
+	public void setUp() {
+		cacheManager = new CacheManager(new Configuration().name("InboundPipelineShutdownTest")
+										.defaultCache(new CacheConfiguration("default", 100000)));
+		for (String cacheName : new String[]{"cacheA", "cacheB"}) {
+			Cache cache = new Cache(new CacheConfiguration(cacheName, 100000));
+			cacheManager.addCache(cache);
+			for (int i = 0; i < BATCHES * KEYS_PER_BATCH; i++) {
+				cache.put(new Element("key" + i, "value" + i));
+			}
+		}
+		caches = new CacheLookupTable(cacheManager);
+		caches.register();
+	}
+
+	@After
+	public void tearDown() {
+		caches.unregister();
+		cacheManager.shutdown();
+	}
+
+	@Test
+	public void testShutdownAppliesEverythingReceived() throws Exception {
+		InboundPipeline pipeline = new InboundPipeline(caches, 1024*1024, 2, 2, 16, 16);
+		receiveAll(pipeline);
+
+		Assert.assertEquals(0, pipeline.shutdown(30000));
+		assertAllRemoved();
+	}
+
+	@Test
+	public void testShutdownAppliesEverythingCoalesced() throws Exception {
+		InboundPipeline pipeline = new InboundPipeline(caches, 1024*1024, 2, 2, 16, 16);
+		// a window no test run reaches: only the shutdown flush applies anything
+		InboundCoalescer coalescer = new InboundCoalescer(60000, Integer.MAX_VALUE, pipeline);
+		pipeline.setCoalescer(coalescer);
+		coalescer.start();
+		receiveAll(pipeline);
+		Assert.assertEquals(BATCHES * KEYS_PER_BATCH, cacheManager.getCache("cacheA").getSize());
+
+		Assert.assertEquals(0, pipeline.shutdown(30000));
+		Assert.assertEquals(0, coalescer.getPendingKeys());
+		Assert.assertEquals(BATCHES, coalescer.getBatchesCoalesced());
+		Assert.assertEquals(BATCHES * KEYS_PER_BATCH, coalescer.getEventsApplied());
+		assertAllRemoved();
+	}
+
+	@Test
+	public void testShutdownAwaitsPeriodicFlush() throws Exception {
+		InboundPipeline pipeline = new InboundPipeline(caches, 1024*1024, 2, 2, 16, 16);
+		// flushing all along, shutdown() must not race the one in progress
+		InboundCoalescer coalescer = new InboundCoalescer(1, 500, pipeline);
+		pipeline.setCoalescer(coalescer);
+		coalescer.start();
+		receiveAll(pipeline);
+
+		Assert.assertEquals(0, pipeline.shutdown(30000));
+		Assert.assertEquals(BATCHES * KEYS_PER_BATCH, coalescer.getEventsApplied());
+		assertAllRemoved();
+	}
+
+	@Test
+	public void testShutdownRacingReceivers() throws Exception {
+		final Cache cache = new Cache(new CacheConfiguration("cacheR", 100000));
+		cacheManager.addCache(cache);
+
+		// a full queue, receivers blocked on it when shutdown() begins
+		final InboundPipeline pipeline = new InboundPipeline(caches, 1024*1024, 1, 1, 1, 1);
+		final List<String> accepted = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> receivers = new ArrayList<Thread>();
+		for (int r = 0; r < 4; r++) {
+			final int receiver = r;
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 5000; i++) {
+							String key = "r" + receiver + "-" + i;
+							cache.put(new Element(key, key));
+							BatchJMSEventMessage batch = new BatchJMSEventMessage(System.currentTimeMillis());
+							batch.addCacheEvent("cacheR", key, BatchJMSEventMessage.REMOVE);
+							if (!pipeline.receive(null, BatchJMSEventMessageUtil.toString(batch, BatchCodecRegistry.BINARY))) {
+								return;
+							}
+							accepted.add(key);
+						}
+					} catch(Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			receivers.add(thread);
+			thread.start();
+		}
+
+		Thread.sleep(50);
+		Assert.assertEquals(0, pipeline.shutdown(30000));
+
+		// none left blocked on a queue nobody drains
+		for (Thread receiver : receivers) {
+			receiver.join(5000);
+			Assert.assertFalse(receiver.isAlive());
+		}
+		Assert.assertFalse(pipeline.receive(null, "ignored"));
+
+		Assert.assertFalse(accepted.isEmpty());
+		for (String key : accepted) {
+			Assert.assertNull(key, cache.get(key));
+		}
+	}
+
+	private void receiveAll(InboundPipeline pipeline) throws Exception {
+		for (int b = 0; b < BATCHES; b++) {
+			BatchJMSEventMessage batch = new BatchJMSEventMessage(System.currentTimeMillis());
+			for (int i = 0; i < KEYS_PER_BATCH; i++) {
+				batch.addCacheEvent((b % 2 == 0 ? "cacheA" : "cacheB"), "key" + (b * KEYS_PER_BATCH + i), BatchJMSEventMessage.REMOVE);
+			}
+			Assert.assertTrue(pipeline.receive(null, BatchJMSEventMessageUtil.toString(batch, BatchCodecRegistry.BINARY)));
+		}
+	}
+
+	private void assertAllRemoved() {
+		Assert.assertEquals(BATCHES / 2 * KEYS_PER_BATCH, cacheManager.getCache("cacheA").getSize());
+		Assert.assertEquals(BATCHES / 2 * KEYS_PER_BATCH, cacheManager.getCache("cacheB").getSize());
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.distribution.jms.Action;
+import net.sf.ehcache.distribution.jms.JMSEventMessage;
+
+import org.bitsofinfo.ehcache.jms.custom.BatchingConfig;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageUtil;
+import org.bitsofinfo.ehcache.jms.custom.batch.codec.BatchCodecRegistry;
+import org.bitsofnfo.ehcache.jms.custom.LegacyJsonBatchDecoder.LegacyBatch;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Keys w/ a KeyCodec must never reach receivers that predate KeyCodecs
+ * inside a json batch unless explicitly enabled (jsonKeyCodecs), as those
+ * drop them without a trace
+ *
+ * @see LegacyJsonBatchDecoder
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class KeyCodecBatchingTest {
+
+	private enum Color { RED }
+
+	private static final Serializable[] PRIMITIVE_KEYS = new Serializable[]{"key1", "Key1", 22, 22L, 1.5f, 2.5d, -7, Long.MAX_VALUE};
+	private static final Serializable[] KEY_CODEC_KEYS = new Serializable[]{UUID.randomUUID(), (short)3, (byte)4, 'c', true, Color.RED};
+
+	@Test
+	public void testJsonBatchesOnlyPrimitiveKeysByDefault() {
+		BatchingConfig config = new BatchingConfig();
+		Assert.assertFalse(config.isKeyCodecBatching());
+
+		for (Serializable key : PRIMITIVE_KEYS) {
+			Assert.assertTrue(key.getClass().getName(), BatchJMSEventMessage.keyIsCompatible(remove(key), config.isKeyCodecBatching()));
+		}
+		for (Serializable key : KEY_CODEC_KEYS) {
+			Assert.assertFalse(key.getClass().getName(), BatchJMSEventMessage.keyIsCompatible(remove(key), config.isKeyCodecBatching()));
+		}
+	}
+
+	@Test
+	public void testKeyCodecKeysBatchedWithBinaryOrOptIn() {
+		BatchingConfig config = new BatchingConfig();
+		config.setBatchCodec(BatchCodecRegistry.BINARY);
+		Assert.assertTrue(config.isKeyCodecBatching());
+
+		config = new BatchingConfig();
+		config.setJsonKeyCodecs(true);
+		Assert.assertTrue(config.isKeyCodecBatching());
+
+		for (Serializable key : KEY_CODEC_KEYS) {
+			Assert.assertTrue(key.getClass().getName(), BatchJMSEventMessage.keyIsCompatible(remove(key), config.isKeyCodecBatching()));
+		}
+	}
+
+	@Test
+	public void testLegacyJsonDecoderSeesEveryPrimitiveKey() throws Exception {
+		// Gson's date format has no millis
+		BatchJMSEventMessage batch = new BatchJMSEventMessage(1382090400000L);
+		batch.addRemovalAllCacheName("cacheA");
+		for (Serializable key : PRIMITIVE_KEYS) {
+			batch.addCacheEvent("cacheB", key, BatchJMSEventMessage.REMOVE);
+		}
+
+		LegacyBatch legacy = LegacyJsonBatchDecoder.decode(BatchJMSEventMessageUtil.toString(batch, BatchCodecRegistry.JSON));
+
+		Assert.assertEquals(batch.getCreatedAt(), legacy.getCreatedAt());
+		Assert.assertEquals(new HashSet<String>(Arrays.asList("cacheA")), legacy.getRemoveAllCacheNames());
+		Assert.assertEquals(new HashSet<Serializable>(Arrays.asList(PRIMITIVE_KEYS)), legacy.getRemoveEventsFor("cacheB"));
+	}
+
+	@Test
+	public void testLegacyJsonDecoderDropsKeyCodecKeys() throws Exception {
+		BatchJMSEventMessage batch = new BatchJMSEventMessage(System.currentTimeMillis());
+		batch.addCacheEvent("cacheB", "key1", BatchJMSEventMessage.REMOVE);
+		for (Serializable key : KEY_CODEC_KEYS) {
+			batch.addCacheEvent("cacheB", key, BatchJMSEventMessage.REMOVE);
+		}
+		String payload = BatchJMSEventMessageUtil.toString(batch, BatchCodecRegistry.JSON);
+
+		// why jsonKeyCodecs is off by default: an old receiver only ever removes key1
+		Set<Serializable> seen = LegacyJsonBatchDecoder.decode(payload).getRemoveEventsFor("cacheB");
+		Assert.assertEquals(new HashSet<Serializable>(Arrays.asList("key1")), seen);
+
+		// while an upgraded one gets them all
+		Set<Serializable> expected = new HashSet<Serializable>(Arrays.asList(KEY_CODEC_KEYS));
+		expected.add("key1");
+		Assert.assertEquals(expected, new HashSet<Serializable>(BatchJMSEventMessageUtil.fromString(payload).getRemoveEventsFor("cacheB")));
+	}
+
+	private static JMSEventMessage remove(Serializable key) {
+		return new JMSEventMessage(Action.REMOVE, key, new Element(key, null), "cacheB", null);
+	}
+
+}
@@ -0,0 +1,120 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Inflater;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.gson.Gson;
+
+/**
+ * Decodes a "batch@:" message the way receivers that predate the
+ * BatchCodecs do: Base64, Inflate, then Gson reflectively into their
+ * BatchJMSEventMessage/Action2Keys, whose fields are mirrored here.
+ * Typed keys w/ a qualifier they don't know are silently dropped
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class LegacyJsonBatchDecoder {
+	
+	private static final String MSG_PREFIX = "batch@:";
+	private static final Integer REMOVE = 1;
+	
+	/**
+	 * @param batchMessageString
+	 * @return the batch as an old receiver sees it
+	 * @throws Exception
+	 */
+	public static LegacyBatch decode(String batchMessageString) throws Exception {
+		return new Gson().fromJson(inflate(batchMessageString), LegacyBatch.class);
+	}
+	
+	/**
+	 * @param batchMessageString
+	 * @return the json an old receiver hands to Gson
+	 * @throws Exception
+	 */
+	public static String inflate(String batchMessageString) throws Exception {
+		
+		if (!batchMessageString.startsWith(MSG_PREFIX)) {
+			throw new Exception("not prefixed w/ " + MSG_PREFIX + ", an old receiver ignores it");
+		}
+		
+		byte[] decodedCompressed = Base64.decodeBase64(batchMessageString.replaceFirst(MSG_PREFIX, ""));
+		
+		Inflater inflater = new Inflater();
+		inflater.setInput(decodedCompressed);
+		
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		byte[] buf = new byte[32];
+		while (!inflater.finished()) {
+			int count = inflater.inflate(buf);
+			stream.write(buf, 0, count);
+		}
+		
+		return new String(stream.toByteArray(), "UTF-8");
+	}
+	
+	/**
+	 * Mirror of the original BatchJMSEventMessage
+	 */
+	public static class LegacyBatch {
+		
+		private Date createdAt;
+		private Map<String,LegacyAction2Keys> c_a2k;
+		private Set<String> ra_c;
+		
+		public Date getCreatedAt() {
+			return createdAt;
+		}
+		
+		public Set<String> getRemoveAllCacheNames() {
+			return ra_c;
+		}
+		
+		public Set<String> getCacheNamesWithEvents() {
+			return c_a2k.keySet();
+		}
+		
+		public Set<Serializable> getRemoveEventsFor(String cacheName) {
+			return c_a2k.get(cacheName).getKeysForAction(REMOVE);
+		}
+	}
+	
+	/**
+	 * Mirror of the original Action2Keys, getKeysForAction() as it was
+	 */
+	public static class LegacyAction2Keys {
+		
+		private Map<Integer,Set<String>> a2k;
+		
+		public Set<Serializable> getKeysForAction(Integer action) {
+			Set<Serializable> reconstituted = new HashSet<Serializable>();
+			
+			for (String typedKey : a2k.get(action)) {
+				String qualifier = typedKey.substring(0,2);
+				String value = typedKey.substring(2);
+				
+				if (qualifier.equals("s:")) {
+					reconstituted.add(value);
+				} else if (qualifier.equals("i:")) {
+					reconstituted.add(Integer.valueOf(value));
+				} else if (qualifier.equals("l:")) {
+					reconstituted.add(Long.valueOf(value));
+				} else if (qualifier.equals("d:")) {
+					reconstituted.add(Double.valueOf(value));
+				} else if (qualifier.equals("f:")) {
+					reconstituted.add(Float.valueOf(value));
+				}
+			}
+			return reconstituted;
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.bitsofinfo.ehcache.jms.custom.batch.LongHashSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * LongHashSet must keep every value across its growth and rehashes,
+ * including 0 (its free slot marker) and the Long boundaries
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class LongHashSetTest {
+
+	@Test
+	public void testGrowthKeepsEveryValue() {
+		LongHashSet set = new LongHashSet();
+		TreeSet<Long> expected = new TreeSet<Long>();
+		Random random = new Random(42);
+
+		// starts at 16 slots, rehashes a dozen times on the way
+		for (int i = 0; i < 50000; i++) {
+			long value = (i % 3 == 0 ? i : random.nextLong());
+			Assert.assertEquals(expected.add(value), set.add(value));
+		}
+		for (long value : new long[]{0, -1, 1, Long.MIN_VALUE, Long.MAX_VALUE}) {
+			Assert.assertEquals(expected.add(value), set.add(value));
+		}
+
+		Assert.assertEquals(expected.size(), set.size());
+		for (Long value : expected) {
+			Assert.assertTrue(String.valueOf(value), set.contains(value));
+			Assert.assertFalse(String.valueOf(value), set.add(value));
+		}
+		Assert.assertFalse(set.contains(-2));
+		Assert.assertEquals(expected.size(), set.size());
+
+		long[] sorted = set.toSortedArray();
+		Assert.assertEquals(expected.size(), sorted.length);
+		int i = 0;
+		for (Long value : expected) {
+			Assert.assertEquals(value.longValue(), sorted[i++]);
+		}
+	}
+
+	@Test
+	public void testSequentialValuesSpread() {
+		LongHashSet set = new LongHashSet(4);
+		for (long value = 1000000; value < 1100000; value++) {
+			Assert.assertTrue(set.add(value));
+		}
+		Assert.assertEquals(100000, set.size());
+		Assert.assertTrue(set.contains(1000000));
+		Assert.assertTrue(set.contains(1099999));
+		Assert.assertFalse(set.contains(1100000));
+	}
+
+	@Test
+	public void testZero() {
+		LongHashSet set = new LongHashSet();
+		Assert.assertFalse(set.contains(0));
+		Assert.assertTrue(set.add(0));
+		Assert.assertFalse(set.add(0));
+		Assert.assertTrue(set.contains(0));
+		Assert.assertEquals(1, set.size());
+		Assert.assertTrue(Arrays.equals(new long[]{0}, set.toSortedArray()));
+	}
+
+	@Test
+	public void testClearAfterGrowth() {
+		LongHashSet set = new LongHashSet();
+		for (long value = -500; value <= 500; value++) {
+			set.add(value);
+		}
+		set.clear();
+		Assert.assertTrue(set.isEmpty());
+		Assert.assertFalse(set.contains(0));
+		Assert.assertFalse(set.contains(250));
+		Assert.assertEquals(0, set.toSortedArray().length);
+
+		for (long value = 1; value <= 100; value++) {
+			Assert.assertTrue(set.add(value));
+		}
+		Assert.assertEquals(100, set.size());
+	}
+
+}
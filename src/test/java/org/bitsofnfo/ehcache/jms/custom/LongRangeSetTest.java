@@ -0,0 +1,106 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import org.bitsofinfo.ehcache.jms.custom.batch.LongRangeSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * LongRangeSet must coalesce adjacent values into ranges, in and out
+ * of order, w/o ever wrapping around at the Integer/Long boundaries
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class LongRangeSetTest {
+
+	@Test
+	public void testAscendingValuesCoalesce() {
+		LongRangeSet set = new LongRangeSet();
+		for (long value = 1; value <= 50000; value++) {
+			Assert.assertTrue(set.add(value));
+		}
+		Assert.assertFalse(set.add(25000));
+		Assert.assertTrue(set.add(50002));
+
+		assertRanges(set, 1, 50000, 50002, 50002);
+		Assert.assertEquals(50001, set.size());
+	}
+
+	@Test
+	public void testOutOfOrderValuesCoalesce() {
+		LongRangeSet set = new LongRangeSet();
+		for (long value : new long[]{10, 1, 5, 3, 4, 2, 11, 9, 0, -1}) {
+			Assert.assertTrue(set.add(value));
+		}
+		Assert.assertFalse(set.add(4));
+		// kept exact before anything is merged
+		Assert.assertEquals(2, set.getRangeCount());
+		Assert.assertTrue(set.contains(9));
+		Assert.assertFalse(set.contains(6));
+
+		assertRanges(set, -1, 5, 9, 11);
+		Assert.assertEquals(10, set.size());
+	}
+
+	@Test
+	public void testAddRangeMergesOverlappingAndAdjacent() {
+		LongRangeSet set = new LongRangeSet();
+		Assert.assertEquals(10, set.addRange(1, 10));
+		Assert.assertEquals(10, set.addRange(21, 30));
+		Assert.assertEquals(10, set.addRange(5, 20));
+		Assert.assertEquals(0, set.addRange(2, 29));
+		Assert.assertEquals(1, set.addRange(31, 31));
+		Assert.assertEquals(2, set.addRange(-1, 0));
+
+		assertRanges(set, -1, 31);
+		Assert.assertEquals(33, set.size());
+	}
+
+	@Test
+	public void testIntegerBoundaries() {
+		LongRangeSet set = new LongRangeSet();
+		set.add(Integer.MAX_VALUE);
+		set.add(Integer.MAX_VALUE - 1);
+		set.add(Integer.MIN_VALUE);
+		set.add(Integer.MIN_VALUE + 1);
+		set.add(-1);
+		set.add(0);
+
+		assertRanges(set, Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -1, 0, Integer.MAX_VALUE - 1, Integer.MAX_VALUE);
+
+		// as Longs they simply continue
+		set.add(Integer.MAX_VALUE + 1L);
+		assertRanges(set, Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -1, 0, Integer.MAX_VALUE - 1, Integer.MAX_VALUE + 1L);
+	}
+
+	@Test
+	public void testLongBoundariesDoNotWrap() {
+		LongRangeSet set = new LongRangeSet();
+		Assert.assertTrue(set.add(Long.MAX_VALUE));
+		Assert.assertTrue(set.add(Long.MIN_VALUE));
+		Assert.assertTrue(set.add(Long.MAX_VALUE - 1));
+		Assert.assertTrue(set.add(Long.MIN_VALUE + 1));
+		Assert.assertEquals(2, set.getRangeCount());
+		assertRanges(set, Long.MIN_VALUE, Long.MIN_VALUE + 1, Long.MAX_VALUE - 1, Long.MAX_VALUE);
+
+		set = new LongRangeSet();
+		Assert.assertEquals(3, set.addRange(Long.MAX_VALUE - 2, Long.MAX_VALUE));
+		Assert.assertEquals(3, set.addRange(Long.MIN_VALUE, Long.MIN_VALUE + 2));
+		Assert.assertEquals(0, set.addRange(Long.MAX_VALUE, Long.MAX_VALUE));
+		Assert.assertFalse(set.add(Long.MIN_VALUE));
+		assertRanges(set, Long.MIN_VALUE, Long.MIN_VALUE + 2, Long.MAX_VALUE - 2, Long.MAX_VALUE);
+		Assert.assertEquals(6, set.size());
+	}
+
+	/**
+	 * @param firstLasts expected ranges, ascending first,last pairs
+	 */
+	private static void assertRanges(LongRangeSet set, long... firstLasts) {
+		Assert.assertEquals(firstLasts.length / 2, set.getRangeCount());
+		for (int i = 0; i < set.getRangeCount(); i++) {
+			Assert.assertEquals("first of range " + i, firstLasts[i * 2], set.getFirst(i));
+			Assert.assertEquals("last of range " + i, firstLasts[i * 2 + 1], set.getLast(i));
+		}
+	}
+
+}
@@ -0,0 +1,79 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+
+import org.bitsofinfo.ehcache.jms.custom.CacheLookupTable;
+import org.bitsofinfo.ehcache.jms.custom.ParallelBatchApplier;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A ParallelBatchApplier whose pool starts rejecting work must still
+ * apply every unit a strand has queued, on the calling thread and
+ * without a stack frame per unit
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class ParallelBatchApplierTest {
+
+	private static final int UNITS = 100000;
+
+	private CacheManager cacheManager;
+	private CacheLookupTable caches;
+
+	@Before
+	public void setUp() {
+		cacheManager = new CacheManager(new Configuration().name("ParallelBatchApplierTest")
+										.defaultCache(new CacheConfiguration("default", 1000)));
+		cacheManager.addCache(new Cache(new CacheConfiguration("cacheA", 1000)));
+		caches = new CacheLookupTable(cacheManager);
+		caches.register();
+	}
+
+	@After
+	public void tearDown() {
+		caches.unregister();
+		cacheManager.shutdown();
+	}
+
+	@Test
+	public void testRejectedStrandDrainsWithoutRecursing() {
+		// holds on to what it is handed until shut, rejects from then on
+		final List<Runnable> held = new ArrayList<Runnable>();
+		final boolean[] shut = new boolean[1];
+		Executor executor = new Executor() {
+			public void execute(Runnable command) {
+				if (shut[0]) {
+					throw new RejectedExecutionException("shut down");
+				}
+				held.add(command);
+			}
+		};
+
+		ParallelBatchApplier applier = new ParallelBatchApplier(caches, executor);
+		for (int i = 0; i < UNITS; i++) {
+			applier.onRemoveAll("cacheA");
+		}
+		Assert.assertEquals(1, held.size());
+
+		cacheManager.getCache("cacheA").put(new Element("key", "value"));
+		shut[0] = true;
+		held.get(0).run();
+
+		Assert.assertEquals(UNITS, applier.finish());
+		Assert.assertEquals(0, cacheManager.getCache("cacheA").getSize());
+	}
+
+}
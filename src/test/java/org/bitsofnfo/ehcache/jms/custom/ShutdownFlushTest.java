@@ -0,0 +1,119 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.distribution.jms.Action;
+import net.sf.ehcache.distribution.jms.JMSEventMessage;
+
+import org.bitsofinfo.ehcache.jms.custom.BatchLaneConfig;
+import org.bitsofinfo.ehcache.jms.custom.BatchingConfig;
+import org.bitsofinfo.ehcache.jms.custom.BatchingJMSCachePeer;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessage;
+import org.bitsofinfo.ehcache.jms.custom.batch.BatchJMSEventMessageUtil;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * flushPendingBatches() must get every pending event out, even when a
+ * lane's flush timer fires while the drain is stuck on a full publisher
+ * queue (a slow WAN), rather than that timer sealing a batch the
+ * publisher then refuses
+ *
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class ShutdownFlushTest {
+
+	private final StubJMS jms = new StubJMS();
+	private CacheManager cacheManager;
+	private BatchingJMSCachePeer peer;
+
+	@Before
+	public void setUp() {
+		cacheManager = new CacheManager(new Configuration().name("ShutdownFlushTest")
+										.defaultCache(new CacheConfiguration("default", 100)));
+
+		BatchingConfig config = new BatchingConfig();
+		config.setPublisherThreads(1);
+		config.setPublisherQueueSize(1);
+		config.setMaxEventsPerBatch(5);
+		config.setMaxBatchQueuingTimeMS(60000);
+
+		// its timer fires while the default lane is being drained
+		BatchLaneConfig fast = new BatchLaneConfig("fast", config.getDefaultLane());
+		fast.setMaxBatchQueuingTimeMS(150);
+		fast.addCacheName("cacheB");
+		config.addLane(fast);
+
+		peer = new BatchingJMSCachePeer(config, cacheManager, jms.getProducer(), jms.getSession(), jms.getQueueSession());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		jms.allowSends();
+		peer.dispose();
+		cacheManager.shutdown();
+	}
+
+	@Test
+	public void testTimerFiringDuringFlushLosesNothing() throws Exception {
+		jms.holdSends();
+
+		// one batch in flight, one queued: the publisher is full
+		Set<Serializable> expected = new HashSet<Serializable>();
+		send("cacheA", 0, 5, expected);
+		send("cacheA", 5, 10, expected);
+
+		// pending, drained by the flush
+		send("cacheA", 10, 13, expected);
+		send("cacheB", 0, 3, expected);
+
+		final int[] drained = new int[1];
+		Thread flusher = new Thread() {
+			public void run() {
+				drained[0] = peer.flushPendingBatches(10000);
+			}
+		};
+		flusher.start();
+
+		// well past cacheB's window
+		Thread.sleep(500);
+		jms.allowSends();
+		flusher.join(15000);
+
+		Assert.assertEquals(6, drained[0]);
+		Assert.assertEquals(0, peer.getPublisher().getBatchesDropped());
+
+		Set<Serializable> sent = new HashSet<Serializable>();
+		for (String text : jms.getSent()) {
+			BatchJMSEventMessage batch = BatchJMSEventMessageUtil.fromString(text);
+			for (String cacheName : batch.getCacheNamesWithEvents()) {
+				for (Serializable key : batch.getRemoveEventsFor(cacheName)) {
+					sent.add(cacheName + ":" + key);
+				}
+			}
+		}
+		Assert.assertEquals(expected, sent);
+	}
+
+	private void send(String cacheName, int from, int to, Set<Serializable> expected) throws Exception {
+		List<JMSEventMessage> events = new ArrayList<JMSEventMessage>();
+		for (int i = from; i < to; i++) {
+			String key = "key" + i;
+			events.add(new JMSEventMessage(Action.REMOVE, key, new Element(key, null), cacheName, null));
+			expected.add(cacheName + ":" + key);
+		}
+		peer.send(events);
+	}
+
+}
@@ -0,0 +1,133 @@
+package org.bitsofnfo.ehcache.jms.custom;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+import javax.jms.MessageProducer;
+import javax.jms.QueueSession;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+/**
+ * Bare JMS Session/MessageProducer stand-ins: TextMessages w/ their
+ * properties, a producer that records what it sends and only sends
+ * once allowed to (i.e. a slow WAN), anything else is a no-op
+ * 
+ * @author bitsofinfo.g[at]g mail com
+ *
+ */
+public class StubJMS {
+	
+	private final List<String> sent = new ArrayList<String>();
+	
+	// permits to send, one per message
+	private final Semaphore sends = new Semaphore(Integer.MAX_VALUE);
+	
+	/**
+	 * Hold every send until allowSends()
+	 */
+	public void holdSends() {
+		sends.drainPermits();
+	}
+	
+	public void allowSends() {
+		sends.release(Integer.MAX_VALUE / 2);
+	}
+	
+	/**
+	 * @return the text of every TextMessage sent so far
+	 */
+	public List<String> getSent() {
+		synchronized(sent) {
+			return new ArrayList<String>(sent);
+		}
+	}
+	
+	public Session getSession() {
+		return stub(Session.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				if (method.getName().equals("createTextMessage")) {
+					return newTextMessage(args != null && args.length > 0 ? (String)args[0] : null);
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+	
+	public QueueSession getQueueSession() {
+		return stub(QueueSession.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				return defaultValue(method);
+			}
+		});
+	}
+	
+	public MessageProducer getProducer() {
+		return stub(MessageProducer.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+				if (method.getName().equals("send") && args[0] instanceof TextMessage) {
+					sends.acquire();
+					synchronized(sent) {
+						sent.add(((TextMessage)args[0]).getText());
+					}
+					return null;
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+	
+	private static TextMessage newTextMessage(final String text) {
+		final Map<String,Object> properties = new HashMap<String,Object>();
+		return stub(TextMessage.class, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String name = method.getName();
+				if (name.equals("getText")) {
+					return text;
+				} else if (name.startsWith("set") && name.endsWith("Property")) {
+					properties.put((String)args[0], args[1]);
+					return null;
+				} else if (name.startsWith("get") && name.endsWith("Property")) {
+					return properties.get(args[0]);
+				} else if (name.equals("propertyExists")) {
+					return properties.containsKey(args[0]);
+				}
+				return defaultValue(method);
+			}
+		});
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> T stub(Class<T> type, InvocationHandler handler) {
+		return (T)Proxy.newProxyInstance(StubJMS.class.getClassLoader(), new Class<?>[]{type}, handler);
+	}
+	
+	private static Object defaultValue(Method method) {
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == int.class) {
+			return 0;
+		} else if (type == long.class) {
+			return 0L;
+		} else if (type == short.class) {
+			return (short)0;
+		} else if (type == byte.class) {
+			return (byte)0;
+		} else if (type == float.class) {
+			return 0f;
+		} else if (type == double.class) {
+			return 0d;
+		} else if (type == char.class) {
+			return (char)0;
+		}
+		return null;
+	}
+
+}